@@ -37,6 +37,11 @@ public class AgentServicesInfo{
      */
     private int port;
     
+    /**
+     * Latest resource usage sample of the agent or null if none arrived yet.
+     */
+    private volatile AgentTelemetry telemetry;
+    
     public AgentServicesInfo(String agentID,String host,int port,ArrayList<String> availableServices){
         this.agentID=UUID.fromString(agentID);
         this.host=host;
@@ -83,6 +88,14 @@ public class AgentServicesInfo{
     public ArrayList<String> getAvailableServices(){
         return availableServices;
     }
+
+    public AgentTelemetry getTelemetry(){
+        return telemetry;
+    }
+
+    public void setTelemetry(AgentTelemetry telemetry){
+        this.telemetry=telemetry;
+    }
     
     public ServiceStatus getServiceStatus(String service,String serviceUUID){
         if(!runningServices.containsKey(service))
@@ -0,0 +1,200 @@
+package meshservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import meshservice.communication.JsonReader;
+import meshservice.communication.RequestException;
+
+/**
+ * Single resource usage sample reported by the agent.
+ *
+ * @author ArtiFixal
+ */
+public class AgentTelemetry{
+
+    /**
+     * Time in milliseconds after which sample no longer describes the agent.
+     */
+    public static final long MAX_SAMPLE_AGE=5000;
+
+    /**
+     * Share of heap in use above which agent is considered overloaded.
+     */
+    public static final double MAX_HEAP_USAGE=0.9;
+
+    /**
+     * Load added to the agent score by single request in flight.
+     */
+    private static final double IN_FLIGHT_LOAD=0.01;
+
+    /**
+     * Process CPU load from 0 to 1.
+     */
+    private final double cpuLoad;
+
+    private final long heapUsed;
+    private final long heapMax;
+
+    /**
+     * Time in milliseconds spent in GC since the previous sample.
+     */
+    private final long gcTime;
+
+    private final int threads;
+
+    /**
+     * Number of open file descriptors or -1 if unknown.
+     */
+    private final long openFiles;
+
+    /**
+     * Telemetry of the agent instances, where: <br>
+     * Key - service ID <br>
+     * Value - instance telemetry
+     */
+    private final HashMap<String,InstanceTelemetry> instances;
+
+    /**
+     * When sample was received.
+     */
+    private final long receivedAt;
+
+    public AgentTelemetry(double cpuLoad,long heapUsed,long heapMax,long gcTime,
+            int threads,long openFiles,HashMap<String,InstanceTelemetry> instances)
+    {
+        this.cpuLoad=cpuLoad;
+        this.heapUsed=heapUsed;
+        this.heapMax=heapMax;
+        this.gcTime=gcTime;
+        this.threads=threads;
+        this.openFiles=openFiles;
+        this.instances=instances;
+        receivedAt=System.currentTimeMillis();
+    }
+
+    /**
+     * Reads sample sent by the agent.
+     *
+     * @param report Agent request containing the sample.
+     *
+     * @return Read sample.
+     *
+     * @throws RequestException If sample is malformed.
+     */
+    public static AgentTelemetry read(JsonReader report) throws RequestException
+    {
+        final HashMap<String,InstanceTelemetry> instances=new HashMap<>();
+        if(report.hasField("instances"))
+        {
+            final Iterator<Map.Entry<String,JsonNode>> reported=report.getNode("instances").fields();
+            while(reported.hasNext())
+            {
+                final Map.Entry<String,JsonNode> instance=reported.next();
+                final JsonReader instanceReport=new JsonReader(instance.getValue());
+                instances.put(instance.getKey(),new InstanceTelemetry(
+                        instanceReport.readNumberPositive("inFlight",Integer.class),
+                        instanceReport.readNumber("requests",Long.class),
+                        instanceReport.readNumber("latency",Long.class)));
+            }
+        }
+        return new AgentTelemetry(report.readNumber("cpuLoad",Double.class),
+                report.readNumber("heapUsed",Long.class),
+                report.readNumber("heapMax",Long.class),
+                report.readNumber("gcTime",Long.class),
+                report.readNumberPositive("threads",Integer.class),
+                report.readNumber("openFiles",Long.class),instances);
+    }
+
+    public double getCpuLoad(){
+        return cpuLoad;
+    }
+
+    public long getHeapUsed(){
+        return heapUsed;
+    }
+
+    public long getHeapMax(){
+        return heapMax;
+    }
+
+    public long getGcTime(){
+        return gcTime;
+    }
+
+    public int getThreads(){
+        return threads;
+    }
+
+    public long getOpenFiles(){
+        return openFiles;
+    }
+
+    public HashMap<String,InstanceTelemetry> getInstances(){
+        return instances;
+    }
+
+    /**
+     * @return Number of requests in flight to all agent instances.
+     */
+    public int getInFlight()
+    {
+        int inFlight=0;
+        for(InstanceTelemetry instance:instances.values())
+            inFlight+=instance.getInFlight();
+        return inFlight;
+    }
+
+    /**
+     * @return True if sample is recent enough to describe the agent.
+     */
+    public boolean isFresh(){
+        return System.currentTimeMillis()-receivedAt<MAX_SAMPLE_AGE;
+    }
+
+    /**
+     * @return True if agent is running out of heap.
+     */
+    public boolean isHeapExhausted(){
+        return heapMax>0&&heapUsed>=heapMax*MAX_HEAP_USAGE;
+    }
+
+    /**
+     * @return Agent load, the lower the better candidate for a new instance.
+     */
+    public double getLoadScore(){
+        return cpuLoad+getInFlight()*IN_FLIGHT_LOAD;
+    }
+
+    /**
+     * Load of single service instance since the previous sample.
+     */
+    public static class InstanceTelemetry{
+        private final int inFlight;
+        private final long requests;
+
+        /**
+         * Average request processing time in nanoseconds.
+         */
+        private final long latency;
+
+        public InstanceTelemetry(int inFlight,long requests,long latency){
+            this.inFlight=inFlight;
+            this.requests=requests;
+            this.latency=latency;
+        }
+
+        public int getInFlight(){
+            return inFlight;
+        }
+
+        public long getRequests(){
+            return requests;
+        }
+
+        public long getLatency(){
+            return latency;
+        }
+    }
+}
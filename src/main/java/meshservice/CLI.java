@@ -13,6 +13,7 @@ import java.util.Base64;
 import meshservice.communication.JsonReader;
 import meshservice.communication.JsonBuilder;
 import meshservice.communication.RequestException;
+import meshservice.storage.FileMetadata;
 
 /**
  * Command line interface used by client to connect to the API Gateway.
@@ -43,7 +44,8 @@ public class CLI {
             System.out.println("4. Get posts");
             System.out.println("5. Upload file");
             System.out.println("6. Download file");
-            System.out.println("7. Exit");
+            System.out.println("7. List files");
+            System.out.println("8. Exit");
             String choice = reader.readLine();
             switch (choice) {
                 case "1" -> {
@@ -102,6 +104,14 @@ public class CLI {
                     jsonRequest.addField("filename", reader.readLine());
                 }
                 case "7" -> {
+                    if (userID == -1) {
+                        System.out.println("You need to login first.");
+                        continue;
+                    }
+                    jsonRequest.addField("action", "listFiles");
+                    jsonRequest.addField("ownerID", userID);
+                }
+                case "8" -> {
                     return;
                 }
                 default -> {
@@ -138,6 +148,13 @@ public class CLI {
                             Files.write(Paths.get(response.readString("filename")), file);
                             System.out.println("File downloaded successfully.");
                         }
+                        case "7" -> {
+                            System.out.println("Files:");
+                            ArrayList<FileMetadata> files=response.readArrayOf("files",FileMetadata.class);
+                            files.forEach((file)->{
+                                System.out.println(file.getFilename()+" ("+file.getSize()+" bytes)");
+                            });
+                        }
                     }
                 } else {
                     System.out.println("Error code: " + status);
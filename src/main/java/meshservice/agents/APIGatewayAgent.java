@@ -1,15 +1,40 @@
 package meshservice.agents;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import meshservice.ServiceStatus;
+import meshservice.communication.Connection;
+import meshservice.communication.ConnectionThread;
 import meshservice.communication.JsonBuilder;
 import meshservice.communication.JsonReader;
 import meshservice.communication.RequestException;
 import meshservice.communication.ServiceHostport;
+import meshservice.communication.ServiceInstanceInfo;
 import meshservice.config.AgentConfig;
 import meshservice.config.ConfigException;
+import meshservice.config.GatewayConfig;
 import meshservice.services.APIGateway;
+import meshservice.services.Bulkhead;
+import meshservice.services.HedgingPolicy;
+import meshservice.services.PostsCache;
+import meshservice.services.RateLimiter;
 import meshservice.services.Service;
 
 /**
@@ -20,16 +45,70 @@ import meshservice.services.Service;
 public class APIGatewayAgent extends Agent{
     public static final String[] REQUEST_REQUIRED_FIELDS=new String[]{"action"};
     
+    /**
+     * Local replica of the manager service registry.
+     */
+    private final RegistryReplica registry;
+    
+    /**
+     * Connection on which manager streams registry changes.
+     */
+    private ConnectionThread registryConnection;
+    
+    /**
+     * Number of requests served from the registry replica since last 
+     * traffic report, where: <br>
+     * Key - service type <br>
+     * Value - number of requests
+     */
+    private final ConcurrentHashMap<String,LongAdder> servedRequests;
+    
+    /**
+     * Config of the run gateways.
+     */
+    private final GatewayConfig gatewayConfig;
+    
+    /**
+     * Gateways listening on the ingress port, the newest last.
+     */
+    private final ArrayList<APIGateway> gateways;
+    
+    /**
+     * Port shared by the gateways.
+     */
+    private final int gatewayPort;
+    
+    /**
+     * Max number of gateways, which is 1 if the OS can't share the port.
+     */
+    private final int maxGateways;
+    
     public APIGatewayAgent(AgentConfig config) throws IOException, ConfigException {
         super(config);
-        int firstApiGatewayInstancePort=config.getAgentPort()+1;
-        runningServices.put(UUID.randomUUID(),new APIGateway(firstApiGatewayInstancePort));
+        registry=new RegistryReplica();
+        servedRequests=new ConcurrentHashMap<>();
+        subscribeToRegistry();
+        new TrafficReporter().start();
+        gatewayConfig=GatewayConfig.getInstance();
+        gateways=new ArrayList<>();
+        gatewayPort=config.getAgentPort()+1;
+        if(APIGateway.isPortSharingSupported())
+            maxGateways=gatewayConfig.getGatewayMaxInstances();
+        else
+        {
+            System.out.println("[Info]: Port sharing is not supported, running single gateway");
+            maxGateways=1;
+        }
+        for(int i=0;i<Math.min(gatewayConfig.getGatewayMinInstances(),maxGateways);i++)
+            startGateway();
+        new GatewayScaler().start();
     }
 
     @Override
     protected Service startService(String serviceName,int port) throws IOException, RequestException {
         try{
-            return new APIGateway(port);
+            return new APIGateway(new ServerSocket(port),gatewayConfig.getAgentHost(),
+                    config.getAgentPort());
         }catch(Exception e){
             throw new RuntimeException("Algoritm not found");
         }
@@ -60,12 +139,33 @@ public class APIGatewayAgent extends Agent{
         String action=reader.readString("action").toLowerCase();
         switch(action){
             case "getserviceinfo" -> {
-                String serviceType=reader.readString("service");
-                ServiceHostport managerResponse=askManagerForServiceHostport(serviceType);
-                response.addField("host",managerResponse.getHost())
-                        .addField("port",managerResponse.getPort())
-                        .addArray("requiredFields",managerResponse.getRequestRequiredFields())
-                        .addArray("additionalFields",managerResponse.getAdditionalResponseFields());
+                String serviceType=reader.readString("service").toLowerCase();
+                String ownerID=reader.readStringNullable("ownerID");
+                String sessionAgent=reader.readStringNullable("sessionAgent");
+                // Both are known only to the manager
+                String locality=sessionAgent!=null?"@"+sessionAgent:ownerID;
+                long gatewayServed=reader.hasField("requests")
+                        ?reader.readNumberPositive("requests",Long.class):0;
+                boolean allInstances=reader.hasField("all")&&reader.getNode("all").asBoolean();
+                ObjectNode route=registry.lookup(serviceType,locality,allInstances);
+                if(route!=null)
+                {
+                    servedRequests.computeIfAbsent(serviceType,(type)->new LongAdder())
+                            .add(1+gatewayServed);
+                    response.getJson().setAll(route);
+                }
+                else
+                {
+                    JsonReader managerResponse=askManagerForService(serviceType,ownerID,
+                            sessionAgent,gatewayServed,allInstances);
+                    addServiceInfo(response,readServiceHostport(managerResponse));
+                    if(allInstances&&managerResponse.hasField("instances"))
+                    {
+                        response.setNode("instances",managerResponse.getNode("instances"));
+                        if(locality!=null)
+                            registry.cacheOwnerRoute(serviceType,locality,response.getJson());
+                    }
+                }
             }
             case "testserviceconnection" -> {
                 UUID serviceUUID=UUID.fromString(reader.readString("serviceID"));
@@ -74,6 +174,63 @@ public class APIGatewayAgent extends Agent{
                 }
             }
             case "testconnection" -> {}
+            case "getgatewaypoolstats" -> {
+                synchronized(runningServices){
+                    response.addField("gateways",gateways.size())
+                            .addField("maxGateways",maxGateways)
+                            .addField("activeRequests",getActiveGatewayRequests());
+                }
+                response.addField("cpuLoad",getCpuLoad());
+            }
+            case "getpostscachestats" -> {
+                PostsCache cache=PostsCache.getInstance();
+                response.addField("hits",cache.getHits())
+                        .addField("misses",cache.getMisses())
+                        .addField("hitRatio",cache.getHitRatio())
+                        .addField("invalidations",cache.getInvalidations())
+                        .addField("expirations",cache.getExpirations())
+                        .addField("averageServedAge",cache.getAverageServedAge())
+                        .addField("maxServedAge",cache.getMaxServedAge())
+                        .addField("cachedOwners",cache.getCachedOwners());
+            }
+            case "getratelimitstats" -> {
+                RateLimiter limiter=RateLimiter.getInstance();
+                response.addField("rejected",limiter.getRejected())
+                        .addField("trackedBuckets",limiter.getTrackedBuckets());
+            }
+            case "reportejection" -> {
+                // Gateway ejected failing instance, let manager check it
+                final JsonBuilder report=new JsonBuilder("instanceEjected")
+                        .addField("type","request")
+                        .addField("agent",config.getAgentName())
+                        .addField("serviceID",reader.readString("serviceID"))
+                        .addField("service",reader.readString("service"));
+                if(reader.hasField("ejectedAgent"))
+                    report.addField("ejectedAgent",reader.readString("ejectedAgent"));
+                reportToManager(report);
+            }
+            case "getconcurrencylimits" ->
+                response.addField("limits",APIGateway.getUpstreamLimits());
+            case "getbulkheadstats" -> {
+                Bulkhead bulkhead=Bulkhead.getInstance();
+                response.addField("rejected",bulkhead.getRejected())
+                        .addField("classes",bulkhead.getClassStats());
+            }
+            case "gethedgingstats" -> {
+                HedgingPolicy policy=HedgingPolicy.getInstance();
+                response.addField("hedged",policy.getHedged())
+                        .addField("hedgesWon",policy.getHedgesWon())
+                        .addField("budgetExhausted",policy.getBudgetExhausted());
+            }
+            case "registrydelta" -> {
+                long version=reader.readNumberPositive("version",Long.class);
+                ServiceInstanceInfo instance=reader.readObject("instance",ServiceInstanceInfo.class);
+                if(!registry.apply(version,reader.readString("event"),instance))
+                {
+                    // Missed change, replica has to be reloaded
+                    CompletableFuture.runAsync(this::subscribeToRegistry);
+                }
+            }
             case "reconectservice" -> {
                 UUID serviceUUID=UUID.fromString(reader.readString("serviceID"));
                 reconectService(serviceUUID);
@@ -84,6 +241,94 @@ public class APIGatewayAgent extends Agent{
         response.setStatus(200);
     }
     
+    /**
+     * Starts another gateway on the ingress port.
+     * 
+     * @throws IOException If gateway couldn't be started.
+     */
+    private void startGateway() throws IOException
+    {
+        final APIGateway gateway=new APIGateway(APIGateway.openSharedSocket(gatewayPort),
+                gatewayConfig.getAgentHost(),config.getAgentPort());
+        synchronized(runningServices){
+            runningServices.put(gateway.getServiceID(),gateway);
+            gateways.add(gateway);
+        }
+    }
+    
+    /**
+     * Stops the newest gateway. Gateway stops accepting clients first and
+     * requests in progress are finished before its connection is closed.
+     * 
+     * @throws IOException If gateway couldn't be closed.
+     */
+    private void stopGateway() throws IOException
+    {
+        final APIGateway gateway;
+        synchronized(runningServices){
+            gateway=gateways.remove(gateways.size()-1);
+            runningServices.remove(gateway.getServiceID());
+        }
+        gateway.closeService();
+        final ConnectionThread gatewayConnection=activeConnections.remove(gateway.getServiceID());
+        if(gatewayConnection!=null)
+            gatewayConnection.close();
+    }
+    
+    /**
+     * @return Number of requests in progress in all gateways.
+     */
+    private int getActiveGatewayRequests()
+    {
+        synchronized(runningServices){
+            int active=0;
+            for(APIGateway gateway:gateways)
+                active+=gateway.getActiveRequests();
+            return active;
+        }
+    }
+    
+    /**
+     * @return Recent CPU load from 0 to 1.
+     */
+    private double getCpuLoad()
+    {
+        final OperatingSystemMXBean os=ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean systemOs)
+        {
+            final double load=systemOs.getCpuLoad();
+            if(load>=0)
+                return load;
+        }
+        final double loadAverage=os.getSystemLoadAverage();
+        return loadAverage<0?0:Math.min(loadAverage/os.getAvailableProcessors(),1);
+    }
+    
+    /**
+     * Subscribes to the manager registry changes and loads registry snapshot
+     * into the local replica. Previous subscription is closed.
+     */
+    private synchronized void subscribeToRegistry()
+    {
+        try{
+            if(registryConnection!=null)
+                registryConnection.close();
+            final Connection subscription=new Connection(new Socket(
+                    config.getManagerHost(),config.getManagerPort()));
+            final JsonBuilder request=new JsonBuilder("subscribeRegistry")
+                    .addField("type","request")
+                    .addField("agent",config.getAgentName())
+                    .addField("serviceID",getServiceID());
+            JsonReader snapshot=subscription.sendRequest(request);
+            registry.load(snapshot.readNumber("version",Long.class),
+                    snapshot.readArrayOf("services",ServiceInstanceInfo.class));
+            registryConnection=new ConnectionThread(subscription,this);
+            registryConnection.start();
+        }catch(Exception e){
+            System.out.println("[Error]: Failed to subscribe to registry due to: "+e);
+        }
+    }
+    
     /**
      * Retrieves {@code Hostport} of given service from manager.
      * 
@@ -96,17 +341,431 @@ public class APIGatewayAgent extends Agent{
      */
     protected ServiceHostport askManagerForServiceHostport(String ServiceName)
             throws IOException,RequestException
+    {
+        return askManagerForServiceHostport(ServiceName,null,0);
+    }
+    
+    /**
+     * Retrieves {@code Hostport} of given service from manager.
+     * 
+     * @param ServiceName Which service to ask for.
+     * @param ownerID Whose data the request concerns, if not null service 
+     * located near the owner files is preferred.
+     * @param servedRequests Number of requests of this service type served 
+     * without asking manager since last ask.
+     * 
+     * @return Service hostport.
+     * 
+     * @throws IOException If any socket error occurres.
+     * @throws RequestException If request was malformed.
+     */
+    protected ServiceHostport askManagerForServiceHostport(String ServiceName,String ownerID,long servedRequests)
+            throws IOException,RequestException
+    {
+        return readServiceHostport(askManagerForService(ServiceName,ownerID,null,servedRequests,false));
+    }
+    
+    /**
+     * Asks manager for service.
+     * 
+     * @param ServiceName Which service to ask for.
+     * @param ownerID Whose data the request concerns, if not null service 
+     * located near the owner files is preferred.
+     * @param sessionAgent Agent holding upload session the request concerns,
+     * if not null service run by it is required.
+     * @param servedRequests Number of requests of this service type served 
+     * without asking manager since last ask.
+     * @param allInstances Whether to ask also for all running instances.
+     * 
+     * @return Manager response.
+     * 
+     * @throws IOException If any socket error occurres.
+     * @throws RequestException If request was malformed.
+     */
+    protected JsonReader askManagerForService(String ServiceName,String ownerID,String sessionAgent,
+            long servedRequests,boolean allInstances) throws IOException,RequestException
     {
         final JsonBuilder request=new JsonBuilder("askForService")
                 .addField("type","request")
                 .addField("agent", config.getAgentName())
-                .addField("service", ServiceName);
-        JsonReader response=communicateWithManager(request);
+                .addField("service", ServiceName)
+                .addField("requests", servedRequests)
+                .addField("all", allInstances);
+        if(ownerID!=null)
+            request.addField("owner",ownerID);
+        if(sessionAgent!=null)
+            request.addField("sessionAgent",sessionAgent);
+        return communicateWithManager(request);
+    }
+    
+    private static void addServiceInfo(JsonBuilder response,ServiceHostport service)
+    {
+        response.addField("host",service.getHost())
+                .addField("port",service.getPort())
+                .addArray("requiredFields",service.getRequestRequiredFields())
+                .addArray("additionalFields",service.getAdditionalResponseFields())
+                .addArray("optionalFields",service.getRequestOptionalFields());
+    }
+    
+    private ServiceHostport readServiceHostport(JsonReader response) throws RequestException
+    {
         return new ServiceHostport(response.readArrayOf("requiredFields")
                 .toArray(String[]::new),
             response.readArrayOf("additionalFields").toArray(String[]::new),
+            response.hasField("optionalFields")
+                ?response.readArrayOf("optionalFields").toArray(String[]::new)
+                :new String[0],
             response.readString("host"),
             response.readNumberPositive("port",Integer.class));
     }
 
+    
+    /**
+     * Reports requests served from the registry replica to the manager every
+     * second. Replica which stays behind the manager registry is reloaded.
+     */
+    private class TrafficReporter extends Thread{
+        private static final int REPORT_EVERY=1000;
+
+        public TrafficReporter(){
+            setDaemon(true);
+        }
+
+        @Override
+        public void run(){
+            boolean wasBehind=false;
+            while(isAlive)
+            {
+                try{
+                    sleep(REPORT_EVERY);
+                    final HashMap<String,Long> traffic=new HashMap<>();
+                    servedRequests.forEach((serviceType,served)->{
+                        long requests=served.sumThenReset();
+                        if(requests>0)
+                            traffic.put(serviceType,requests);
+                    });
+                    final JsonBuilder report=new JsonBuilder("reportTraffic")
+                            .addField("type","request")
+                            .addField("agent",config.getAgentName())
+                            .addField("traffic",traffic);
+                    JsonReader response=reportToManager(report);
+                    long registryVersion=response.readNumber("registryVersion",Long.class);
+                    registry.confirm(registryVersion);
+                    boolean isBehind=registry.getVersion()<registryVersion;
+                    if(isBehind&&wasBehind)
+                    {
+                        subscribeToRegistry();
+                        isBehind=false;
+                    }
+                    wasBehind=isBehind;
+                }catch(Exception e){
+                    System.out.println("[Error]: Failed to report traffic due to: "+e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Scales number of gateways every second. Another gateway is started 
+     * when gateways have too many requests in progress, unless CPU is 
+     * saturated, because then it wouldn't serve them any faster. Gateway is 
+     * stopped after gateways stay mostly idle for a while.
+     */
+    private class GatewayScaler extends Thread{
+        private static final int CHECK_EVERY=1000;
+        
+        /**
+         * Number of consecutive idle checks after which gateway is stopped.
+         */
+        private static final int IDLE_CHECKS=10;
+        
+        /**
+         * CPU load above which no more gateways are started.
+         */
+        private static final double MAX_CPU_LOAD=0.9;
+
+        public GatewayScaler(){
+            setDaemon(true);
+        }
+
+        @Override
+        public void run(){
+            int idleChecks=0;
+            while(isAlive)
+            {
+                try{
+                    sleep(CHECK_EVERY);
+                    final int running;
+                    synchronized(runningServices){
+                        running=gateways.size();
+                    }
+                    final double perGateway=getActiveGatewayRequests()/(double)running;
+                    final long scaleUpAt=gatewayConfig.getGatewayScaleUpRequests();
+                    if(perGateway>scaleUpAt&&running<maxGateways&&getCpuLoad()<MAX_CPU_LOAD)
+                    {
+                        startGateway();
+                        idleChecks=0;
+                        System.out.println("[Info]: Started gateway, running: "+(running+1));
+                    }
+                    else if(perGateway<scaleUpAt/4.0&&running>gatewayConfig.getGatewayMinInstances())
+                    {
+                        if(++idleChecks>=IDLE_CHECKS)
+                        {
+                            stopGateway();
+                            idleChecks=0;
+                            System.out.println("[Info]: Stopped gateway, running: "+(running-1));
+                        }
+                    }
+                    else
+                        idleChecks=0;
+                }catch(Exception e){
+                    System.out.println("[Error]: Failed to scale gateways due to: "+e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Local replica of the manager service registry kept up to date by the
+     * registry changes. Changes are applied under lock and published as a new
+     * immutable snapshot, so lookups are wait-free reads of the current one.
+     */
+    private static class RegistryReplica{
+        /**
+         * For how long in milliseconds snapshot not confirmed by the manager
+         * is used.
+         */
+        public static final long SNAPSHOT_TTL=10000;
+        
+        /**
+         * For how long in milliseconds route to the owner data is reused.
+         */
+        public static final long OWNER_ROUTE_TTL=2000;
+        
+        /**
+         * Number of cached owner routes above which expired ones are removed.
+         */
+        private static final int MAX_OWNER_ROUTES=1024;
+        
+        /**
+         * Known service instances, where: <br>
+         * Key - service ID <br>
+         * Value - instance info
+         */
+        private final HashMap<String,ServiceInstanceInfo> instances;
+        
+        /**
+         * Current routes.
+         */
+        private final AtomicReference<RoutingSnapshot> snapshot;
+        
+        /**
+         * Routes to the owner data or upload sessions received from the
+         * manager, where: <br>
+         * Key - service type and owner ID or {@code @} followed by session 
+         * agent <br>
+         * Value - cached route
+         */
+        private final ConcurrentHashMap<String,OwnerRoute> ownerRoutes;
+        
+        public RegistryReplica(){
+            instances=new HashMap<>();
+            snapshot=new AtomicReference<>(new RoutingSnapshot(-1,Map.of(),0));
+            ownerRoutes=new ConcurrentHashMap<>();
+        }
+        
+        public long getVersion(){
+            return snapshot.get().version;
+        }
+        
+        /**
+         * Replaces replica content with given registry snapshot.
+         *
+         * @param version Snapshot version.
+         * @param registrySnapshot All registered instances.
+         */
+        public synchronized void load(long version,Collection<ServiceInstanceInfo> registrySnapshot)
+        {
+            instances.clear();
+            registrySnapshot.forEach((instance)->instances.put(instance.getServiceID(),instance));
+            rebuild(version);
+        }
+        
+        /**
+         * Applies single registry change.
+         *
+         * @param version Change version.
+         * @param event What happened.
+         * @param instance Changed instance.
+         *
+         * @return False if some earlier change was missed, true otherwise.
+         */
+        public synchronized boolean apply(long version,String event,ServiceInstanceInfo instance)
+        {
+            final long currentVersion=getVersion();
+            if(version<=currentVersion)
+                return true;
+            if(version>currentVersion+1)
+                return false;
+            if(event.equals("removed"))
+                instances.remove(instance.getServiceID());
+            else
+                instances.put(instance.getServiceID(),instance);
+            rebuild(version);
+            return true;
+        }
+        
+        /**
+         * Extends validity of the snapshot if it is up to date with the
+         * manager registry.
+         *
+         * @param registryVersion Current version of the manager registry.
+         */
+        public synchronized void confirm(long registryVersion)
+        {
+            final RoutingSnapshot current=snapshot.get();
+            if(current.version==registryVersion)
+            {
+                snapshot.set(new RoutingSnapshot(current.version,current.routesByType,
+                        System.currentTimeMillis()));
+            }
+        }
+        
+        private void rebuild(long version)
+        {
+            final HashMap<String,List<ServiceInstanceInfo>> grouped=new HashMap<>();
+            instances.values().forEach((instance)->{
+                if(instance.getStatus()==ServiceStatus.RUNNING)
+                    grouped.computeIfAbsent(instance.getServiceType(),(type)->new ArrayList<>())
+                            .add(instance);
+            });
+            final Map<String,TypeRoutes> previous=snapshot.get().routesByType;
+            final HashMap<String,TypeRoutes> routes=new HashMap<>();
+            grouped.forEach((serviceType,typeInstances)->{
+                final TypeRoutes previousRoutes=previous.get(serviceType);
+                routes.put(serviceType,new TypeRoutes(typeInstances.toArray(ServiceInstanceInfo[]::new),
+                        previousRoutes==null?new AtomicInteger():previousRoutes.rotation));
+            });
+            snapshot.set(new RoutingSnapshot(version,routes,System.currentTimeMillis()));
+        }
+        
+        /**
+         * Finds route to the given service type. Instances are picked in
+         * round robin order.
+         *
+         * @param serviceType What type to look for.
+         * @param locality Owner ID or {@code @} followed by agent holding
+         * upload session, which routes are known only to the manager, may be
+         * null.
+         * @param allInstances Whether to include all running instances.
+         *
+         * @return Service info which can be sent to the gateway or null if
+         * manager has to be asked.
+         */
+        public ObjectNode lookup(String serviceType,String locality,boolean allInstances)
+        {
+            final RoutingSnapshot current=snapshot.get();
+            final long now=System.currentTimeMillis();
+            if(now-current.refreshedAt>SNAPSHOT_TTL)
+                return null;
+            if(locality!=null)
+            {
+                // Locality of owner files is known only to the manager
+                final OwnerRoute cached=ownerRoutes.get(serviceType+"/"+locality);
+                if(cached==null||cached.version!=current.version||now>=cached.expiresAt)
+                    return null;
+                return cached.route.deepCopy();
+            }
+            final TypeRoutes routes=current.routesByType.get(serviceType);
+            if(routes==null)
+                return null;
+            final int position=Math.floorMod(routes.rotation.getAndIncrement(),routes.routeInfos.length);
+            final ObjectNode route=routes.routeInfos[position].deepCopy();
+            if(allInstances)
+                route.set("instances",routes.instancesJson);
+            return route;
+        }
+        
+        /**
+         * Stores route to the owner data or upload session received from the
+         * manager until it expires or registry changes.
+         *
+         * @param serviceType Requested type.
+         * @param locality Owner ID or {@code @} followed by agent holding
+         * upload session.
+         * @param route Service info sent to the gateway.
+         */
+        public void cacheOwnerRoute(String serviceType,String locality,ObjectNode route)
+        {
+            final long now=System.currentTimeMillis();
+            ownerRoutes.put(serviceType+"/"+locality,new OwnerRoute(route.deepCopy(),
+                    snapshot.get().version,now+OWNER_ROUTE_TTL));
+            if(ownerRoutes.size()>MAX_OWNER_ROUTES)
+                ownerRoutes.values().removeIf((cached)->now>=cached.expiresAt);
+        }
+    }
+    
+    /**
+     * Immutable routes of single registry version.
+     */
+    private static final class RoutingSnapshot{
+        public final long version;
+        public final Map<String,TypeRoutes> routesByType;
+        
+        /**
+         * When snapshot was last known to be up to date.
+         */
+        public final long refreshedAt;
+        
+        public RoutingSnapshot(long version,Map<String,TypeRoutes> routesByType,long refreshedAt){
+            this.version=version;
+            this.routesByType=routesByType;
+            this.refreshedAt=refreshedAt;
+        }
+    }
+    
+    /**
+     * Running instances of single service type with their service info
+     * serialized once per snapshot.
+     */
+    private static final class TypeRoutes{
+        /**
+         * Service info of each instance.
+         */
+        public final ObjectNode[] routeInfos;
+        
+        /**
+         * All running instances.
+         */
+        public final JsonNode instancesJson;
+        
+        /**
+         * Position of the next instance to pick, kept across snapshots.
+         */
+        public final AtomicInteger rotation;
+        
+        public TypeRoutes(ServiceInstanceInfo[] running,AtomicInteger rotation){
+            routeInfos=new ObjectNode[running.length];
+            for(int i=0;i<running.length;i++)
+            {
+                final JsonBuilder routeInfo=new JsonBuilder();
+                addServiceInfo(routeInfo,running[i].toServiceHostport());
+                routeInfos[i]=routeInfo.getJson();
+            }
+            instancesJson=JsonBuilder.mapper.valueToTree(running);
+            this.rotation=rotation;
+        }
+    }
+    
+    private static final class OwnerRoute{
+        public final ObjectNode route;
+        public final long version;
+        public final long expiresAt;
+        
+        public OwnerRoute(ObjectNode route,long version,long expiresAt){
+            this.route=route;
+            this.version=version;
+            this.expiresAt=expiresAt;
+        }
+    }
 }
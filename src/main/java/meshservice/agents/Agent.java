@@ -5,9 +5,18 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import meshservice.communication.Connection;
 import meshservice.communication.ConnectionThread;
 import meshservice.communication.JsonBuilder;
@@ -26,6 +35,33 @@ import meshservice.services.Service;
  */
 public abstract class Agent extends ControlPlaneService{
 
+    /**
+     * Time in milliseconds to wait for a request on not yet registered
+     * connection, so a stalled peer can't block the agent.
+     */
+    public static final int DIRECT_REQUEST_TIMEOUT=30000;
+    
+    /**
+     * Number of threads processing direct requests.
+     */
+    private static final int DIRECT_THREADS=4;
+    
+    /**
+     * Max number of direct requests waiting for a thread.
+     */
+    private static final int MAX_PENDING_DIRECT_REQUESTS=64;
+    
+    /**
+     * Threads processing direct requests, so they don't block accepting
+     * connections.
+     */
+    private static final ExecutorService DIRECT_EXECUTOR=new ThreadPoolExecutor(DIRECT_THREADS,
+            DIRECT_THREADS,0,TimeUnit.MILLISECONDS,new ArrayBlockingQueue<>(MAX_PENDING_DIRECT_REQUESTS),(task)->{
+        final Thread directThread=new Thread(task,"DirectRequest");
+        directThread.setDaemon(true);
+        return directThread;
+    });
+
     /**
      * Config of this agent.
      */
@@ -39,6 +75,11 @@ public abstract class Agent extends ControlPlaneService{
     protected ConcurrentHashMap<UUID,ConnectionThread> activeConnections;
     
     protected ConnectionThread connectionToManager;
+    
+    /**
+     * Sends resource usage of this agent to the manager.
+     */
+    private TelemetryReporter telemetryReporter;
 
     public Agent(AgentConfig config) throws IOException,ConfigException{
         super(config.getAgentPort());
@@ -57,6 +98,9 @@ public abstract class Agent extends ControlPlaneService{
         activeConnections=new ConcurrentHashMap<>();
         runningServices=new HashMap<>();
         registerAgentAtManager();
+        // Agent is already closed if it failed to register
+        if(isAlive)
+            telemetryReporter=new TelemetryReporter(this);
     }
 
     public AgentConfig getConfig(){
@@ -67,6 +111,25 @@ public abstract class Agent extends ControlPlaneService{
      * @return Array of available services to run.
      */
     public abstract String[] getAvailableServices();
+    
+    /**
+     * @return Service instances which load is reported to the manager.
+     */
+    protected Collection<Service> getTelemetryServices()
+    {
+        synchronized(runningServices){
+            return new ArrayList<>(runningServices.values());
+        }
+    }
+    
+    /**
+     * @return Files stored by this agent, where: <br>
+     * Key - owner ID <br>
+     * Value - names of owner files
+     */
+    public Map<String,List<String>> getStoredFiles(){
+        return Map.of();
+    }
 
     /**
      * Creates new service instance of a given type on a given port. If port 
@@ -109,11 +172,13 @@ public abstract class Agent extends ControlPlaneService{
         BufferedOutputStream responseStream=new BufferedOutputStream(clientSocket.getOutputStream());
         final JsonBuilder response=new JsonBuilder();
         try{
+            clientSocket.setSoTimeout(DIRECT_REQUEST_TIMEOUT);
             JsonReader request=new JsonReader(requestStream);
             String action=request.readString("action").toLowerCase();
-            String serviceUUID=request.readString("serviceID");
             switch(action){
                 case "registerconnection" -> {
+                    clientSocket.setSoTimeout(0);
+                    String serviceUUID=request.readString("serviceID");
                     ConnectionThread serviceThread=new ConnectionThread(new Connection(clientSocket),this);
                     activeConnections.put(UUID.fromString(serviceUUID),serviceThread);
                     responseStream.write(response.toBytes());
@@ -121,12 +186,24 @@ public abstract class Agent extends ControlPlaneService{
                     serviceThread.start();
                 }
                 case "renewmanagerconnection" -> {
+                    clientSocket.setSoTimeout(0);
                     connectionToManager.close();
                     connectionToManager=new ConnectionThread(new Connection(clientSocket),this);
                     connectionToManager.start();
                 }
-                default ->
-                    throw new RequestException("Unknown connection register action!");
+                default -> {
+                    // Direct requests may take long, so they don't block accepting connections
+                    final Connection directConnection=new Connection(clientSocket);
+                    try{
+                        DIRECT_EXECUTOR.execute(()->processDirectConnection(action,request,directConnection));
+                        return;
+                    }catch(RejectedExecutionException e){
+                        response.setStatus("Too many direct requests in progress",503);
+                        directConnection.getResponseStream().write(response.toBytes());
+                        directConnection.close();
+                        return;
+                    }
+                }
             }
             response.setStatus(200);
         }catch(RequestException e){
@@ -135,6 +212,51 @@ public abstract class Agent extends ControlPlaneService{
         responseStream.write(response.toBytes());
         responseStream.flush();
     }
+    
+    /**
+     * Processes direct request and closes its connection.
+     * 
+     * @param action Requested action.
+     * @param request Request data.
+     * @param connection Connection with the requester.
+     */
+    private void processDirectConnection(String action,JsonReader request,Connection connection)
+    {
+        try(connection){
+            try{
+                if(!processDirectRequest(action,request,connection))
+                    throw new RequestException("Unknown connection register action!");
+            }catch(RequestException e){
+                final JsonBuilder response=new JsonBuilder();
+                processException(response,e);
+                connection.getResponseStream().write(response.toBytes());
+                connection.getResponseStream().flush();
+            }
+        }catch(IOException e){
+            System.out.println("[Error]: Failed to process direct request: "+action+" due to: "+e);
+        }
+    }
+    
+    /**
+     * Processes request sent by other agent through not registered 
+     * connection, which is closed afterwards. Runs outside of the thread
+     * accepting connections and responds by itself, so it may exchange
+     * multiple messages with the requester.
+     * 
+     * @param action Requested action.
+     * @param request Request data.
+     * @param connection Connection with the requester.
+     * 
+     * @return True if action was processed, false if it is unknown.
+     * 
+     * @throws IOException If any I/O error occurres.
+     * @throws RequestException If request was malformed.
+     */
+    protected boolean processDirectRequest(String action,JsonReader request,
+            Connection connection) throws IOException,RequestException
+    {
+        return false;
+    }
 
     /**
      * Resets service inactivity timer.
@@ -189,6 +311,29 @@ public abstract class Agent extends ControlPlaneService{
         return connectionToManager.sendRequest(request);
     }
     
+    /**
+     * Sends report to the manager over its own connection, closed once the
+     * manager responds. Reports sent from background threads don't use the
+     * agent connection, since they would interleave with requests the
+     * manager sends over it. Report which doesn't concern any particular
+     * service is sent with service ID of this agent.
+     * 
+     * @param report What to send.
+     * 
+     * @return Manager response.
+     * 
+     * @throws IOException If any socket error occurred.
+     * @throws RequestException If request was malformed.
+     */
+    protected JsonReader reportToManager(JsonBuilder report) throws IOException,RequestException
+    {
+        if(!report.getJson().has("serviceID"))
+            report.addField("serviceID",getServiceID());
+        try(Connection managerConnection=new Connection(new Socket(config.getManagerHost(),config.getManagerPort()))){
+            return managerConnection.sendRequest(report);
+        }
+    }
+    
     private Socket createServiceSocket(UUID serviceID) throws IOException{
         Service serv=runningServices.get(serviceID);
         return new Socket("localhost",serv.getPort());
@@ -222,6 +367,13 @@ public abstract class Agent extends ControlPlaneService{
         newThread.start();
     }
 
+    @Override
+    public void closeService() throws IOException{
+        if(telemetryReporter!=null)
+            telemetryReporter.close();
+        super.closeService();
+    }
+
     /**
      * Registers this agent at the manager.
      */
@@ -232,7 +384,8 @@ public abstract class Agent extends ControlPlaneService{
                 .addField("agent",config.getAgentName())
                 .addField("serviceID",getServiceID())
                 .addField("port",getPort())
-                .addArray("availableServices",getAvailableServices());
+                .addArray("availableServices",getAvailableServices())
+                .addField("storedFiles",getStoredFiles());
         try{
             connectionToManager=new ConnectionThread(new Connection(new Socket(config.getManagerHost(),config.getManagerPort())),this);
             communicateWithManager(request);
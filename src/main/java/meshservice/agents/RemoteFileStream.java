@@ -0,0 +1,101 @@
+package meshservice.agents;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import meshservice.communication.Connection;
+import meshservice.communication.JsonBuilder;
+import meshservice.communication.JsonReader;
+import meshservice.communication.RequestException;
+
+/**
+ * Content of a file fetched from other agent. Content is sent in chunks
+ * and the next chunk is requested only once the previous one was read, so
+ * at most one chunk is held in the memory.
+ *
+ * @author ArtiFixal
+ */
+public class RemoteFileStream extends InputStream{
+
+    /**
+     * Max number of content bytes sent in a single response.
+     */
+    public static final int CHUNK_SIZE=256*1024;
+
+    /**
+     * Action requesting the next chunk.
+     */
+    public static final String NEXT_CHUNK_ACTION="fetchNextChunk";
+
+    private final Connection connection;
+
+    /**
+     * Currently read chunk.
+     */
+    private byte[] chunk;
+
+    /**
+     * Position of the next byte to read in the current chunk.
+     */
+    private int position;
+
+    private boolean isLast;
+
+    /**
+     * @param connection Connection with agent sending the file.
+     * @param firstResponse Response containing the first chunk.
+     *
+     * @throws RequestException If agent didn't send the file.
+     */
+    public RemoteFileStream(Connection connection,JsonReader firstResponse) throws RequestException{
+        this.connection=connection;
+        readChunk(firstResponse);
+    }
+
+    private void readChunk(JsonReader response) throws RequestException
+    {
+        if(response.readNumber("status",Integer.class)!=200)
+            throw new RequestException(response.readString("responseText"));
+        chunk=Base64.getDecoder().decode(response.readString("chunk"));
+        position=0;
+        isLast=response.getNode("last").asBoolean();
+    }
+
+    /**
+     * Requests chunks until there is something to read.
+     *
+     * @return True if there are bytes to read, false if content ended.
+     */
+    private boolean fill() throws IOException
+    {
+        while(position>=chunk.length)
+        {
+            if(isLast)
+                return false;
+            try{
+                readChunk(connection.sendRequest(new JsonBuilder(NEXT_CHUNK_ACTION)));
+            }catch(RequestException e){
+                throw new IOException("Failed to fetch file chunk due to: "+e.getMessage(),e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException{
+        return fill()?chunk[position++]&0xFF:-1;
+    }
+
+    @Override
+    public int read(byte[] buffer,int offset,int length) throws IOException
+    {
+        if(length==0)
+            return 0;
+        if(!fill())
+            return -1;
+        final int read=Math.min(length,chunk.length-position);
+        System.arraycopy(chunk,position,buffer,offset,read);
+        position+=read;
+        return read;
+    }
+}
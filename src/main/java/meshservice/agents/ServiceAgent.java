@@ -2,15 +2,38 @@ package meshservice.agents;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import meshservice.ServiceStatus;
 import meshservice.communication.Connection;
 import meshservice.communication.JsonBuilder;
 import meshservice.communication.JsonReader;
 import meshservice.communication.RequestException;
+import meshservice.config.AgentConfig;
+import meshservice.config.ConfigException;
+import meshservice.config.ConnectionPool;
+import meshservice.config.DBConfig;
 import meshservice.services.*;
+import meshservice.storage.FileCache;
+import meshservice.storage.FileMetadata;
+import meshservice.storage.FileStore;
 
 /**
  * Agent responsible for services.
@@ -21,8 +44,89 @@ import meshservice.services.*;
 public class ServiceAgent extends Agent{
     public static final String[] REQUEST_REQUIRED_FIELDS=new String[]{"action"};
     
+    /**
+     * Max number of instances started by a single run request.
+     */
+    public static final int MAX_START_COUNT=32;
+    
+    /**
+     * Number of instances initialized at once if request doesn't say.
+     */
+    public static final int DEFAULT_START_CONCURRENCY=4;
+    
+    /**
+     * Max number of threads initializing instances.
+     */
+    private static final int START_THREADS=8;
+    
+    /**
+     * Threads initializing instances of multi instance run requests. Start
+     * which doesn't fit the queue is run by the thread handling the request.
+     */
+    private static final ExecutorService START_EXECUTOR=new ThreadPoolExecutor(START_THREADS,
+            START_THREADS,0,TimeUnit.MILLISECONDS,new ArrayBlockingQueue<>(MAX_START_COUNT),(task)->{
+        final Thread startThread=new Thread(task,"ServiceStart");
+        startThread.setDaemon(true);
+        return startThread;
+    },new ThreadPoolExecutor.CallerRunsPolicy());
+    
+    /**
+     * Number of threads replicating files and reporting stored files.
+     */
+    private static final int FILE_TASK_THREADS=4;
+    
+    /**
+     * Max number of replications and reports waiting for a thread.
+     */
+    private static final int MAX_PENDING_FILE_TASKS=1024;
+    
+    /**
+     * Threads replicating files and reporting stored files to the manager.
+     */
+    private static final ExecutorService FILE_EXECUTOR=new ThreadPoolExecutor(FILE_TASK_THREADS,
+            FILE_TASK_THREADS,0,TimeUnit.MILLISECONDS,new ArrayBlockingQueue<>(MAX_PENDING_FILE_TASKS),(task)->{
+        final Thread fileThread=new Thread(task,"FileReplication");
+        fileThread.setDaemon(true);
+        return fileThread;
+    });
+    
+    /**
+     * Idle instances handed out when manager asks to run a service.
+     */
+    private final WarmPool warmPool;
+    
+    /**
+     * Proxies giving each service type one port on this agent, where: <br>
+     * Key - service type <br>
+     * Value - proxy of the type
+     */
+    private final HashMap<String,SidecarProxy> sidecars=new HashMap<>();
+    
+    public ServiceAgent(AgentConfig config) throws IOException,ConfigException{
+        super(config);
+        warmPool=initServiceAgent();
+    }
+    
     public ServiceAgent(String name,int port,String managerHost,int managerPort) throws IOException{
         super(name,port,managerHost,managerPort);
+        warmPool=initServiceAgent();
+    }
+    
+    private WarmPool initServiceAgent()
+    {
+        FileCache.configure(config.getFileCacheMaxBytes(),config.getFileCacheMaxEntryBytes());
+        FileStore.getInstance().addStoreListener((ownerID,metadata)->{
+            try{
+                FILE_EXECUTOR.execute(()->reportStoredFileToManager(ownerID,metadata));
+            }catch(RejectedExecutionException e){
+                System.out.println("[Error]: Failed to report stored file of: "+ownerID+" due to: too many pending reports");
+            }
+        });
+        final WarmPool pool=new WarmPool(config.getWarmPoolSize(),(serviceType)->startService(serviceType,0));
+        // Agent is already closed if it failed to register
+        if(isAlive)
+            pool.fill(getAvailableServices());
+        return pool;
     }
 
     @Override
@@ -44,16 +148,39 @@ public class ServiceAgent extends Agent{
             case "run" -> {
                 String serviceType=reader.readString("service").toLowerCase();
                 int port=reader.readNumberPositive("port",Integer.class);
-                Service serv=runService(serviceType,port);
-                System.out.println("[Info]: Agent started service: "+serviceType);
+                int count=reader.hasField("count")?reader.readNumberPositive("count",Integer.class):1;
+                int concurrency=reader.hasField("concurrency")
+                        ?reader.readNumberPositive("concurrency",Integer.class):DEFAULT_START_CONCURRENCY;
+                if(count<1||count>MAX_START_COUNT)
+                    throw new RequestException("Count has to be between 1 and "+MAX_START_COUNT);
+                if(count>1&&port!=0)
+                    throw new RequestException("Multiple instances can't be started on the same port");
+                List<Service> started=startServices(serviceType,port,count,Math.max(concurrency,1));
+                System.out.println("[Info]: Agent started "+started.size()+" services: "+serviceType);
+                // Instances are reached through the type port of this agent
+                SidecarProxy sidecar=getSidecar(serviceType);
+                ArrayList<HashMap<String,Object>> descriptors=new ArrayList<>(started.size());
                 synchronized(runningServices){
-                    runningServices.put(serv.getServiceID(),serv);
-                    response.addField("serviceID",serv.getServiceID())
-                            .addField("host",serverSocket.getInetAddress().getHostName())
-                            .addField("port",serv.getPort())
-                            .addArray("requiredFields",serv.getRequiredRequestFields())
-                            .addArray("additionalFields",serv.getAdditionalResponseFields());
+                    for(Service serv:started)
+                    {
+                        sidecar.addInstance(serv);
+                        runningServices.put(serv.getServiceID(),serv);
+                        HashMap<String,Object> descriptor=new HashMap<>();
+                        descriptor.put("serviceID",serv.getServiceID());
+                        descriptor.put("port",sidecar.getPort());
+                        descriptor.put("instancePort",serv.getPort());
+                        descriptors.add(descriptor);
+                    }
                 }
+                Service serv=started.get(0);
+                response.addField("serviceID",serv.getServiceID())
+                        .addField("host",serverSocket.getInetAddress().getHostName())
+                        .addField("port",sidecar.getPort())
+                        .addField("instancePort",serv.getPort())
+                        .addArray("requiredFields",serv.getRequiredRequestFields())
+                        .addArray("additionalFields",serv.getAdditionalResponseFields())
+                        .addArray("optionalFields",serv.getOptionalRequestFields())
+                        .addField("services",descriptors);
                 response.addField("service",serviceType);
             }
             case "closeservice" -> {
@@ -63,6 +190,7 @@ public class ServiceAgent extends Agent{
                     synchronized(runningServices){
                         Service serv=runningServices.get(serviceUUID);
                         updateServiceStatusAtManager(updateRequest,serviceUUID,serviceType,ServiceStatus.CLOSING);
+                        removeFromSidecar(serviceType,serviceUUID);
                         serv.closeService();
                         updateServiceStatusAtManager(updateRequest,serviceUUID,serviceType,ServiceStatus.CLOSED);
                         runningServices.remove(serviceUUID);
@@ -77,6 +205,58 @@ public class ServiceAgent extends Agent{
                 }
             }
             case "testconnection" -> {}
+            case "replicatefile" -> {
+                // Pull in background, manager is informed when finished
+                String ownerID=reader.readString("ownerID");
+                String filename=reader.readString("filename");
+                String checksum=reader.readString("checksum");
+                String sourceHost=reader.readString("sourceHost");
+                int sourcePort=reader.readNumberPositive("sourcePort",Integer.class);
+                try{
+                    FILE_EXECUTOR.execute(()->replicateFile(ownerID,filename,
+                            checksum,sourceHost,sourcePort));
+                }catch(RejectedExecutionException e){
+                    throw new RequestException(503,"Too many replications in progress");
+                }
+            }
+            case "getfilecachestats" -> {
+                FileCache cache=FileCache.getInstance();
+                response.addField("hits",cache.getHits())
+                        .addField("misses",cache.getMisses())
+                        .addField("evictions",cache.getEvictions())
+                        .addField("cachedBytes",cache.getCachedBytes())
+                        .addField("cachedFiles",cache.getCachedFiles());
+            }
+            case "getwarmpoolstats" -> {
+                response.addField("hits",warmPool.getHits())
+                        .addField("misses",warmPool.getMisses())
+                        .addField("idleInstances",warmPool.getIdleInstances());
+            }
+            case "getdbpoolstats" -> {
+                ConnectionPool pool=DBConfig.getInstance().getConnectionPool();
+                response.addField("leases",pool.getLeases())
+                        .addField("leased",pool.getLeased())
+                        .addField("idle",pool.getIdle())
+                        .addField("maxSize",pool.getMaxSize())
+                        .addField("averageWaitTime",pool.getAverageWaitTime())
+                        .addField("maxWaitTime",pool.getMaxWaitTime())
+                        .addField("timeouts",pool.getTimeouts())
+                        .addField("invalidated",pool.getInvalidated())
+                        .addField("leaks",pool.getLeaks());
+            }
+            case "getsidecarstats" -> {
+                synchronized(sidecars){
+                    sidecars.forEach((serviceType,sidecar)->{
+                        response.addField(serviceType,new JsonBuilder()
+                                .addField("port",sidecar.getPort())
+                                .addField("instances",sidecar.getInstances())
+                                .addField("inFlight",sidecar.getInFlight())
+                                .addField("connections",sidecar.getConnections())
+                                .addField("rejected",sidecar.getRejected())
+                                .getJson());
+                    });
+                }
+            }
             case "reconectservice" -> {
                 UUID serviceUUID=UUID.fromString(reader.readString("serviceID"));
                 reconectService(serviceUUID);
@@ -90,6 +270,144 @@ public class ServiceAgent extends Agent{
         response.setStatus(200);
     }
     
+    /**
+     * Hands out idle instance if any port may be used, otherwise starts
+     * new one.
+     */
+    @Override
+    protected Service runService(String serviceType,int port) throws IOException,RequestException,SQLException
+    {
+        final Service serv=obtainService(serviceType,port);
+        runningServices.put(serv.getServiceID(),serv);
+        return serv;
+    }
+    
+    /**
+     * Takes idle instance if any port may be used, otherwise starts new one.
+     * 
+     * @param serviceType Service type to obtain.
+     * @param port Port on which to run new service.
+     * 
+     * @return Running service.
+     * 
+     * @throws IOException If any socket error occurres.
+     * @throws RequestException If request was malformed.
+     * @throws SQLException If SQL error occurred.
+     */
+    private Service obtainService(String serviceType,int port) throws IOException,RequestException,SQLException
+    {
+        // Pool may not exist yet if manager asks during registration
+        if(port==0&&warmPool!=null)
+        {
+            final Service pooled=warmPool.take(serviceType);
+            if(pooled!=null)
+                return pooled;
+        }
+        return startService(serviceType,port);
+    }
+    
+    /**
+     * Obtains given number of instances, initializing them in parallel.
+     * Instances which failed to start are left out.
+     * 
+     * @param serviceType Service type to start.
+     * @param port Port on which to run new service.
+     * @param count Number of instances to start.
+     * @param concurrency Max number of instances initialized at once.
+     * 
+     * @return Started instances, at least one.
+     * 
+     * @throws IOException If any socket error occurres.
+     * @throws RequestException If request was malformed.
+     * @throws SQLException If SQL error occurred.
+     */
+    private List<Service> startServices(String serviceType,int port,int count,int concurrency)
+            throws IOException,RequestException,SQLException
+    {
+        if(count==1)
+            return List.of(obtainService(serviceType,port));
+        final ConcurrentLinkedQueue<Service> started=new ConcurrentLinkedQueue<>();
+        final AtomicReference<Exception> failure=new AtomicReference<>();
+        final AtomicInteger remaining=new AtomicInteger(count);
+        final CompletableFuture<?>[] workers=new CompletableFuture<?>[Math.min(concurrency,count)];
+        for(int i=0;i<workers.length;i++)
+        {
+            workers[i]=CompletableFuture.runAsync(()->{
+                while(remaining.getAndDecrement()>0)
+                {
+                    try{
+                        started.add(obtainService(serviceType,port));
+                    }catch(IOException|RequestException|SQLException|RuntimeException e){
+                        // Caught so instances started by other workers are returned
+                        failure.compareAndSet(null,e);
+                    }
+                }
+            },START_EXECUTOR);
+        }
+        CompletableFuture.allOf(workers).join();
+        final Exception error=failure.get();
+        if(started.isEmpty())
+        {
+            if(error instanceof RequestException e)
+                throw e;
+            if(error instanceof SQLException e)
+                throw e;
+            if(error instanceof RuntimeException e)
+                throw e;
+            throw (IOException)error;
+        }
+        if(error!=null)
+            System.out.println("[Error]: Started "+started.size()+" of "+count+" "+serviceType+" services due to: "+error);
+        return new ArrayList<>(started);
+    }
+
+    /**
+     * Gets proxy of given service type, starting it on the first use.
+     *
+     * @param serviceType Type of the proxied instances.
+     *
+     * @return Proxy of the type.
+     *
+     * @throws IOException If failed to open proxy socket.
+     */
+    private SidecarProxy getSidecar(String serviceType) throws IOException
+    {
+        synchronized(sidecars){
+            SidecarProxy sidecar=sidecars.get(serviceType);
+            if(sidecar==null)
+            {
+                sidecar=new SidecarProxy(serviceType);
+                sidecars.put(serviceType,sidecar);
+                System.out.println("[Info]: Started sidecar of: "+serviceType+" on port: "+sidecar.getPort());
+            }
+            return sidecar;
+        }
+    }
+
+    private void removeFromSidecar(String serviceType,UUID serviceID)
+    {
+        synchronized(sidecars){
+            SidecarProxy sidecar=sidecars.get(serviceType);
+            if(sidecar!=null)
+                sidecar.removeInstance(serviceID);
+        }
+    }
+
+    @Override
+    public void closeService() throws IOException{
+        if(warmPool!=null)
+            warmPool.close();
+        // Agent may be closed during registration, before sidecars exist
+        if(sidecars!=null)
+        {
+            synchronized(sidecars){
+                for(SidecarProxy sidecar:sidecars.values())
+                    sidecar.close();
+            }
+        }
+        super.closeService();
+    }
+    
     @Override
     protected Service startService(String serviceName,int port) throws IOException,RequestException,SQLException{
         return switch(serviceName){
@@ -105,15 +423,91 @@ public class ServiceAgent extends Agent{
                 new FileUploadService(port);
             case "getfile" ->
                 new FileDownloadService(port);
+            case "listfiles" ->
+                new FileListService(port);
+            case "openupload","appendupload","getuploadoffset","commitupload" ->
+                new UploadSessionService(serviceName,port,config.getAgentName());
             default ->
                 throw new RequestException("Unknown service name: "+serviceName);
         };
     }
 
+    @Override
+    protected boolean processDirectRequest(String action,JsonReader request,
+            Connection connection) throws IOException,RequestException
+    {
+        switch(action){
+            case "fetchfile" -> {
+                String ownerID=request.readString("ownerID");
+                String filename=request.readString("filename");
+                FileStore store=FileStore.getInstance();
+                try(InputStream content=store.openContent(ownerID,filename)){
+                    if(content==null)
+                        throw new RequestException(404,"Given file doesn't exist");
+                    sendFileChunks(content,store.getHash(ownerID,filename),connection);
+                }
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sends file content in chunks. Requester asks for every chunk after
+     * the first one, so only a single chunk is held in the memory.
+     * 
+     * @param content File content.
+     * @param checksum Content hash.
+     * @param connection Connection with the requester.
+     * 
+     * @throws IOException If any I/O error occurred.
+     * @throws RequestException If requester asked for something else than
+     * the next chunk.
+     */
+    private void sendFileChunks(InputStream content,String checksum,Connection connection)
+            throws IOException,RequestException
+    {
+        final byte[] chunk=new byte[RemoteFileStream.CHUNK_SIZE];
+        while(true)
+        {
+            final int read=content.readNBytes(chunk,0,chunk.length);
+            final boolean isLast=read<chunk.length;
+            final JsonBuilder response=new JsonBuilder()
+                    .addField("checksum",checksum)
+                    .addField("chunk",Base64.getEncoder().encodeToString(
+                            isLast?Arrays.copyOf(chunk,read):chunk))
+                    .addField("last",isLast)
+                    .setStatus(200);
+            connection.getResponseStream().write(response.toBytes());
+            connection.getResponseStream().flush();
+            if(isLast)
+                return;
+            final JsonReader chunkRequest=new JsonReader(connection.getRequestStream());
+            if(!chunkRequest.readString("action").equalsIgnoreCase(RemoteFileStream.NEXT_CHUNK_ACTION))
+                throw new RequestException("Expected request of the next chunk");
+        }
+    }
+
+    @Override
+    public Map<String,List<String>> getStoredFiles(){
+        final FileStore store=FileStore.getInstance();
+        final HashMap<String,List<String>> storedFiles=new HashMap<>();
+        for(String ownerID:store.listOwners())
+        {
+            storedFiles.put(ownerID,store.listFiles(ownerID).stream()
+                    .map(FileMetadata::getFilename)
+                    .toList());
+        }
+        return storedFiles;
+    }
+
     @Override
     public String[] getAvailableServices(){
         final String[] services=new String[]{"login","register","addpost",
-            "getposts","uploadfile","getfile"};
+            "getposts","uploadfile","getfile","listfiles","openupload",
+            "appendupload","getuploadoffset","commitupload"};
         return services;
     }
     
@@ -140,6 +534,68 @@ public class ServiceAgent extends Agent{
         connection.sendRequest(request);
     }
     
+    /**
+     * Informs the manager that file was uploaded to this agent.
+     * 
+     * @param ownerID Whose file was stored.
+     * @param metadata Stored file metadata.
+     */
+    protected void reportStoredFileToManager(String ownerID,FileMetadata metadata)
+    {
+        final JsonBuilder request=new JsonBuilder("fileStored")
+                .addField("type","request")
+                .addField("agent",config.getAgentName())
+                .addField("ownerID",ownerID)
+                .addField("filename",metadata.getFilename())
+                .addField("checksum",metadata.getChecksum());
+        try{
+            reportToManager(request);
+        }catch(IOException|RequestException e){
+            System.out.println("[Error]: Failed to report stored file of: "+ownerID+" due to: "+e);
+        }
+    }
+    
+    /**
+     * Copies given file from other agent and informs the manager about the
+     * new replica.
+     * 
+     * @param ownerID Whose file to copy.
+     * @param filename Name of the file.
+     * @param checksum Expected content hash.
+     * @param sourceHost Host of agent storing the file.
+     * @param sourcePort Port of agent storing the file.
+     */
+    protected void replicateFile(String ownerID,String filename,String checksum,
+            String sourceHost,int sourcePort)
+    {
+        final FileStore store=FileStore.getInstance();
+        try{
+            if(!checksum.equals(store.getHash(ownerID,filename)))
+            {
+                final JsonBuilder fetchRequest=new JsonBuilder("fetchFile")
+                        .addField("ownerID",ownerID)
+                        .addField("filename",filename);
+                final Socket sourceSocket=new Socket();
+                sourceSocket.connect(new InetSocketAddress(sourceHost,sourcePort),Agent.DIRECT_REQUEST_TIMEOUT);
+                sourceSocket.setSoTimeout(Agent.DIRECT_REQUEST_TIMEOUT);
+                try(Connection sourceConnection=new Connection(sourceSocket)){
+                    JsonReader fetchResponse=sourceConnection.sendRequest(fetchRequest);
+                    store.storeReplica(ownerID,filename,checksum,
+                            new RemoteFileStream(sourceConnection,fetchResponse));
+                }
+            }
+            final JsonBuilder replicaRequest=new JsonBuilder("replicaStored")
+                    .addField("type","request")
+                    .addField("agent",config.getAgentName())
+                    .addField("ownerID",ownerID)
+                    .addField("filename",filename);
+            reportToManager(replicaRequest);
+            System.out.println("[Info]: Replicated file: "+filename+" of: "+ownerID);
+        }catch(IOException|RequestException e){
+            System.out.println("[Error]: Failed to replicate file: "+filename+" of: "+ownerID+" due to: "+e);
+        }
+    }
+    
     public static void main(String[] args){
         try{
             ServiceAgent agent=new ServiceAgent("Agent1",8000,"localhost",9000);
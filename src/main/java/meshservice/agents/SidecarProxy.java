@@ -0,0 +1,296 @@
+package meshservice.agents;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import meshservice.services.Service;
+
+/**
+ * Agent local proxy of single service type. Listens on one port which
+ * doesn't change while instances of the type are started and closed, and
+ * passes each connection to the local instance with the fewest connections
+ * in flight.
+ *
+ * @author ArtiFixal
+ */
+public class SidecarProxy extends Thread{
+
+    /**
+     * Size of buffer used to copy data between sockets.
+     */
+    private static final int BUFFER_SIZE=8192;
+
+    /**
+     * Maximum number of connections proxied at once by all proxies. Further
+     * connections are rejected.
+     */
+    public static final int MAX_CONNECTIONS=256;
+
+    /**
+     * Every proxied connection uses one thread per direction.
+     */
+    private static final int THREADS_PER_CONNECTION=2;
+
+    /**
+     * Pipe threads which may still be started.
+     */
+    private static final Semaphore PIPE_PERMITS=new Semaphore(MAX_CONNECTIONS*THREADS_PER_CONNECTION);
+
+    /**
+     * Threads copying data of proxied connections, shared by all proxies.
+     * Pipes block until their connection ends, so tasks aren't queued.
+     */
+    private static final ExecutorService PIPE_EXECUTOR=new ThreadPoolExecutor(0,
+            MAX_CONNECTIONS*THREADS_PER_CONNECTION,60,TimeUnit.SECONDS,new SynchronousQueue<>(),(task)->{
+        final Thread pipeThread=new Thread(task,"SidecarPipe");
+        pipeThread.setDaemon(true);
+        return pipeThread;
+    });
+
+    private final String serviceType;
+
+    private final ServerSocket serverSocket;
+
+    /**
+     * Local instances receiving connections.
+     */
+    private final CopyOnWriteArrayList<Backend> backends;
+
+    /**
+     * Position from which least loaded instance is searched, so ties don't
+     * always go to the same instance.
+     */
+    private final AtomicInteger rotation;
+
+    private final LongAdder connections;
+    private final LongAdder rejected;
+
+    private volatile boolean isAlive;
+
+    public SidecarProxy(String serviceType) throws IOException{
+        super("Sidecar-"+serviceType);
+        this.serviceType=serviceType;
+        serverSocket=new ServerSocket(0);
+        backends=new CopyOnWriteArrayList<>();
+        rotation=new AtomicInteger();
+        connections=new LongAdder();
+        rejected=new LongAdder();
+        isAlive=true;
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Starts passing connections to the given instance.
+     *
+     * @param service Local instance of this proxy service type.
+     */
+    public void addInstance(Service service){
+        backends.add(new Backend(service.getServiceID(),service.getPort()));
+    }
+
+    /**
+     * Stops passing new connections to the given instance. Connections in
+     * flight are finished.
+     *
+     * @param serviceID Instance to remove.
+     */
+    public void removeInstance(UUID serviceID){
+        backends.removeIf((backend)->backend.serviceID.equals(serviceID));
+    }
+
+    @Override
+    public void run()
+    {
+        while(isAlive)
+        {
+            try{
+                final Socket clientSocket=serverSocket.accept();
+                connections.increment();
+                if(!PIPE_PERMITS.tryAcquire(THREADS_PER_CONNECTION))
+                {
+                    reject(clientSocket,"too many connections in progress");
+                    continue;
+                }
+                try{
+                    PIPE_EXECUTOR.execute(()->proxy(clientSocket));
+                }catch(RejectedExecutionException e){
+                    PIPE_PERMITS.release(THREADS_PER_CONNECTION);
+                    reject(clientSocket,"too many connections in progress");
+                }
+            }catch(IOException e){
+                if(isAlive)
+                    System.out.println("[Error]: Sidecar of "+serviceType+" failed to accept: "+e);
+            }
+        }
+    }
+
+    private void reject(Socket clientSocket,String reason)
+    {
+        rejected.increment();
+        System.out.println("[Error]: Sidecar of "+serviceType+" rejected connection due to: "+reason);
+        try{
+            clientSocket.close();
+        }catch(IOException e){
+            // Client is gone anyway
+        }
+    }
+
+    /**
+     * Connects client to the least loaded instance and copies data both
+     * ways until instance closes the connection. Releases pipe permits 
+     * acquired for the connection.
+     */
+    private void proxy(Socket clientSocket)
+    {
+        Backend backend=null;
+        Socket instanceSocket=null;
+        int heldPermits=THREADS_PER_CONNECTION;
+        try(clientSocket){
+            // Instance which refused connection is skipped, next one is tried
+            for(int attempt=0;attempt<backends.size()&&instanceSocket==null;attempt++)
+            {
+                backend=selectBackend(backend);
+                if(backend==null)
+                    break;
+                try{
+                    instanceSocket=new Socket(InetAddress.getLoopbackAddress(),backend.port);
+                }catch(IOException e){
+                    backend.inFlight.decrementAndGet();
+                }
+            }
+            if(instanceSocket==null)
+            {
+                rejected.increment();
+                System.out.println("[Error]: Sidecar of "+serviceType+" has no reachable instance");
+                return;
+            }
+            try(Socket connectedInstance=instanceSocket){
+                PIPE_EXECUTOR.execute(()->{
+                    try{
+                        copy(clientSocket.getInputStream(),connectedInstance.getOutputStream());
+                        connectedInstance.shutdownOutput();
+                    }catch(IOException e){
+                        // Connection was closed by the other side
+                    }finally{
+                        PIPE_PERMITS.release();
+                    }
+                });
+                heldPermits--;
+                copy(connectedInstance.getInputStream(),clientSocket.getOutputStream());
+            }catch(RejectedExecutionException e){
+                rejected.increment();
+                System.out.println("[Error]: Sidecar of "+serviceType+" rejected connection due to: no pipe thread available");
+            }finally{
+                backend.inFlight.decrementAndGet();
+            }
+        }catch(IOException e){
+            // Client or instance dropped the connection
+        }finally{
+            PIPE_PERMITS.release(heldPermits);
+        }
+    }
+
+    /**
+     * Picks instance with the fewest connections in flight and counts new
+     * connection to it.
+     *
+     * @param skipped Instance which refused previous attempt or null.
+     *
+     * @return Selected instance or null if there is none.
+     */
+    private Backend selectBackend(Backend skipped)
+    {
+        final Object[] current=backends.toArray();
+        if(current.length==0)
+            return null;
+        final int start=Math.floorMod(rotation.getAndIncrement(),current.length);
+        Backend selected=null;
+        for(int i=0;i<current.length;i++)
+        {
+            final Backend backend=(Backend)current[(start+i)%current.length];
+            if(backend!=skipped&&(selected==null||backend.inFlight.get()<selected.inFlight.get()))
+                selected=backend;
+        }
+        if(selected!=null)
+            selected.inFlight.incrementAndGet();
+        return selected;
+    }
+
+    private static void copy(InputStream from,OutputStream to) throws IOException
+    {
+        final byte[] buffer=new byte[BUFFER_SIZE];
+        int read;
+        while((read=from.read(buffer))!=-1)
+        {
+            to.write(buffer,0,read);
+            to.flush();
+        }
+    }
+
+    public int getPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    public int getInstances(){
+        return backends.size();
+    }
+
+    /**
+     * @return Number of connections in flight to all instances.
+     */
+    public int getInFlight()
+    {
+        int inFlight=0;
+        for(Backend backend:backends)
+            inFlight+=backend.inFlight.get();
+        return inFlight;
+    }
+
+    public long getConnections(){
+        return connections.sum();
+    }
+
+    /**
+     * @return Number of connections which no instance could take.
+     */
+    public long getRejected(){
+        return rejected.sum();
+    }
+
+    /**
+     * Stops accepting connections.
+     *
+     * @throws IOException If failed to close socket.
+     */
+    public void close() throws IOException
+    {
+        isAlive=false;
+        serverSocket.close();
+    }
+
+    private static final class Backend{
+        public final UUID serviceID;
+        public final int port;
+        public final AtomicInteger inFlight;
+
+        public Backend(UUID serviceID,int port){
+            this.serviceID=serviceID;
+            this.port=port;
+            inFlight=new AtomicInteger();
+        }
+    }
+}
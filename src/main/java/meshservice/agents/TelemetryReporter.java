@@ -0,0 +1,159 @@
+package meshservice.agents;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import meshservice.communication.Connection;
+import meshservice.communication.JsonBuilder;
+import meshservice.communication.RequestException;
+import meshservice.config.AgentConfig;
+import meshservice.services.Service;
+
+/**
+ * Samples resource usage of the agent process and its service instances
+ * every second and sends it to the manager. Each sample is sent over its own
+ * short-lived connection, so it never interleaves with requests the manager
+ * sends over the agent connection.
+ *
+ * @author ArtiFixal
+ */
+public class TelemetryReporter{
+
+    /**
+     * Time in milliseconds between samples.
+     */
+    public static final long SAMPLE_INTERVAL=1000;
+
+    /**
+     * Time in milliseconds after which sample which wasn't delivered is
+     * dropped, so it doesn't delay the next one.
+     */
+    private static final int SEND_TIMEOUT=(int)SAMPLE_INTERVAL;
+
+    private final Agent agent;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Total GC time in milliseconds at the previous sample.
+     */
+    private long lastGcTime;
+
+    /**
+     * Counters of instances at the previous sample, where: <br>
+     * Key - service ID <br>
+     * Value - processed requests and their total latency
+     */
+    private HashMap<UUID,long[]> lastCounters;
+
+    public TelemetryReporter(Agent agent){
+        this.agent=agent;
+        lastCounters=new HashMap<>();
+        lastGcTime=getTotalGcTime();
+        scheduler=Executors.newSingleThreadScheduledExecutor((task)->{
+            final Thread reporterThread=new Thread(task,"TelemetryReporter");
+            reporterThread.setDaemon(true);
+            return reporterThread;
+        });
+        scheduler.scheduleAtFixedRate(this::report,SAMPLE_INTERVAL,SAMPLE_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void report()
+    {
+        final AgentConfig config=agent.getConfig();
+        try(Socket managerSocket=new Socket()){
+            final JsonBuilder sample=createSample(agent.getTelemetryServices());
+            managerSocket.connect(new InetSocketAddress(config.getManagerHost(),
+                    config.getManagerPort()),SEND_TIMEOUT);
+            managerSocket.setSoTimeout(SEND_TIMEOUT);
+            try(Connection managerConnection=new Connection(managerSocket)){
+                managerConnection.sendRequest(sample);
+            }
+        }catch(IOException|RequestException e){
+            System.out.println("[Error]: Failed to report telemetry due to: "+e);
+        }catch(RuntimeException e){
+            // Scheduler would stop reporting after uncaught exception
+            System.out.println("[Error]: Failed to sample telemetry due to: "+e);
+        }
+    }
+
+    /**
+     * Creates telemetry request of the current sample.
+     *
+     * @param services Instances which load to include.
+     *
+     * @return Request to send.
+     */
+    private JsonBuilder createSample(Collection<Service> services)
+    {
+        final OperatingSystemMXBean os=ManagementFactory.getOperatingSystemMXBean();
+        double cpuLoad=-1;
+        long openFiles=-1;
+        if(os instanceof com.sun.management.OperatingSystemMXBean systemOs)
+            cpuLoad=systemOs.getProcessCpuLoad();
+        if(os instanceof com.sun.management.UnixOperatingSystemMXBean unixOs)
+            openFiles=unixOs.getOpenFileDescriptorCount();
+        if(cpuLoad<0)
+        {
+            final double loadAverage=os.getSystemLoadAverage();
+            cpuLoad=loadAverage<0?0:Math.min(loadAverage/os.getAvailableProcessors(),1);
+        }
+        final MemoryUsage heap=ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final long gcTime=getTotalGcTime();
+        final HashMap<String,Object> instances=new HashMap<>();
+        final HashMap<UUID,long[]> counters=new HashMap<>();
+        for(Service service:services)
+        {
+            final long[] current=new long[]{service.getProcessedRequests(),service.getTotalLatency()};
+            final long[] previous=lastCounters.getOrDefault(service.getServiceID(),new long[2]);
+            final long requests=current[0]-previous[0];
+            final HashMap<String,Number> instance=new HashMap<>();
+            instance.put("inFlight",service.getInFlight());
+            instance.put("requests",requests);
+            // Average latency of requests finished since the previous sample
+            instance.put("latency",requests==0?0:(current[1]-previous[1])/requests);
+            instances.put(service.getServiceID().toString(),instance);
+            counters.put(service.getServiceID(),current);
+        }
+        final JsonBuilder sample=new JsonBuilder("agentTelemetry")
+                .addField("type","request")
+                .addField("agent",agent.getConfig().getAgentName())
+                .addField("serviceID",agent.getServiceID())
+                .addField("cpuLoad",cpuLoad)
+                .addField("heapUsed",heap.getUsed())
+                .addField("heapMax",heap.getMax())
+                .addField("gcTime",gcTime-lastGcTime)
+                .addField("threads",ManagementFactory.getThreadMXBean().getThreadCount())
+                .addField("openFiles",openFiles)
+                .addField("instances",instances);
+        lastGcTime=gcTime;
+        lastCounters=counters;
+        return sample;
+    }
+
+    private static long getTotalGcTime()
+    {
+        long total=0;
+        for(GarbageCollectorMXBean collector:ManagementFactory.getGarbageCollectorMXBeans())
+            total+=Math.max(collector.getCollectionTime(),0);
+        return total;
+    }
+
+    /**
+     * Stops sending samples.
+     */
+    public void close(){
+        scheduler.shutdown();
+    }
+}
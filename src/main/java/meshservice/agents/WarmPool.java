@@ -0,0 +1,217 @@
+package meshservice.agents;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import meshservice.communication.RequestException;
+import meshservice.services.Service;
+
+/**
+ * Pool of idle, already started service instances. Starting a service binds
+ * its socket, opens its database connection and starts its thread, so
+ * instances are started in the background ahead of time and handed out
+ * when agent is asked to run one. Taken instances are replaced in the
+ * background.
+ *
+ * @author ArtiFixal
+ */
+public class WarmPool{
+
+    /**
+     * Time in milliseconds after which idle instance is replaced, so it
+     * doesn't keep connections which server may have already dropped.
+     */
+    public static final long MAX_IDLE_TIME=1800000;
+
+    /**
+     * Number of threads starting instances in the background.
+     */
+    private static final int REFILL_THREADS=2;
+
+    /**
+     * Creates instances of the given service type.
+     */
+    @FunctionalInterface
+    public interface ServiceFactory{
+        Service create(String serviceType) throws IOException,RequestException,SQLException;
+    }
+
+    /**
+     * Number of idle instances kept per service type.
+     */
+    private final int size;
+
+    private final ServiceFactory factory;
+
+    /**
+     * Idle instances, where: <br>
+     * Key - service type <br>
+     * Value - instances ready to be handed out
+     */
+    private final ConcurrentHashMap<String,ConcurrentLinkedQueue<IdleService>> idle;
+
+    /**
+     * Instances being started, where: <br>
+     * Key - service type <br>
+     * Value - number of instances being started
+     */
+    private final ConcurrentHashMap<String,AtomicInteger> starting;
+
+    private final ExecutorService refillExecutor;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    private volatile boolean isClosed;
+
+    public WarmPool(int size,ServiceFactory factory){
+        this.size=size;
+        this.factory=factory;
+        idle=new ConcurrentHashMap<>();
+        starting=new ConcurrentHashMap<>();
+        refillExecutor=Executors.newFixedThreadPool(REFILL_THREADS,(task)->{
+            final Thread refillThread=new Thread(task,"WarmPoolRefill");
+            refillThread.setDaemon(true);
+            return refillThread;
+        });
+        hits=new LongAdder();
+        misses=new LongAdder();
+    }
+
+    /**
+     * Starts idle instances of given service types in the background.
+     *
+     * @param serviceTypes Types to keep instances of.
+     */
+    public void fill(String... serviceTypes)
+    {
+        for(String serviceType:serviceTypes)
+            refill(serviceType);
+    }
+
+    /**
+     * Takes idle instance of given service type and starts its replacement
+     * in the background.
+     *
+     * @param serviceType Type of instance to take.
+     *
+     * @return Running instance or null if there is none idle.
+     */
+    public Service take(String serviceType)
+    {
+        final ConcurrentLinkedQueue<IdleService> instances=idle.get(serviceType);
+        Service taken=null;
+        if(instances!=null)
+        {
+            final long now=System.currentTimeMillis();
+            IdleService instance;
+            while(taken==null&&(instance=instances.poll())!=null)
+            {
+                if(now-instance.idleSince<MAX_IDLE_TIME)
+                    taken=instance.service;
+                else
+                    close(instance.service);
+            }
+        }
+        if(taken==null)
+            misses.increment();
+        else
+            hits.increment();
+        refill(serviceType);
+        return taken;
+    }
+
+    /**
+     * Starts as many instances of given type as are missing in the pool.
+     */
+    private void refill(String serviceType)
+    {
+        if(size<=0||isClosed)
+            return;
+        final ConcurrentLinkedQueue<IdleService> instances=idle.computeIfAbsent(serviceType,
+                (type)->new ConcurrentLinkedQueue<>());
+        final AtomicInteger pending=starting.computeIfAbsent(serviceType,(type)->new AtomicInteger());
+        while(true)
+        {
+            final int current=pending.get();
+            if(instances.size()+current>=size)
+                return;
+            if(pending.compareAndSet(current,current+1))
+                refillExecutor.execute(()->startIdle(serviceType,instances,pending));
+        }
+    }
+
+    private void startIdle(String serviceType,ConcurrentLinkedQueue<IdleService> instances,
+            AtomicInteger pending)
+    {
+        try{
+            final Service service=factory.create(serviceType);
+            if(isClosed)
+                close(service);
+            else
+                instances.add(new IdleService(service,System.currentTimeMillis()));
+        }catch(IOException|RequestException|SQLException e){
+            // Not retried here, next take will try again
+            System.out.println("[Error]: Failed to start idle "+serviceType+" instance due to: "+e);
+        }finally{
+            pending.decrementAndGet();
+        }
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of idle instances of all types.
+     */
+    public int getIdleInstances()
+    {
+        int count=0;
+        for(ConcurrentLinkedQueue<IdleService> instances:idle.values())
+            count+=instances.size();
+        return count;
+    }
+
+    /**
+     * Closes all idle instances and stops refilling the pool.
+     */
+    public void close()
+    {
+        isClosed=true;
+        refillExecutor.shutdown();
+        idle.values().forEach((instances)->{
+            IdleService instance;
+            while((instance=instances.poll())!=null)
+                close(instance.service);
+        });
+    }
+
+    private void close(Service service)
+    {
+        try{
+            service.closeService();
+        }catch(IOException e){
+            System.out.println("[Error]: Failed to close idle service: "+e);
+        }
+    }
+
+    private static final class IdleService{
+        public final Service service;
+        public final long idleSince;
+
+        public IdleService(Service service,long idleSince){
+            this.service=service;
+            this.idleSince=idleSince;
+        }
+    }
+}
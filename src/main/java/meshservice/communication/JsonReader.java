@@ -73,11 +73,7 @@ public class JsonReader{
      */
     public boolean hasField(String field)
     {
-        try{
-            return isNull(getNode(field));
-        }catch(RequestException e){
-            return false;
-        }
+        return !isNull(requestNode.get(field));
     }
 
     /**
@@ -220,7 +216,8 @@ public class JsonReader{
             throws RequestException,IllegalArgumentException
     {
         T number=readNumber(fieldName,classToRead);
-        if(number.intValue()<0)
+        // longValue() so that numbers beyond int range don't wrap negative
+        if(number.longValue()<0)
             throw new RequestException(PREFIX+fieldName+" have to be a positive");
         return number;
     }
@@ -17,14 +17,24 @@ public class ServiceHostport extends Hostport{
      */
     public String[] additionalResponseFields;
     
+    /**
+     * Fields which request may contain.
+     */
+    public String[] requestOptionalFields;
+    
     public ServiceHostport(String[] requestRequiredFields,String[] additionalResponseFields,int port){
         this(requestRequiredFields,additionalResponseFields,"localhost",port);
     }
     
     public ServiceHostport(String[] requestRequiredFields,String[] additionalResponseFields,String host,int port){
+        this(requestRequiredFields,additionalResponseFields,new String[0],host,port);
+    }
+    
+    public ServiceHostport(String[] requestRequiredFields,String[] additionalResponseFields,String[] requestOptionalFields,String host,int port){
         super(host,port);
         this.requestRequiredFields=requestRequiredFields;
         this.additionalResponseFields=additionalResponseFields;
+        this.requestOptionalFields=requestOptionalFields;
     }
 
     public String[] getRequestRequiredFields(){
@@ -34,4 +44,8 @@ public class ServiceHostport extends Hostport{
     public String[] getAdditionalResponseFields(){
         return additionalResponseFields;
     }
+
+    public String[] getRequestOptionalFields(){
+        return requestOptionalFields;
+    }
 }
@@ -0,0 +1,98 @@
+package meshservice.communication;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import meshservice.ServiceStatus;
+
+/**
+ * Class representing single service instance entry of the manager registry.
+ *
+ * @author ArtiFixal
+ */
+@JsonAutoDetect(getterVisibility=JsonAutoDetect.Visibility.NONE)
+public class ServiceInstanceInfo{
+    @JsonProperty("serviceID")
+    private final String serviceID;
+    @JsonProperty("service")
+    private final String serviceType;
+    @JsonProperty("agent")
+    private final String agentName;
+    @JsonProperty("host")
+    private final String host;
+    @JsonProperty("port")
+    private final int port;
+    @JsonProperty("status")
+    private final int statusCode;
+    @JsonProperty("requiredFields")
+    private final String[] requiredFields;
+    @JsonProperty("additionalFields")
+    private final String[] additionalFields;
+    @JsonProperty("optionalFields")
+    private final String[] optionalFields;
+    @JsonProperty("weight")
+    private final int weight;
+
+    public ServiceInstanceInfo(String serviceID,String serviceType,String agentName,
+            String host,int port,int statusCode,String[] requiredFields,
+            String[] additionalFields,String[] optionalFields)
+    {
+        this(serviceID,serviceType,agentName,host,port,statusCode,requiredFields,
+                additionalFields,optionalFields,1);
+    }
+
+    @JsonCreator
+    public ServiceInstanceInfo(@JsonProperty("serviceID") String serviceID,
+            @JsonProperty("service") String serviceType,
+            @JsonProperty("agent") String agentName,
+            @JsonProperty("host") String host,
+            @JsonProperty("port") int port,
+            @JsonProperty("status") int statusCode,
+            @JsonProperty("requiredFields") String[] requiredFields,
+            @JsonProperty("additionalFields") String[] additionalFields,
+            @JsonProperty("optionalFields") String[] optionalFields,
+            @JsonProperty("weight") int weight)
+    {
+        this.serviceID=serviceID;
+        this.serviceType=serviceType;
+        this.agentName=agentName;
+        this.host=host;
+        this.port=port;
+        this.statusCode=statusCode;
+        this.requiredFields=requiredFields;
+        this.additionalFields=additionalFields;
+        this.optionalFields=optionalFields==null?new String[0]:optionalFields;
+        this.weight=Math.max(weight,1);
+    }
+
+    public String getServiceID(){
+        return serviceID;
+    }
+
+    public String getServiceType(){
+        return serviceType;
+    }
+
+    public String getAgentName(){
+        return agentName;
+    }
+
+    public ServiceStatus getStatus(){
+        return ServiceStatus.interperFromNumber(statusCode);
+    }
+
+    /**
+     * @return Number of running instances of the type reachable under the
+     * same hostport, which load is shared by.
+     */
+    public int getWeight(){
+        return weight;
+    }
+
+    /**
+     * @return Hostport under which this instance serves requests.
+     */
+    public ServiceHostport toServiceHostport(){
+        return new ServiceHostport(requiredFields,additionalFields,optionalFields,host,port);
+    }
+}
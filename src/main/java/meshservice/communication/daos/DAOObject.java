@@ -1,5 +1,7 @@
 package meshservice.communication.daos;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -10,23 +12,50 @@ import java.util.stream.Stream;
 import meshservice.config.DBConfig;
 
 /**
- * Class used as base for other DAO classes.
+ * Class used as base for other DAO classes. Each operation leases connection
+ * from the {@link DBConfig} pool and returns it once finished, unless DAO
+ * was given its own connection.
  * 
  * @author ArtiFixal
  */
 public abstract class DAOObject implements AutoCloseable{
 	
 	/**
-	 * Connection to the DB.
+	 * Connection given to this DAO or null if connections are leased from
+	 * the pool.
 	 */
-	protected final Connection con;
+	private final Connection ownConnection;
 
 	public DAOObject() throws SQLException{
-		con=DBConfig.getInstance().createConnection();
+		ownConnection=null;
 	}
 
 	public DAOObject(Connection con){
-		this.con=con;
+		ownConnection=con;
+	}
+	
+	/**
+	 * Gets connection for a single operation. Returned connection has to be
+	 * closed once operation is finished.
+	 * 
+	 * @return Connection to the DB.
+	 * @throws SQLException If no connection could be leased.
+	 */
+	protected Connection lease() throws SQLException
+	{
+		if(ownConnection==null)
+			return DBConfig.getInstance().leaseConnection();
+		// Closing given connection is left to the DAO close
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+			new Class<?>[]{Connection.class},(proxy,method,args)->{
+				if(method.getName().equals("close"))
+					return null;
+				try{
+					return method.invoke(ownConnection,args);
+				}catch(InvocationTargetException e){
+					throw e.getCause();
+				}
+			});
 	}
 	
 	/**
@@ -42,9 +71,28 @@ public abstract class DAOObject implements AutoCloseable{
 	public <T extends Number> T getSingleNumber(String sql,
 			Class<T> numberTypeToReturn) throws SQLException
 	{
-		Statement count=con.createStatement();
+		try(Connection con=lease()){
+			return getSingleNumber(con,sql,numberTypeToReturn);
+		}
+	}
+	
+	/**
+	 * Selects single number from executed query.
+	 * 
+	 * @param <T> Returned number type
+	 * @param con Connection on which to execute query.
+	 * @param sql Selection query of wanted number.
+	 * @param numberTypeToReturn What type to return
+	 * 
+	 * @return Selected number or null if there is no result.
+	 * @throws SQLException Any error occurred during the query.
+	 */
+	public <T extends Number> T getSingleNumber(Connection con,String sql,
+			Class<T> numberTypeToReturn) throws SQLException
+	{
 		T value;
-		try(ResultSet result=count.executeQuery(sql)) {
+		try(Statement count=con.createStatement();
+			ResultSet result=count.executeQuery(sql)) {
 			if(!result.isBeforeFirst())
 				return null;
 			result.next();
@@ -69,17 +117,20 @@ public abstract class DAOObject implements AutoCloseable{
 	/**
 	 * Retrives from database ID of last inserted record.
 	 * 
+	 * @param con Connection on which record was inserted.
+	 * 
 	 * @return Last inserted ID.
 	 * @throws SQLException Any error occurred during the query.
 	 */
-	public long getLastInsertedId() throws SQLException
+	public long getLastInsertedId(Connection con) throws SQLException
 	{
-		return getSingleNumber("SELECT last_insert_id();",Long.class);
+		return getSingleNumber(con,"SELECT last_insert_id();",Long.class);
 	}
 
 	/**
 	 * Selects element from given DB table by given ID.
 	 * 
+	 * @param con Connection on which to execute query.
 	 * @param tableColumns Which columns to select.
 	 * @param tableName From where to select.
 	 * @param elementID ID of element to select data from.
@@ -87,7 +138,7 @@ public abstract class DAOObject implements AutoCloseable{
 	 * @return Select result.
 	 * @throws SQLException Any error occurred during the query.
 	 */
-	public ResultSet getElementByID(String tableColumns,String tableName,long elementID) throws SQLException
+	public ResultSet getElementByID(Connection con,String tableColumns,String tableName,long elementID) throws SQLException
 	{
 		try(Statement select=con.createStatement()){
 			return select.executeQuery("SELECT "+tableColumns+" FROM "+tableName+" WHERE id="+elementID);
@@ -97,13 +148,14 @@ public abstract class DAOObject implements AutoCloseable{
 	/**
 	 * Selects all available elements from given DB table.
 	 * 
+	 * @param con Connection on which to execute query.
 	 * @param fieldsName Which columns to select.
 	 * @param tableName From where to select.
 	 * 
 	 * @return Select result.
 	 * @throws SQLException Any error occurred during the query.
 	 */
-	public ResultSet getAllElements(String fieldsName,String tableName) throws SQLException
+	public ResultSet getAllElements(Connection con,String fieldsName,String tableName) throws SQLException
 	{
 		try(Statement select=con.createStatement()){
 			return select.executeQuery("SELECT "+fieldsName+" FROM "+tableName);
@@ -113,6 +165,7 @@ public abstract class DAOObject implements AutoCloseable{
 	/**
 	 * Selects all elements matching condition from given DB table.
 	 * 
+	 * @param con Connection on which to execute query.
 	 * @param fieldsName Which columns to select.
 	 * @param tableName From where to select.
 	 * @param condition What to select.
@@ -120,9 +173,9 @@ public abstract class DAOObject implements AutoCloseable{
 	 * @return Select result.
 	 * @throws SQLException Any error occurred during the query.
 	 */
-	public ResultSet getAllElements(String fieldsName,String tableName,String condition) throws SQLException
+	public ResultSet getAllElements(Connection con,String fieldsName,String tableName,String condition) throws SQLException
 	{
-		return getAllElements(fieldsName,tableName+" WHERE "+condition);
+		return getAllElements(con,fieldsName,tableName+" WHERE "+condition);
 	}
 
 	/**
@@ -209,6 +262,7 @@ public abstract class DAOObject implements AutoCloseable{
 	/**
 	 * Creates ready to execute update statement.
 	 * 
+	 * @param con Connection on which statement will be executed.
 	 * @param tableName Where to update.
 	 * @param condition What to match.
 	 * @param fieldsToUpdate What to update.
@@ -216,7 +270,7 @@ public abstract class DAOObject implements AutoCloseable{
 	 * @return Ready to execute update statement.
 	 * @throws SQLException Any error occured during creation.
 	 */
-	public PreparedStatement createUpdateStatement(String tableName,String condition,
+	public PreparedStatement createUpdateStatement(Connection con,String tableName,String condition,
 			OptionalDBField... fieldsToUpdate) throws SQLException
 	{
 		PreparedStatement statement=con.prepareStatement(createUpdateQuery(tableName,
@@ -236,18 +290,21 @@ public abstract class DAOObject implements AutoCloseable{
 	 */
 	public boolean deleteByID(String tableName,long elementID) throws SQLException
 	{
-		try(Statement delete=con.createStatement()){
+		try(Connection con=lease();
+			Statement delete=con.createStatement()){
 			return delete.executeUpdate("DELETE FROM "+tableName+" WHERE id="+elementID)==1;
 		}
 	}
 
 	/**
-	 * Closes connection with DB.
+	 * Closes connection given to this DAO. Leased connections are already
+	 * returned to the pool.
 	 *
 	 * @throws SQLException Any error occured during connection close try.
 	 */
 	@Override
 	public void close() throws SQLException {
-		con.close();
+		if(ownConnection!=null)
+			ownConnection.close();
 	}
 }
@@ -35,10 +35,11 @@ public class PostDAO extends DAOObject{
      */
     public long insertPost(long ownerID,String content) throws SQLException
     {
-        try(PreparedStatement insertStatement=con.prepareStatement("INSERT INTO posts (ownerID, content) VALUES (?, ?)")){
+        try(Connection con=lease();
+                PreparedStatement insertStatement=con.prepareStatement("INSERT INTO posts (ownerID, content) VALUES (?, ?)")){
             insertStatement.setLong(1,ownerID);
             insertStatement.setString(2,content);
-            return insertStatement.executeUpdate()==1?getLastInsertedId():-1;
+            return insertStatement.executeUpdate()==1?getLastInsertedId(con):-1;
         }
     }
 
@@ -54,7 +55,8 @@ public class PostDAO extends DAOObject{
     public ArrayList<Post> getRecentPosts(long ownerID) throws SQLException
     {
         ArrayList<Post> recentPosts=new ArrayList<>();
-        try(PreparedStatement selectStatement=con.prepareStatement("SELECT * FROM posts WHERE ownerID=? ORDER BY created DESC LIMIT 10")){
+        try(Connection con=lease();
+                PreparedStatement selectStatement=con.prepareStatement("SELECT * FROM posts WHERE ownerID=? ORDER BY created DESC LIMIT 10")){
             selectStatement.setLong(1,ownerID);
             ResultSet resultSet=selectStatement.executeQuery();
             while(resultSet.next())
@@ -33,16 +33,19 @@ public class UserDAO extends DAOObject{
      */
     public long insertUser(String login,byte[] publicKey) throws SQLException
     {
-        PreparedStatement existanceCheck=con.prepareStatement("SELECT id FROM users WHERE username=?");
-        existanceCheck.setString(1,login);
-        if(!existanceCheck.executeQuery().next())
+        try(Connection con=lease();
+                PreparedStatement existanceCheck=con.prepareStatement("SELECT id FROM users WHERE username=?"))
         {
-            try(PreparedStatement insertStatement=con.prepareStatement("INSERT INTO users VALUES(NULL,?,?)"))
+            existanceCheck.setString(1,login);
+            if(!existanceCheck.executeQuery().next())
             {
-                insertStatement.setString(1,login);
-                insertStatement.setBytes(2,publicKey);
-                insertStatement.execute();
-                return getLastInsertedId();
+                try(PreparedStatement insertStatement=con.prepareStatement("INSERT INTO users VALUES(NULL,?,?)"))
+                {
+                    insertStatement.setString(1,login);
+                    insertStatement.setBytes(2,publicKey);
+                    insertStatement.execute();
+                    return getLastInsertedId(con);
+                }
             }
         }
         return -1;
@@ -59,13 +62,16 @@ public class UserDAO extends DAOObject{
      */
     public User findUserByLogin(String login) throws SQLException
     {
-        PreparedStatement selectUser=con.prepareStatement("SELECT id,publicKey FROM users WHERE username=?");
-        selectUser.setString(1,login);
-        ResultSet user=selectUser.executeQuery();
-        if(user.next())
+        try(Connection con=lease();
+                PreparedStatement selectUser=con.prepareStatement("SELECT id,publicKey FROM users WHERE username=?"))
         {
-            byte[] key=user.getBytes(2);
-            return new User(user.getLong(1),login,key);
+            selectUser.setString(1,login);
+            ResultSet user=selectUser.executeQuery();
+            if(user.next())
+            {
+                byte[] key=user.getBytes(2);
+                return new User(user.getLong(1),login,key);
+            }
         }
         return null;
     }
@@ -83,15 +89,20 @@ public class UserDAO extends DAOObject{
      */
     public boolean changeKey(long userID,byte[] oldKey,byte[] newKey) throws SQLException
     {
-        ResultSet user=getElementByID("publicKey","users",userID);
-        if(user.next())
+        try(Connection con=lease())
         {
-            byte[] currentKey=user.getBytes(1);
-            if(currentKey==oldKey)
+            ResultSet user=getElementByID(con,"publicKey","users",userID);
+            if(user.next())
             {
-                PreparedStatement updatePassword=con.prepareCall(createUpdateQuery("users","id="+userID,"publicKey"));
-                updatePassword.setBytes(1,newKey);
-                return updatePassword.executeUpdate()==1;
+                byte[] currentKey=user.getBytes(1);
+                if(currentKey==oldKey)
+                {
+                    try(PreparedStatement updatePassword=con.prepareCall(createUpdateQuery("users","id="+userID,"publicKey")))
+                    {
+                        updatePassword.setBytes(1,newKey);
+                        return updatePassword.executeUpdate()==1;
+                    }
+                }
             }
         }
         return false;
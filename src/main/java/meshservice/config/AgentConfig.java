@@ -2,6 +2,7 @@ package meshservice.config;
 
 import java.io.File;
 import java.io.IOException;
+import meshservice.storage.FileCache;
 
 /**
  * Class which stores {@code Agent} config.
@@ -10,6 +11,12 @@ import java.io.IOException;
  */
 public class AgentConfig{
 
+    /**
+     * Number of idle instances per service type kept by default.
+     */
+    public static final int DEFAULT_WARM_POOL_SIZE=1;
+
+
     /**
      * Agent name.
      */
@@ -30,12 +37,42 @@ public class AgentConfig{
      */
     private int managerPort;
 
+    /**
+     * Number of idle, already started instances kept per service type.
+     */
+    private int warmPoolSize;
+
+    /**
+     * Max number of bytes held by the file cache.
+     */
+    private long fileCacheMaxBytes;
+
+    /**
+     * Max size of a single file held by the file cache.
+     */
+    private long fileCacheMaxEntryBytes;
+
     public AgentConfig(String path) throws IOException,ConfigException{
         ConfigIO config=new ConfigIO(new File(path));
         agentName=config.readOptionValue("<agentName>");
         agentPort=readInt(config,"<agentPort>");
         managerHost=config.readOptionValue("<managerHost>");
         managerPort=readInt(config,"<managerPort>");
+        try{
+            warmPoolSize=readInt(config,"<warmPoolSize>");
+        }catch(OptionNotFoundException e){
+            warmPoolSize=DEFAULT_WARM_POOL_SIZE;
+        }
+        try{
+            fileCacheMaxBytes=readLong(config,"<fileCacheMaxBytes>");
+        }catch(OptionNotFoundException e){
+            fileCacheMaxBytes=FileCache.DEFAULT_MAX_BYTES;
+        }
+        try{
+            fileCacheMaxEntryBytes=readLong(config,"<fileCacheMaxEntryBytes>");
+        }catch(OptionNotFoundException e){
+            fileCacheMaxEntryBytes=FileCache.DEFAULT_MAX_ENTRY_BYTES;
+        }
     }
 
     public AgentConfig(String agentName,int agentPort,String managerHost,int managerPort){
@@ -43,6 +80,9 @@ public class AgentConfig{
         this.agentPort=agentPort;
         this.managerHost=managerHost;
         this.managerPort=managerPort;
+        warmPoolSize=DEFAULT_WARM_POOL_SIZE;
+        fileCacheMaxBytes=FileCache.DEFAULT_MAX_BYTES;
+        fileCacheMaxEntryBytes=FileCache.DEFAULT_MAX_ENTRY_BYTES;
     }
 
     public String getAgentName(){
@@ -61,6 +101,22 @@ public class AgentConfig{
         return managerPort;
     }
 
+    public int getWarmPoolSize(){
+        return warmPoolSize;
+    }
+
+    public void setWarmPoolSize(int warmPoolSize){
+        this.warmPoolSize=Math.max(warmPoolSize,0);
+    }
+
+    public long getFileCacheMaxBytes(){
+        return fileCacheMaxBytes;
+    }
+
+    public long getFileCacheMaxEntryBytes(){
+        return fileCacheMaxEntryBytes;
+    }
+
     /**
      * Reads int from given option.
      * 
@@ -81,4 +137,25 @@ public class AgentConfig{
                     config.getConfigFile().getPath());
         }
     }
+
+    /**
+     * Reads long from given option.
+     * 
+     * @param config File containing config.
+     * @param optionName Option to read from.
+     * 
+     * @return Option long value.
+     * 
+     * @throws IOException If any error occurred during read.
+     * @throws ConfigException If any config error occurred.
+     */
+    private long readLong(ConfigIO config,String optionName) throws IOException,ConfigException{
+        String stringVal=config.readOptionValue(optionName);
+        try{
+            return Long.parseLong(stringVal.trim());
+        }catch(NumberFormatException e){
+            throw new ConfigException("Malformed config format: "+optionName+" unreadable",
+                    config.getConfigFile().getPath());
+        }
+    }
 }
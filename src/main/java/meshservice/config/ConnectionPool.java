@@ -0,0 +1,398 @@
+package meshservice.config;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of DB connections shared by all DAOs of this process. Connections
+ * are leased for a single operation and returned to the pool once the
+ * leased connection is closed. Connections idle for a while are validated
+ * before being leased again and connections leased for too long are
+ * reported as leaked.
+ *
+ * @author ArtiFixal
+ */
+public class ConnectionPool{
+
+    /**
+     * Time in milliseconds after which idle connection is validated before
+     * it is leased.
+     */
+    public static final long VALIDATION_INTERVAL=5000;
+
+    /**
+     * Time in seconds given to the connection to prove it is valid.
+     */
+    public static final int VALIDATION_TIMEOUT=2;
+
+    /**
+     * Opens physical connections to the DB.
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory{
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+
+    /**
+     * Max number of open connections.
+     */
+    private final int maxSize;
+
+    /**
+     * Max time in milliseconds to wait for a free connection.
+     */
+    private final long maxWait;
+
+    /**
+     * Time in milliseconds after which leased connection is reported as
+     * leaked, 0 disables detection.
+     */
+    private final long leakThreshold;
+
+    private final ArrayDeque<IdleConnection> idle;
+    private final ReentrantLock lock;
+    private final Condition released;
+
+    /**
+     * Number of open connections, both idle and leased.
+     */
+    private int open;
+
+    /**
+     * Currently leased connections, where: <br>
+     * Key - lease <br>
+     * Value - when connection was leased in milliseconds
+     */
+    private final ConcurrentHashMap<Lease,Long> leased;
+
+    private final LongAdder leases;
+    private final LongAdder waitTime;
+    private final AtomicLong maxWaitTime;
+    private final LongAdder timeouts;
+    private final LongAdder invalidated;
+    private final LongAdder leaks;
+
+    public ConnectionPool(ConnectionFactory factory,int maxSize,long maxWait,long leakThreshold){
+        this.factory=factory;
+        this.maxSize=Math.max(maxSize,1);
+        this.maxWait=maxWait;
+        this.leakThreshold=leakThreshold;
+        idle=new ArrayDeque<>();
+        lock=new ReentrantLock();
+        released=lock.newCondition();
+        leased=new ConcurrentHashMap<>();
+        leases=new LongAdder();
+        waitTime=new LongAdder();
+        maxWaitTime=new AtomicLong();
+        timeouts=new LongAdder();
+        invalidated=new LongAdder();
+        leaks=new LongAdder();
+        if(leakThreshold>0)
+        {
+            final ScheduledExecutorService leakDetector=Executors.newSingleThreadScheduledExecutor((task)->{
+                final Thread detectorThread=new Thread(task,"ConnectionLeakDetector");
+                detectorThread.setDaemon(true);
+                return detectorThread;
+            });
+            final long period=Math.max(leakThreshold/2,1000);
+            leakDetector.scheduleAtFixedRate(this::detectLeaks,period,period,TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Leases connection from the pool. Leased connection has to be closed
+     * when operation is finished, which returns it to the pool.
+     *
+     * @return Leased connection.
+     *
+     * @throws SQLTimeoutException If no connection became free in time.
+     * @throws SQLException If failed to open new connection.
+     */
+    public Connection lease() throws SQLException
+    {
+        final long start=System.nanoTime();
+        while(true)
+        {
+            final IdleConnection free=takeOrReserve(start);
+            Connection physical;
+            if(free==null)
+            {
+                // Slot was reserved, connection is opened outside the lock
+                try{
+                    physical=factory.create();
+                }catch(SQLException|RuntimeException e){
+                    discard(null);
+                    throw e;
+                }
+            }
+            else
+            {
+                physical=free.connection;
+                if(System.currentTimeMillis()-free.idleSince>=VALIDATION_INTERVAL&&!isValid(physical))
+                {
+                    invalidated.increment();
+                    discard(physical);
+                    continue;
+                }
+            }
+            final long waited=System.nanoTime()-start;
+            leases.increment();
+            waitTime.add(waited);
+            maxWaitTime.accumulateAndGet(waited,Math::max);
+            final Lease lease=new Lease(physical);
+            leased.put(lease,System.currentTimeMillis());
+            return lease.proxy;
+        }
+    }
+
+    /**
+     * Takes idle connection or reserves slot for a new one, waiting if
+     * there is neither.
+     *
+     * @return Idle connection or null if slot for new one was reserved.
+     */
+    private IdleConnection takeOrReserve(long start) throws SQLException
+    {
+        lock.lock();
+        try{
+            long remaining=TimeUnit.MILLISECONDS.toNanos(maxWait)-(System.nanoTime()-start);
+            while(idle.isEmpty()&&open>=maxSize)
+            {
+                if(remaining<=0)
+                {
+                    timeouts.increment();
+                    throw new SQLTimeoutException("Timed out waiting for DB connection, all "
+                            +maxSize+" connections are leased");
+                }
+                try{
+                    remaining=released.awaitNanos(remaining);
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for DB connection");
+                }
+            }
+            if(!idle.isEmpty())
+                return idle.pollLast();
+            open++;
+            return null;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private boolean isValid(Connection connection)
+    {
+        try{
+            return connection.isValid(VALIDATION_TIMEOUT);
+        }catch(SQLException e){
+            return false;
+        }
+    }
+
+    /**
+     * Returns leased connection to the pool.
+     */
+    private void release(Lease lease)
+    {
+        leased.remove(lease);
+        final Connection physical=lease.physical;
+        try{
+            if(physical.isClosed())
+            {
+                discard(null);
+                return;
+            }
+            // Next lease has to start with clean state
+            if(!physical.getAutoCommit())
+            {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+        }catch(SQLException e){
+            discard(physical);
+            return;
+        }
+        lock.lock();
+        try{
+            idle.addLast(new IdleConnection(physical,System.currentTimeMillis()));
+            released.signal();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes given connection and frees its slot.
+     *
+     * @param physical Connection to close or null if slot was never used.
+     */
+    private void discard(Connection physical)
+    {
+        if(physical!=null)
+        {
+            try{
+                physical.close();
+            }catch(SQLException e){
+                // Connection is dropped anyway
+            }
+        }
+        lock.lock();
+        try{
+            open--;
+            released.signal();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private void detectLeaks()
+    {
+        final long now=System.currentTimeMillis();
+        leased.forEach((lease,leasedAt)->{
+            if(now-leasedAt>=leakThreshold&&!lease.reported)
+            {
+                lease.reported=true;
+                leaks.increment();
+                System.out.println("[Error]: DB connection leased for "+(now-leasedAt)
+                        +" ms by: "+lease.owner.getName()+", possible leak");
+            }
+        });
+    }
+
+    public long getLeases(){
+        return leases.sum();
+    }
+
+    /**
+     * @return Average time in nanoseconds spent waiting for connection.
+     */
+    public long getAverageWaitTime(){
+        final long count=leases.sum();
+        return count==0?0:waitTime.sum()/count;
+    }
+
+    /**
+     * @return Longest time in nanoseconds spent waiting for connection.
+     */
+    public long getMaxWaitTime(){
+        return maxWaitTime.get();
+    }
+
+    public long getTimeouts(){
+        return timeouts.sum();
+    }
+
+    /**
+     * @return Number of idle connections which failed validation.
+     */
+    public long getInvalidated(){
+        return invalidated.sum();
+    }
+
+    public long getLeaks(){
+        return leaks.sum();
+    }
+
+    public int getLeased(){
+        return leased.size();
+    }
+
+    public int getIdle()
+    {
+        lock.lock();
+        try{
+            return idle.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public int getMaxSize(){
+        return maxSize;
+    }
+
+    private static final class IdleConnection{
+        public final Connection connection;
+        public final long idleSince;
+
+        public IdleConnection(Connection connection,long idleSince){
+            this.connection=connection;
+            this.idleSince=idleSince;
+        }
+    }
+
+    /**
+     * Single lease of the physical connection. Given out connection is a
+     * proxy, so closing it returns physical connection to the pool and
+     * any later use of it fails instead of affecting next lease.
+     */
+    private final class Lease implements InvocationHandler{
+        public final Connection physical;
+        public final Connection proxy;
+
+        /**
+         * Thread which leased connection.
+         */
+        public final Thread owner;
+
+        public volatile boolean reported;
+        private volatile boolean isClosed;
+
+        public Lease(Connection physical){
+            this.physical=physical;
+            owner=Thread.currentThread();
+            proxy=(Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},this);
+        }
+
+        @Override
+        public Object invoke(Object proxy,Method method,Object[] args) throws Throwable
+        {
+            switch(method.getName()){
+                case "close" -> {
+                    if(!isClosed)
+                    {
+                        isClosed=true;
+                        release(this);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return isClosed;
+                }
+                case "equals" -> {
+                    return proxy==args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "Leased "+physical;
+                }
+            }
+            if(isClosed)
+                throw new SQLException("Connection was already returned to the pool");
+            try{
+                return method.invoke(physical,args);
+            }catch(InvocationTargetException e){
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -9,7 +9,8 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 
 /**
- * Singleton which stores database config.
+ * Singleton which stores database config and pool of connections to the
+ * database.
  *
  * @author ArtiFixal
  */
@@ -20,6 +21,10 @@ public class DBConfig{
      */
     private final static File DB_CONFIG=new File("dbConfig.cfg");
 
+    public static final int DEFAULT_POOL_SIZE=10;
+    public static final long DEFAULT_POOL_MAX_WAIT=5000;
+    public static final long DEFAULT_POOL_LEAK_THRESHOLD=30000;
+
     /**
      * Stores URL to DB.
      */
@@ -35,6 +40,11 @@ public class DBConfig{
      */
     private final String dbPass;
 
+    /**
+     * Connections shared by all DAOs.
+     */
+    private final ConnectionPool pool;
+
     /**
      * Singleton instance of config.
      */
@@ -49,9 +59,13 @@ public class DBConfig{
                 +configFile.readOptionValue("<dbName>");
         dbUser=configFile.readOptionValue("<dbUser>");
         dbPass=configFile.readOptionValue("<dbPass>");
+        pool=new ConnectionPool(this::createConnection,
+                (int)readOptionalNumber(configFile,"<poolMaxSize>",DEFAULT_POOL_SIZE),
+                readOptionalNumber(configFile,"<poolMaxWait>",DEFAULT_POOL_MAX_WAIT),
+                readOptionalNumber(configFile,"<poolLeakThreshold>",DEFAULT_POOL_LEAK_THRESHOLD));
     }
 
-    public static DBConfig getInstance()
+    public static synchronized DBConfig getInstance()
     {
         if(config==null)
         {
@@ -64,7 +78,9 @@ public class DBConfig{
                     if(DB_CONFIG.exists()){
                         return config;
                     }
-                    String configBuilder="<dbURL>127.0.0.1:3306\n<dbName>reibursements\n<dbUser>root\n<dbPass>\n";
+                    String configBuilder="<dbURL>127.0.0.1:3306\n<dbName>reibursements\n<dbUser>root\n<dbPass>\n"
+                            +"<poolMaxSize>"+DEFAULT_POOL_SIZE+"\n<poolMaxWait>"+DEFAULT_POOL_MAX_WAIT
+                            +"\n<poolLeakThreshold>"+DEFAULT_POOL_LEAK_THRESHOLD+"\n";
                     ConfigIO w=new ConfigIO(DB_CONFIG);
                     try{
                         w.writeEntireConfig(configBuilder);
@@ -103,4 +119,45 @@ public class DBConfig{
     public Connection createConnection() throws SQLException{
         return DriverManager.getConnection(dbUrl,dbUser,dbPass);
     }
+
+    /**
+     * Leases connection from the pool. Closing leased connection returns it
+     * to the pool.
+     *
+     * @return Leased connection to the DB.
+     * @throws SQLException If no connection became free in time or failed
+     * to open new one.
+     */
+    public Connection leaseConnection() throws SQLException{
+        return pool.lease();
+    }
+
+    public ConnectionPool getConnectionPool(){
+        return pool;
+    }
+
+    /**
+     * Reads optional non negative number.
+     *
+     * @param configFile File containing config.
+     * @param option Option to read.
+     * @param defaultValue Value used if option is missing or malformed.
+     *
+     * @return Option value.
+     * @throws IOException If any error occurred during read.
+     */
+    private static long readOptionalNumber(ConfigIO configFile,String option,long defaultValue) throws IOException
+    {
+        try{
+            final long number=Long.parseLong(configFile.readOptionValue(option).trim());
+            if(number>=0)
+                return number;
+        }catch(OptionNotFoundException e){
+            return defaultValue;
+        }catch(NumberFormatException e){
+            // Reported below
+        }
+        System.out.println("[Error]: Malformed DB option: "+option+", using default: "+defaultValue);
+        return defaultValue;
+    }
 }
@@ -0,0 +1,642 @@
+package meshservice.config;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Singleton which stores {@code APIGateway} config. All gateway options are
+ * optional and read from the API agent config, missing options fall back to
+ * defaults.
+ *
+ * @author ArtiFixal
+ */
+public class GatewayConfig{
+
+    /**
+     * File where gateway config is saved.
+     */
+    private final static File GATEWAY_CONFIG=new File("apiConfig.cfg");
+
+    /**
+     * Actions which are idempotent unless configured otherwise.
+     */
+    public static final String DEFAULT_IDEMPOTENT_ACTIONS="getPosts,getFile,listFiles,getUploadOffset";
+
+    /**
+     * Default max number of owners which posts are cached.
+     */
+    public static final int DEFAULT_POSTS_CACHE_SIZE=1024;
+
+    /**
+     * Default time in milliseconds after which cached posts expire.
+     */
+    public static final long DEFAULT_POSTS_CACHE_TTL=5000;
+
+    /**
+     * Default number of requests per second single client may send to single
+     * action.
+     */
+    public static final long DEFAULT_RATE_LIMIT=50;
+
+    /**
+     * Default number of requests single client may send to single action at
+     * once.
+     */
+    public static final long DEFAULT_RATE_BURST=100;
+
+    /**
+     * Actions which may be hedged unless configured otherwise.
+     */
+    public static final String DEFAULT_HEDGED_ACTIONS="login,getPosts,getFile";
+
+    /**
+     * Default minimal delay in milliseconds before request is hedged.
+     */
+    public static final long DEFAULT_HEDGE_MIN_DELAY=5;
+
+    /**
+     * Default max number of hedged requests per 100 requests.
+     */
+    public static final long DEFAULT_HEDGE_BUDGET=10;
+
+    /**
+     * Default number of consecutive failures which eject instance.
+     */
+    public static final long DEFAULT_BREAKER_FAILURES=5;
+
+    /**
+     * Default percent of failed requests which ejects instance.
+     */
+    public static final long DEFAULT_BREAKER_ERROR_RATE=50;
+
+    /**
+     * Default latency in milliseconds above which request counts as failed.
+     */
+    public static final long DEFAULT_BREAKER_SLOW_CALL=3000;
+
+    /**
+     * Default time in milliseconds for which instance is ejected.
+     */
+    public static final long DEFAULT_BREAKER_OPEN_TIME=2000;
+
+    /**
+     * Default host of the agent to which gateways connect.
+     */
+    public static final String DEFAULT_AGENT_HOST="localhost";
+
+    /**
+     * Default port of the agent to which gateways connect.
+     */
+    public static final int DEFAULT_AGENT_PORT=10000;
+
+    /**
+     * Default average number of requests in progress per gateway above which
+     * another gateway is started.
+     */
+    public static final long DEFAULT_GATEWAY_SCALE_UP_REQUESTS=32;
+
+    /**
+     * Traffic class of actions without configured class.
+     */
+    public static final String DEFAULT_TRAFFIC_CLASS="standard";
+
+    /**
+     * Traffic class of file transfers, which latency depends on the file
+     * size rather than on the instance health.
+     */
+    public static final String BULK_TRAFFIC_CLASS="bulk";
+
+    /**
+     * Traffic classes used unless configured otherwise, in format:
+     * {@code name=maxConcurrent/weight}.
+     */
+    public static final String DEFAULT_TRAFFIC_CLASSES="interactive=64/8,standard=32/4,bulk=8/1";
+
+    /**
+     * Classes of actions used unless configured otherwise.
+     */
+    public static final String DEFAULT_ACTION_CLASSES="login=interactive,register=interactive,"
+            +"getPosts=interactive,uploadFile=bulk,getFile=bulk,appendUpload=bulk";
+
+    /**
+     * Default max number of requests processed at once by all classes.
+     */
+    public static final long DEFAULT_GATEWAY_CONCURRENCY=64;
+
+    /**
+     * Default time in milliseconds request may wait for its class.
+     */
+    public static final long DEFAULT_BULKHEAD_QUEUE_TIMEOUT=5000;
+
+    /**
+     * Lowercase names of actions which can be safely coalesced.
+     */
+    private final Set<String> idempotentActions;
+
+    /**
+     * Max number of owners which posts are cached.
+     */
+    private final int postsCacheSize;
+
+    /**
+     * Time in milliseconds after which cached posts expire.
+     */
+    private final long postsCacheTTL;
+
+    /**
+     * Limit used by actions without own limit.
+     */
+    private final RateLimit defaultRateLimit;
+
+    /**
+     * Limits of specific actions, where: <br>
+     * Key - lowercase action name <br>
+     * Value - action limit
+     */
+    private final Map<String,RateLimit> actionRateLimits;
+
+    /**
+     * Lowercase names of actions which duplicates may be sent to another
+     * instance.
+     */
+    private final Set<String> hedgedActions;
+
+    /**
+     * Minimal delay in milliseconds before request is hedged.
+     */
+    private final long hedgeMinDelay;
+
+    /**
+     * Max number of hedged requests per 100 requests.
+     */
+    private final long hedgeBudget;
+
+    /**
+     * Number of consecutive failures which eject instance.
+     */
+    private final long breakerFailures;
+
+    /**
+     * Percent of failed requests which ejects instance.
+     */
+    private final long breakerErrorRate;
+
+    /**
+     * Latency in milliseconds above which request counts as failed, not
+     * applied to the bulk class.
+     */
+    private final long breakerSlowCall;
+
+    /**
+     * Time in milliseconds for which instance is ejected.
+     */
+    private final long breakerOpenTime;
+
+    /**
+     * Host of the agent to which gateways connect.
+     */
+    private final String agentHost;
+
+    /**
+     * Port of the agent to which gateways connect.
+     */
+    private final int agentPort;
+
+    /**
+     * Min number of gateways run by agent.
+     */
+    private final int gatewayMinInstances;
+
+    /**
+     * Max number of gateways run by agent.
+     */
+    private final int gatewayMaxInstances;
+
+    /**
+     * Average number of requests in progress per gateway above which another
+     * gateway is started.
+     */
+    private final long gatewayScaleUpRequests;
+
+    /**
+     * Traffic classes, where: <br>
+     * Key - class name <br>
+     * Value - class limit
+     */
+    private final Map<String,ClassLimit> trafficClasses;
+
+    /**
+     * Classes of actions, where: <br>
+     * Key - lowercase action name <br>
+     * Value - class name
+     */
+    private final Map<String,String> actionClasses;
+
+    /**
+     * Max number of requests processed at once by all classes.
+     */
+    private final int gatewayConcurrency;
+
+    /**
+     * Whether higher weight classes are always served first, instead of
+     * sharing freed slots proportionally to weights.
+     */
+    private final boolean strictPriority;
+
+    /**
+     * Time in milliseconds request may wait for its class.
+     */
+    private final long bulkheadQueueTimeout;
+
+    /**
+     * Singleton instance of config.
+     */
+    private static GatewayConfig config;
+
+    private GatewayConfig(){
+        ConfigIO configFile=new ConfigIO(GATEWAY_CONFIG);
+        idempotentActions=readActions(configFile,"<idempotentActions>",DEFAULT_IDEMPOTENT_ACTIONS);
+        postsCacheSize=(int)readOptionalNumber(configFile,"<postsCacheSize>",DEFAULT_POSTS_CACHE_SIZE);
+        postsCacheTTL=readOptionalNumber(configFile,"<postsCacheTTL>",DEFAULT_POSTS_CACHE_TTL);
+        defaultRateLimit=new RateLimit(
+                readOptionalNumber(configFile,"<rateLimit>",DEFAULT_RATE_LIMIT),
+                readOptionalNumber(configFile,"<rateBurst>",DEFAULT_RATE_BURST));
+        actionRateLimits=readRateLimits(configFile,"<actionRateLimits>");
+        hedgedActions=readActions(configFile,"<hedgedActions>",DEFAULT_HEDGED_ACTIONS);
+        hedgeMinDelay=readOptionalNumber(configFile,"<hedgeMinDelay>",DEFAULT_HEDGE_MIN_DELAY);
+        hedgeBudget=Math.min(readOptionalNumber(configFile,"<hedgeBudget>",DEFAULT_HEDGE_BUDGET),100);
+        breakerFailures=Math.max(readOptionalNumber(configFile,"<breakerFailures>",DEFAULT_BREAKER_FAILURES),1);
+        breakerErrorRate=Math.min(readOptionalNumber(configFile,"<breakerErrorRate>",DEFAULT_BREAKER_ERROR_RATE),100);
+        breakerSlowCall=readOptionalNumber(configFile,"<breakerSlowCall>",DEFAULT_BREAKER_SLOW_CALL);
+        breakerOpenTime=readOptionalNumber(configFile,"<breakerOpenTime>",DEFAULT_BREAKER_OPEN_TIME);
+        agentHost=readOptionalValue(configFile,"<agentHost>",DEFAULT_AGENT_HOST).trim();
+        agentPort=(int)readOptionalNumber(configFile,"<agentPort>",DEFAULT_AGENT_PORT);
+        gatewayMinInstances=(int)Math.max(readOptionalNumber(configFile,"<gatewayMinInstances>",1),1);
+        gatewayMaxInstances=(int)Math.max(readOptionalNumber(configFile,"<gatewayMaxInstances>",
+                Runtime.getRuntime().availableProcessors()),gatewayMinInstances);
+        gatewayScaleUpRequests=Math.max(readOptionalNumber(configFile,"<gatewayScaleUpRequests>",
+                DEFAULT_GATEWAY_SCALE_UP_REQUESTS),1);
+        trafficClasses=readTrafficClasses(configFile,"<trafficClasses>");
+        actionClasses=readActionClasses(configFile,"<actionClasses>");
+        gatewayConcurrency=(int)Math.max(readOptionalNumber(configFile,"<gatewayConcurrency>",
+                DEFAULT_GATEWAY_CONCURRENCY),1);
+        strictPriority=readOptionalValue(configFile,"<bulkheadPriority>","weighted")
+                .trim().equalsIgnoreCase("strict");
+        bulkheadQueueTimeout=readOptionalNumber(configFile,"<bulkheadQueueTimeout>",
+                DEFAULT_BULKHEAD_QUEUE_TIMEOUT);
+    }
+
+    public static synchronized GatewayConfig getInstance()
+    {
+        if(config==null)
+            config=new GatewayConfig();
+        return config;
+    }
+
+    /**
+     * @param action Action to check.
+     *
+     * @return True if identical requests of given action may be served by
+     * a single service call, false otherwise.
+     */
+    public boolean isIdempotent(String action){
+        return idempotentActions.contains(action.toLowerCase());
+    }
+
+    /**
+     * @param action Action to check.
+     *
+     * @return True if slow request of given action may be duplicated to
+     * another instance, false otherwise.
+     */
+    public boolean isHedged(String action){
+        return hedgedActions.contains(action.toLowerCase());
+    }
+
+    public long getHedgeMinDelay(){
+        return hedgeMinDelay;
+    }
+
+    /**
+     * @return Max number of hedged requests per 100 requests.
+     */
+    public long getHedgeBudget(){
+        return hedgeBudget;
+    }
+
+    public String getAgentHost(){
+        return agentHost;
+    }
+
+    public int getAgentPort(){
+        return agentPort;
+    }
+
+    public int getGatewayMinInstances(){
+        return gatewayMinInstances;
+    }
+
+    public int getGatewayMaxInstances(){
+        return gatewayMaxInstances;
+    }
+
+    /**
+     * @return Average number of requests in progress per gateway above which
+     * another gateway is started.
+     */
+    public long getGatewayScaleUpRequests(){
+        return gatewayScaleUpRequests;
+    }
+
+    /**
+     * @return Limits of traffic classes by their names.
+     */
+    public Map<String,ClassLimit> getTrafficClasses(){
+        return trafficClasses;
+    }
+
+    /**
+     * @param action Action to check.
+     *
+     * @return Name of traffic class of the given action.
+     */
+    public String getTrafficClass(String action){
+        return actionClasses.getOrDefault(action.toLowerCase(),DEFAULT_TRAFFIC_CLASS);
+    }
+
+    public int getGatewayConcurrency(){
+        return gatewayConcurrency;
+    }
+
+    public boolean isStrictPriority(){
+        return strictPriority;
+    }
+
+    public long getBulkheadQueueTimeout(){
+        return bulkheadQueueTimeout;
+    }
+
+    public long getBreakerFailures(){
+        return breakerFailures;
+    }
+
+    /**
+     * @return Percent of failed requests which ejects instance.
+     */
+    public long getBreakerErrorRate(){
+        return breakerErrorRate;
+    }
+
+    /**
+     * @return Latency in milliseconds above which request counts as failed.
+     */
+    public long getBreakerSlowCall(){
+        return breakerSlowCall;
+    }
+
+    /**
+     * @param action Action to check.
+     *
+     * @return Latency in milliseconds above which request of the given action
+     * counts as failed or 0 if its latency is not limited.
+     */
+    public long getBreakerSlowCall(String action){
+        return getTrafficClass(action).equals(BULK_TRAFFIC_CLASS)?0:breakerSlowCall;
+    }
+
+    /**
+     * @return Time in milliseconds for which instance is ejected.
+     */
+    public long getBreakerOpenTime(){
+        return breakerOpenTime;
+    }
+
+    public int getPostsCacheSize(){
+        return postsCacheSize;
+    }
+
+    public long getPostsCacheTTL(){
+        return postsCacheTTL;
+    }
+
+    /**
+     * @param action Action to check.
+     *
+     * @return Rate limit of single client requests to the given action.
+     */
+    public RateLimit getRateLimit(String action){
+        return actionRateLimits.getOrDefault(action.toLowerCase(),defaultRateLimit);
+    }
+
+    /**
+     * Reads optional non negative number option.
+     *
+     * @param configFile From where to read.
+     * @param option Option to read.
+     * @param defaultValue Value used if option is missing or malformed.
+     *
+     * @return Read or default value.
+     */
+    private long readOptionalNumber(ConfigIO configFile,String option,long defaultValue)
+    {
+        final String value=readOptionalValue(configFile,option,null);
+        if(value==null)
+            return defaultValue;
+        try{
+            final long number=Long.parseLong(value.trim());
+            if(number>=0)
+                return number;
+        }catch(NumberFormatException e){
+            // Reported below
+        }
+        System.out.println("[Error]: Malformed gateway option: "+option+", using default: "+defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * Reads optional option value.
+     *
+     * @param configFile From where to read.
+     * @param option Option to read.
+     * @param defaultValue Value used if option is missing or unreadable.
+     *
+     * @return Read or default value.
+     */
+    private String readOptionalValue(ConfigIO configFile,String option,String defaultValue)
+    {
+        try{
+            return configFile.readOptionValue(option);
+        }catch(OptionNotFoundException|FileNotFoundException e){
+            return defaultValue;
+        }catch(IOException e){
+            System.out.println("[Error]: Failed to read gateway option: "+option+" due to: "+e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads comma separated list of action limits in format:
+     * {@code action=requestsPerSecond/burst}.
+     *
+     * @param configFile From where to read.
+     * @param option Option to read.
+     *
+     * @return Limits of listed actions.
+     */
+    private Map<String,RateLimit> readRateLimits(ConfigIO configFile,String option)
+    {
+        final HashMap<String,RateLimit> limits=new HashMap<>();
+        for(String entry:readOptionalValue(configFile,option,"").split(","))
+        {
+            if(entry.isBlank())
+                continue;
+            try{
+                final String[] actionLimit=entry.split("=");
+                final String[] rateBurst=actionLimit[1].split("/");
+                final long rate=Long.parseLong(rateBurst[0].trim());
+                final long burst=rateBurst.length>1?Long.parseLong(rateBurst[1].trim()):rate;
+                if(rate<0||burst<0)
+                    throw new NumberFormatException();
+                limits.put(actionLimit[0].trim().toLowerCase(),new RateLimit(rate,burst));
+            }catch(NumberFormatException|ArrayIndexOutOfBoundsException e){
+                System.out.println("[Error]: Malformed gateway option: "+option+" entry: "+entry);
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * Reads comma separated list of traffic classes in format:
+     * {@code name=maxConcurrent/weight}. Default class is always present.
+     *
+     * @param configFile From where to read.
+     * @param option Option to read.
+     *
+     * @return Limits of classes.
+     */
+    private Map<String,ClassLimit> readTrafficClasses(ConfigIO configFile,String option)
+    {
+        final HashMap<String,ClassLimit> classes=new HashMap<>();
+        for(String entry:readOptionalValue(configFile,option,DEFAULT_TRAFFIC_CLASSES).split(","))
+        {
+            if(entry.isBlank())
+                continue;
+            try{
+                final String[] nameLimit=entry.split("=");
+                final String[] concurrencyWeight=nameLimit[1].split("/");
+                final String name=nameLimit[0].trim();
+                classes.put(name,new ClassLimit(name,
+                        Integer.parseInt(concurrencyWeight[0].trim()),
+                        concurrencyWeight.length>1?Integer.parseInt(concurrencyWeight[1].trim()):1));
+            }catch(NumberFormatException|ArrayIndexOutOfBoundsException e){
+                System.out.println("[Error]: Malformed gateway option: "+option+" entry: "+entry);
+            }
+        }
+        classes.putIfAbsent(DEFAULT_TRAFFIC_CLASS,new ClassLimit(DEFAULT_TRAFFIC_CLASS,32,4));
+        return classes;
+    }
+
+    /**
+     * Reads comma separated list of action classes in format:
+     * {@code action=className}. Actions of unknown classes use default one.
+     *
+     * @param configFile From where to read.
+     * @param option Option to read.
+     *
+     * @return Class names of listed actions.
+     */
+    private Map<String,String> readActionClasses(ConfigIO configFile,String option)
+    {
+        final HashMap<String,String> classes=new HashMap<>();
+        for(String entry:readOptionalValue(configFile,option,DEFAULT_ACTION_CLASSES).split(","))
+        {
+            final String[] actionClass=entry.split("=");
+            if(actionClass.length!=2)
+            {
+                if(!entry.isBlank())
+                    System.out.println("[Error]: Malformed gateway option: "+option+" entry: "+entry);
+                continue;
+            }
+            final String className=actionClass[1].trim();
+            if(!trafficClasses.containsKey(className))
+            {
+                System.out.println("[Error]: Unknown traffic class: "+className+" of action: "+actionClass[0]);
+                continue;
+            }
+            classes.put(actionClass[0].trim().toLowerCase(),className);
+        }
+        return classes;
+    }
+
+    /**
+     * Reads comma separated list of actions.
+     *
+     * @param configFile From where to read.
+     * @param option Option to read.
+     * @param defaultValue Value used if option is missing.
+     *
+     * @return Lowercase action names.
+     */
+    private Set<String> readActions(ConfigIO configFile,String option,String defaultValue)
+    {
+        final HashSet<String> actions=new HashSet<>();
+        for(String action:readOptionalValue(configFile,option,defaultValue).split(","))
+        {
+            if(!action.isBlank())
+                actions.add(action.trim().toLowerCase());
+        }
+        return actions;
+    }
+
+    /**
+     * Limit of single traffic class.
+     */
+    public static class ClassLimit{
+        public final String name;
+
+        /**
+         * Max number of requests of this class processed at once.
+         */
+        public final int maxConcurrent;
+
+        /**
+         * Relative priority of this class.
+         */
+        public final int weight;
+
+        public ClassLimit(String name,int maxConcurrent,int weight){
+            this.name=name;
+            this.maxConcurrent=Math.max(maxConcurrent,1);
+            this.weight=Math.max(weight,1);
+        }
+    }
+
+    /**
+     * Token bucket limit of single client requests.
+     */
+    public static class RateLimit{
+        /**
+         * Tokens added per second, 0 disables limit.
+         */
+        public final long requestsPerSecond;
+
+        /**
+         * Max number of tokens in bucket.
+         */
+        public final long burst;
+
+        public RateLimit(long requestsPerSecond,long burst){
+            this.requestsPerSecond=requestsPerSecond;
+            this.burst=Math.max(burst,1);
+        }
+
+        public boolean isUnlimited(){
+            return requestsPerSecond==0;
+        }
+    }
+}
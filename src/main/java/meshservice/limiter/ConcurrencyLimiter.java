@@ -0,0 +1,53 @@
+package meshservice.limiter;
+
+/**
+ * Limits number of requests in flight. Requests over the limit should be
+ * rejected right away instead of waiting.
+ *
+ * @author ArtiFixal
+ */
+public interface ConcurrencyLimiter{
+
+    /**
+     * Takes slot for a single request.
+     *
+     * @return Listener which has to be notified once request finished or
+     * null if limit was reached.
+     */
+    public Listener tryAcquire();
+
+    /**
+     * @return Current max number of requests in flight.
+     */
+    public int getLimit();
+
+    /**
+     * @return Number of requests in flight.
+     */
+    public int getInFlight();
+
+    /**
+     * Releases slot and reports outcome of the request. Only the first
+     * notification is taken into account.
+     */
+    public interface Listener{
+
+        /**
+         * Request succeeded.
+         *
+         * @param rtt Time in nanoseconds request took.
+         */
+        public void onSuccess(long rtt);
+
+        /**
+         * Request failed or timed out due to overload.
+         */
+        public void onDropped();
+
+        /**
+         * Request finished without telling anything about the load, for
+         * example it was malformed.
+         */
+        public void onIgnore();
+    }
+}
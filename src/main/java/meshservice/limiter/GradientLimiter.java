@@ -0,0 +1,164 @@
+package meshservice.limiter;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limiter which finds concurrency limit on its own by comparing RTT of
+ * requests with the lowest RTT seen recently. While RTT stays close to the
+ * baseline, limit grows by the square root of itself. Once requests start
+ * queuing and RTT grows, limit shrinks proportionally to the RTT increase,
+ * similarly to the TCP Vegas congestion control. Dropped requests shrink
+ * the limit multiplicatively.
+ *
+ * @author ArtiFixal
+ */
+public class GradientLimiter implements ConcurrencyLimiter{
+
+    public static final int DEFAULT_INITIAL_LIMIT=20;
+    public static final int DEFAULT_MIN_LIMIT=1;
+    public static final int DEFAULT_MAX_LIMIT=1000;
+
+    /**
+     * How many times RTT may exceed the baseline before limit shrinks.
+     */
+    private static final double RTT_TOLERANCE=1.5;
+
+    /**
+     * Share of a new limit in the smoothed limit.
+     */
+    private static final double SMOOTHING=0.2;
+
+    /**
+     * Factor by which dropped request shrinks the limit.
+     */
+    private static final double DROP_BACKOFF=0.9;
+
+    /**
+     * Number of samples after which the baseline is measured again, so it
+     * follows changes of the service, for example after it moved.
+     */
+    private static final int BASELINE_WINDOW=500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight;
+
+    /**
+     * Smoothed limit, updated under lock.
+     */
+    private double estimatedLimit;
+
+    /**
+     * Current limit read by the acquiring threads.
+     */
+    private volatile int limit;
+
+    /**
+     * Lowest RTT in nanoseconds in the current baseline window.
+     */
+    private long baselineRtt;
+
+    private int samples;
+
+    public GradientLimiter(){
+        this(DEFAULT_INITIAL_LIMIT,DEFAULT_MIN_LIMIT,DEFAULT_MAX_LIMIT);
+    }
+
+    public GradientLimiter(int initialLimit,int minLimit,int maxLimit){
+        this.minLimit=Math.max(minLimit,1);
+        this.maxLimit=Math.max(maxLimit,this.minLimit);
+        estimatedLimit=Math.min(Math.max(initialLimit,this.minLimit),this.maxLimit);
+        limit=(int)estimatedLimit;
+        inFlight=new AtomicInteger();
+        baselineRtt=Long.MAX_VALUE;
+    }
+
+    @Override
+    public Listener tryAcquire()
+    {
+        while(true)
+        {
+            final int current=inFlight.get();
+            if(current>=limit)
+                return null;
+            if(inFlight.compareAndSet(current,current+1))
+                return new RequestListener(current+1);
+        }
+    }
+
+    @Override
+    public int getLimit(){
+        return limit;
+    }
+
+    @Override
+    public int getInFlight(){
+        return inFlight.get();
+    }
+
+    /**
+     * @return Lowest recent RTT in nanoseconds or -1 if there is none yet.
+     */
+    public synchronized long getBaselineRtt(){
+        return baselineRtt==Long.MAX_VALUE?-1:baselineRtt;
+    }
+
+    private synchronized void onSample(long rtt,int inFlightAtStart)
+    {
+        rtt=Math.max(rtt,1);
+        if(++samples%BASELINE_WINDOW==0||rtt<baselineRtt)
+            baselineRtt=rtt;
+        final double gradient=Math.max(0.5,Math.min(1.0,RTT_TOLERANCE*baselineRtt/rtt));
+        double newLimit=estimatedLimit*gradient+Math.sqrt(estimatedLimit);
+        // Limit which wasn't even used can't be proven too low
+        if(newLimit>estimatedLimit&&inFlightAtStart<estimatedLimit/2)
+            return;
+        newLimit=estimatedLimit*(1-SMOOTHING)+newLimit*SMOOTHING;
+        setLimit(newLimit);
+    }
+
+    private synchronized void onDrop(){
+        setLimit(estimatedLimit*DROP_BACKOFF);
+    }
+
+    private void setLimit(double newLimit){
+        estimatedLimit=Math.min(Math.max(newLimit,minLimit),maxLimit);
+        limit=(int)estimatedLimit;
+    }
+
+    private class RequestListener implements Listener{
+        private final int inFlightAtStart;
+        private final AtomicBoolean released;
+
+        public RequestListener(int inFlightAtStart){
+            this.inFlightAtStart=inFlightAtStart;
+            released=new AtomicBoolean();
+        }
+
+        private boolean release()
+        {
+            if(!released.compareAndSet(false,true))
+                return false;
+            inFlight.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void onSuccess(long rtt){
+            if(release())
+                onSample(rtt,inFlightAtStart);
+        }
+
+        @Override
+        public void onDropped(){
+            if(release())
+                onDrop();
+        }
+
+        @Override
+        public void onIgnore(){
+            release();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package meshservice.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import meshservice.communication.ServiceInstanceInfo;
+import meshservice.config.GatewayConfig;
+
+/**
+ * Passive health tracking of service instances. Instance which fails too
+ * many requests in a row, or too large part of recent requests, is ejected
+ * for a while. After that a single probe request is let through, which
+ * either brings instance back or ejects it again. Requests slower than
+ * configured limit count as failed, except bulk file transfers which
+ * take long due to their size.
+ *
+ * @author ArtiFixal
+ */
+public class CircuitBreaker{
+
+    /**
+     * Length in milliseconds of window in which error rate is counted.
+     */
+    public static final long ERROR_RATE_WINDOW=10000;
+
+    /**
+     * Number of requests in window needed to eject instance due to error
+     * rate.
+     */
+    public static final int MIN_WINDOW_REQUESTS=20;
+
+    /**
+     * Circuits of instances, where: <br>
+     * Key - instance hostport <br>
+     * Value - instance circuit
+     */
+    private final ConcurrentHashMap<String,InstanceCircuit> circuits;
+
+    /**
+     * Number of ejected instances.
+     */
+    private final LongAdder ejections;
+
+    private final GatewayConfig config;
+
+    public CircuitBreaker(GatewayConfig config){
+        this.config=config;
+        circuits=new ConcurrentHashMap<>();
+        ejections=new LongAdder();
+    }
+
+    /**
+     * Removes ejected instances from given ones.
+     *
+     * @param instances Instances to filter.
+     *
+     * @return Instances which may receive requests or all given instances
+     * if every one of them is ejected.
+     */
+    public ServiceInstanceInfo[] filterAvailable(ServiceInstanceInfo[] instances)
+    {
+        final long now=System.currentTimeMillis();
+        ArrayList<ServiceInstanceInfo> available=null;
+        for(int i=0;i<instances.length;i++)
+        {
+            final InstanceCircuit circuit=circuits.get(key(instances[i]));
+            final boolean isAvailable=circuit==null||circuit.isAvailable(now);
+            if(!isAvailable&&available==null)
+            {
+                // Copy only when something has to be removed
+                available=new ArrayList<>(instances.length);
+                for(int j=0;j<i;j++)
+                    available.add(instances[j]);
+            }
+            else if(isAvailable&&available!=null)
+                available.add(instances[i]);
+        }
+        if(available==null||available.isEmpty())
+            return instances;
+        return available.toArray(ServiceInstanceInfo[]::new);
+    }
+
+    /**
+     * Records request sent to given instance. Request to instance which
+     * ejection ended becomes its probe.
+     *
+     * @param instance Where request was sent.
+     */
+    public void requestStarted(ServiceInstanceInfo instance){
+        final InstanceCircuit circuit=circuits.get(key(instance));
+        if(circuit!=null)
+            circuit.requestStarted(System.currentTimeMillis());
+    }
+
+    /**
+     * Records response of the given instance.
+     *
+     * @param instance Which instance responded.
+     * @param action Requested action.
+     * @param latency Response latency in nanoseconds.
+     *
+     * @return True if instance was ejected due to this response.
+     */
+    public boolean recordSuccess(ServiceInstanceInfo instance,String action,long latency)
+    {
+        final long slowCall=config.getBreakerSlowCall(action);
+        if(slowCall>0&&TimeUnit.NANOSECONDS.toMillis(latency)>slowCall)
+            return recordFailure(instance);
+        // Successes count towards error rate, so circuit is needed anyway
+        circuits.computeIfAbsent(key(instance),(hostport)->new InstanceCircuit())
+                .recordSuccess(System.currentTimeMillis());
+        return false;
+    }
+
+    /**
+     * Records failed request or connection to the given instance.
+     *
+     * @param instance Which instance failed.
+     *
+     * @return True if instance was ejected due to this failure.
+     */
+    public boolean recordFailure(ServiceInstanceInfo instance)
+    {
+        final boolean ejected=circuits.computeIfAbsent(key(instance),(hostport)->new InstanceCircuit())
+                .recordFailure(System.currentTimeMillis());
+        if(ejected)
+            ejections.increment();
+        return ejected;
+    }
+
+    public long getEjections(){
+        return ejections.sum();
+    }
+
+    /**
+     * @return Number of currently ejected instances.
+     */
+    public int getOpenCircuits(){
+        final long now=System.currentTimeMillis();
+        int open=0;
+        for(InstanceCircuit circuit:circuits.values())
+        {
+            if(!circuit.isAvailable(now))
+                open++;
+        }
+        return open;
+    }
+
+    /**
+     * Instances of the same type on one agent are all reached through the
+     * agent sidecar, which picks the instance itself. State is kept per
+     * sidecar hostport, so it describes the agent actually called.
+     */
+    private String key(ServiceInstanceInfo instance){
+        return instance.toServiceHostport().toString();
+    }
+
+    private enum CircuitState{
+        /**
+         * Instance receives requests.
+         */
+        CLOSED,
+        /**
+         * Instance is ejected.
+         */
+        OPEN,
+        /**
+         * Single probe request was sent to the instance.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Health of single instance.
+     */
+    private class InstanceCircuit{
+        private CircuitState state=CircuitState.CLOSED;
+        private long openUntil;
+        private long probeStartedAt;
+        private long consecutiveFailures;
+        private long windowStart;
+        private long windowRequests;
+        private long windowFailures;
+
+        public synchronized boolean isAvailable(long now)
+        {
+            return switch(state){
+                case CLOSED -> true;
+                case OPEN -> now>=openUntil;
+                // Probe which didn't finish in time is replaced
+                case HALF_OPEN -> now-probeStartedAt>=config.getBreakerOpenTime();
+            };
+        }
+
+        public synchronized void requestStarted(long now)
+        {
+            if(state!=CircuitState.CLOSED&&isAvailable(now))
+            {
+                state=CircuitState.HALF_OPEN;
+                probeStartedAt=now;
+            }
+        }
+
+        public synchronized void recordSuccess(long now)
+        {
+            if(state!=CircuitState.CLOSED)
+            {
+                // Instance recovered
+                state=CircuitState.CLOSED;
+                windowStart=now;
+                windowRequests=0;
+                windowFailures=0;
+            }
+            rollWindow(now);
+            consecutiveFailures=0;
+            windowRequests++;
+        }
+
+        /**
+         * @return True if this failure opened the circuit.
+         */
+        public synchronized boolean recordFailure(long now)
+        {
+            if(state==CircuitState.HALF_OPEN)
+            {
+                // Probe failed, instance stays ejected
+                state=CircuitState.OPEN;
+                openUntil=now+config.getBreakerOpenTime();
+                return false;
+            }
+            if(state==CircuitState.OPEN)
+                return false;
+            rollWindow(now);
+            consecutiveFailures++;
+            windowRequests++;
+            windowFailures++;
+            final long errorRate=config.getBreakerErrorRate();
+            final boolean tooManyErrors=errorRate>0&&windowRequests>=MIN_WINDOW_REQUESTS
+                    &&windowFailures*100>=errorRate*windowRequests;
+            if(consecutiveFailures<config.getBreakerFailures()&&!tooManyErrors)
+                return false;
+            state=CircuitState.OPEN;
+            openUntil=now+config.getBreakerOpenTime();
+            consecutiveFailures=0;
+            return true;
+        }
+
+        private void rollWindow(long now)
+        {
+            if(now-windowStart<ERROR_RATE_WINDOW)
+                return;
+            windowStart=now;
+            windowRequests=0;
+            windowFailures=0;
+        }
+    }
+}
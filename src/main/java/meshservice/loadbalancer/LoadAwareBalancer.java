@@ -0,0 +1,73 @@
+package meshservice.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import meshservice.AgentServicesInfo;
+import meshservice.AgentTelemetry;
+import meshservice.communication.AgentHostport;
+import meshservice.services.manager.ServiceNotFoundException;
+
+/**
+ * Load balancer which places new service instances on the least loaded
+ * agent according to the telemetry agents report. Agents without recent
+ * telemetry or running out of heap aren't considered. If no agent can be
+ * judged by its telemetry, agents are picked in turn.
+ *
+ * @author ArtiFixal
+ */
+public class LoadAwareBalancer extends RoundRobinBalancer{
+
+    public LoadAwareBalancer(ConcurrentHashMap<String,AgentServicesInfo> runningAgents){
+        super(runningAgents);
+    }
+
+    @Override
+    public AgentHostport balanceAgent(String serviceType) throws ServiceNotFoundException
+    {
+        // Copied, so agents added meanwhile don't break iteration
+        final AgentHostport leastLoaded=findLeastLoaded(serviceType,new ArrayList<>(getAgentNames()));
+        return leastLoaded!=null?leastLoaded:super.balanceAgent(serviceType);
+    }
+
+    @Override
+    public AgentHostport balanceAgent(String serviceType,Collection<String> agentNames) throws ServiceNotFoundException
+    {
+        final AgentHostport leastLoaded=findLeastLoaded(serviceType,agentNames);
+        return leastLoaded!=null?leastLoaded:super.balanceAgent(serviceType,agentNames);
+    }
+
+    /**
+     * Searches for the least loaded agent able to run given service type.
+     *
+     * @param serviceType What to run.
+     * @param agentNames Agents to choose from.
+     *
+     * @return Selected agent or null if none could be judged.
+     */
+    private AgentHostport findLeastLoaded(String serviceType,Collection<String> agentNames)
+    {
+        String selectedName=null;
+        AgentServicesInfo selected=null;
+        double selectedScore=Double.MAX_VALUE;
+        for(String agentName:agentNames)
+        {
+            final AgentServicesInfo agentInfo=getAgentInfo(agentName);
+            if(agentInfo==null||!agentInfo.getAvailableServices().contains(serviceType))
+                continue;
+            final AgentTelemetry telemetry=agentInfo.getTelemetry();
+            if(telemetry==null||!telemetry.isFresh()||telemetry.isHeapExhausted())
+                continue;
+            final double score=telemetry.getLoadScore();
+            if(score<selectedScore)
+            {
+                selectedName=agentName;
+                selected=agentInfo;
+                selectedScore=score;
+            }
+        }
+        if(selected==null)
+            return null;
+        return new AgentHostport(selectedName,selected.getHost(),selected.getPort());
+    }
+}
@@ -1,5 +1,6 @@
 package meshservice.loadbalancer;
 
+import java.util.Collection;
 import meshservice.AgentServicesInfo;
 import meshservice.communication.AgentHostport;
 import meshservice.communication.Hostport;
@@ -26,6 +27,19 @@ public interface LoadBalancer {
      */
     public ServiceHostport balanceService(String serviceType) throws ServiceNotFoundException;
     
+    /**
+     * Selects best service destination among services run by given agents.
+     * 
+     * @param serviceType Which service type to select.
+     * @param agentNames Agents allowed to serve the request.
+     * 
+     * @return Service address.
+     * 
+     * @throws ServiceNotFoundException If none of given agents runs service 
+     * of given type.
+     */
+    public ServiceHostport balanceService(String serviceType,Collection<String> agentNames) throws ServiceNotFoundException;
+    
     /**
      * Selects best agent destination able to run given service type.
      * 
@@ -37,6 +51,20 @@ public interface LoadBalancer {
      */
     public AgentHostport balanceAgent(String serviceType) throws ServiceNotFoundException;
     
+    /**
+     * Selects best agent destination among given agents able to run given 
+     * service type.
+     * 
+     * @param serviceType What to look for in agent available services.
+     * @param agentNames Agents allowed to run the service.
+     * 
+     * @return Agent address.
+     * 
+     * @throws ServiceNotFoundException If none of given agents is able to 
+     * run given service type.
+     */
+    public AgentHostport balanceAgent(String serviceType,Collection<String> agentNames) throws ServiceNotFoundException;
+    
     /**
      * Adds new agent to the balancer pool.
      * 
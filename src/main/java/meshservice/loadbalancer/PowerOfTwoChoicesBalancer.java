@@ -0,0 +1,96 @@
+package meshservice.loadbalancer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import meshservice.communication.ServiceInstanceInfo;
+
+/**
+ * Local load balancer which picks two instances at random and selects the
+ * one with fewer requests in flight relative to its weight. Every entry is
+ * a single instance, so agent running more instances of the type is picked
+ * more often. Instances of one agent share its sidecar, so their requests
+ * in flight are counted together and weight is the number of instances 
+ * behind the sidecar. Requests in flight are counted by the caller.
+ *
+ * @author ArtiFixal
+ */
+public class PowerOfTwoChoicesBalancer{
+
+    /**
+     * Number of requests in flight, where: <br>
+     * Key - instance hostport <br>
+     * Value - number of requests
+     */
+    private final ConcurrentHashMap<String,AtomicInteger> inFlight;
+
+    public PowerOfTwoChoicesBalancer(){
+        inFlight=new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Selects instance which should serve the next request.
+     *
+     * @param instances Instances to choose from.
+     *
+     * @return Selected instance.
+     *
+     * @throws IllegalArgumentException If there are no instances.
+     */
+    public ServiceInstanceInfo pick(ServiceInstanceInfo[] instances) throws IllegalArgumentException
+    {
+        if(instances.length==0)
+            throw new IllegalArgumentException("There are no instances to choose from");
+        if(instances.length==1)
+            return instances[0];
+        final ThreadLocalRandom random=ThreadLocalRandom.current();
+        final int first=random.nextInt(instances.length);
+        // Shifted by at least one, so instance isn't compared with itself
+        final int second=(first+1+random.nextInt(instances.length-1))%instances.length;
+        return getLoad(instances[first])<=getLoad(instances[second])
+                ?instances[first]:instances[second];
+    }
+
+    private double getLoad(ServiceInstanceInfo instance){
+        return (getInFlight(instance)+1)/(double)instance.getWeight();
+    }
+
+    /**
+     * Instances of the same type on one agent are all reached through the
+     * agent sidecar, which picks the instance itself. State is kept per
+     * sidecar hostport, so it describes the agent actually called.
+     */
+    private String key(ServiceInstanceInfo instance){
+        return instance.toServiceHostport().toString();
+    }
+
+    /**
+     * @param instance Which instance to check.
+     *
+     * @return Number of requests currently in flight to the given instance.
+     */
+    public int getInFlight(ServiceInstanceInfo instance){
+        final AtomicInteger requests=inFlight.get(key(instance));
+        return requests==null?0:requests.get();
+    }
+
+    /**
+     * Records request sent to the given instance.
+     *
+     * @param instance Where request was sent.
+     */
+    public void requestStarted(ServiceInstanceInfo instance){
+        inFlight.computeIfAbsent(key(instance),(hostport)->new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Records finished request to the given instance.
+     *
+     * @param instance Which instance responded.
+     */
+    public void requestFinished(ServiceInstanceInfo instance){
+        final AtomicInteger requests=inFlight.get(key(instance));
+        if(requests!=null)
+            requests.decrementAndGet();
+    }
+}
@@ -1,6 +1,8 @@
 package meshservice.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import meshservice.AgentServicesInfo;
@@ -25,6 +27,11 @@ public class RoundRobinBalancer implements LoadBalancer{
      * Stores agent balance info.
      */
     private HashMap<String,ServiceBalancerInfo> balanceInfo;
+    
+    /**
+     * Rotates start position over agents given to the balancer.
+     */
+    private int candidateRotation;
 
     public RoundRobinBalancer(ConcurrentHashMap<String,AgentServicesInfo> runningAgents){
         balanceInfo=new HashMap<>();
@@ -67,6 +74,18 @@ public class RoundRobinBalancer implements LoadBalancer{
         throw new ServiceNotFoundException("There is no agent able to run given service: "+serviceType);
     }
     
+    @Override
+    public ServiceHostport balanceService(String serviceType,Collection<String> agentNames) throws ServiceNotFoundException
+    {
+        for(String agentName:rotate(agentNames))
+        {
+            ServiceBalancerInfo agentBalanceInfo=balanceInfo.get(agentName);
+            if(agentBalanceInfo!=null&&agentBalanceInfo.hasService(serviceType))
+                return agentBalanceInfo.getNextService(serviceType);
+        }
+        throw new ServiceNotFoundException(serviceType);
+    }
+    
     @Override
     public AgentHostport balanceAgent(String serviceType) throws ServiceNotFoundException
     {
@@ -76,6 +95,57 @@ public class RoundRobinBalancer implements LoadBalancer{
         return new AgentHostport(agentName,agentInfo.getHost(),agentInfo.getPort());
     }
     
+    @Override
+    public AgentHostport balanceAgent(String serviceType,Collection<String> agentNames) throws ServiceNotFoundException
+    {
+        for(String agentName:rotate(agentNames))
+        {
+            ServiceBalancerInfo agentBalanceInfo=balanceInfo.get(agentName);
+            if(agentBalanceInfo!=null&&agentBalanceInfo.getAgentInfo()
+                    .getAvailableServices().contains(serviceType))
+            {
+                final AgentServicesInfo agentInfo=agentBalanceInfo.getAgentInfo();
+                return new AgentHostport(agentName,agentInfo.getHost(),agentInfo.getPort());
+            }
+        }
+        throw new ServiceNotFoundException("There is no agent able to run given service: "+serviceType);
+    }
+    
+    /**
+     * Rotates given agents, so each call starts from the next one.
+     * 
+     * @param agentNames What to rotate.
+     * 
+     * @return Rotated agents.
+     */
+    private ArrayList<String> rotate(Collection<String> agentNames)
+    {
+        final ArrayList<String> rotated=new ArrayList<>(agentNames);
+        if(rotated.size()>1)
+        {
+            candidateRotation=(candidateRotation+1)%rotated.size();
+            Collections.rotate(rotated,candidateRotation);
+        }
+        return rotated;
+    }
+    
+    /**
+     * @param agentName Agent to look for.
+     * 
+     * @return Info of given agent or null if it isn't known.
+     */
+    protected AgentServicesInfo getAgentInfo(String agentName){
+        final ServiceBalancerInfo agentBalanceInfo=balanceInfo.get(agentName);
+        return agentBalanceInfo==null?null:agentBalanceInfo.getAgentInfo();
+    }
+    
+    /**
+     * @return Names of all agents known to the balancer.
+     */
+    protected Collection<String> getAgentNames(){
+        return agentIterator.getAgentNames();
+    }
+    
     @Override
     public void addNewAgentDestination(String agentName,AgentServicesInfo agent){
         balanceInfo.put(agentName,new ServiceBalancerInfo(agent));
@@ -140,9 +210,20 @@ public class RoundRobinBalancer implements LoadBalancer{
             ServiceData data=services.get(serviceType).getNextService();
             return new ServiceHostport(data.getServiceRequestRequiredFields(),
                 data.getServiceAdditionalResponseFields(),
+                data.getServiceRequestOptionalFields(),
                 agentInfo.getHost(),data.getPort());
         }
         
+        /**
+         * @param serviceType What to look for.
+         * 
+         * @return True if agent runs any service of given type.
+         */
+        public boolean hasService(String serviceType){
+            return services.containsKey(serviceType)
+                    &&!services.get(serviceType).isEmpty();
+        }
+        
         public HashMap<String,BalancerInfoIterator> getServices(){
             return services;
         }
@@ -191,6 +272,10 @@ public class RoundRobinBalancer implements LoadBalancer{
         {
             data.remove(toRemove);
         }
+        
+        public boolean isEmpty(){
+            return data.isEmpty();
+        }
     }
 
     private class AgentIterator{
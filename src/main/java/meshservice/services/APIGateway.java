@@ -1,14 +1,47 @@
 package meshservice.services;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import meshservice.ServiceStatus;
 import meshservice.communication.Connection;
 import meshservice.communication.ConnectionThread;
 import meshservice.communication.JsonBuilder;
 import meshservice.communication.JsonReader;
 import meshservice.communication.RequestException;
+import meshservice.communication.ServiceHostport;
+import meshservice.communication.ServiceInstanceInfo;
+import meshservice.config.GatewayConfig;
+import meshservice.limiter.ConcurrencyLimiter;
+import meshservice.limiter.GradientLimiter;
+import meshservice.loadbalancer.CircuitBreaker;
+import meshservice.loadbalancer.PowerOfTwoChoicesBalancer;
 
 /**
  * Gateway by which client communicates with services.
@@ -18,6 +51,73 @@ import meshservice.communication.RequestException;
 public class APIGateway extends MultithreadService{
     public static final String[] REQUEST_REQUIRED_FIELDS=new String[]{"action"};
     
+    /**
+     * Actions which should be served near the owner files. Uploads are 
+     * routed too, so new files are stored by agents already storing the 
+     * other owner files.
+     */
+    public static final Set<String> OWNER_ROUTED_ACTIONS=Set.of("getfile","listfiles",
+            "uploadfile","openupload");
+    
+    /**
+     * Actions which have to be served by the agent holding upload session.
+     */
+    public static final Set<String> SESSION_ROUTED_ACTIONS=Set.of("appendupload",
+            "getuploadoffset","commitupload");
+    
+    /**
+     * For how long in milliseconds resolved service is reused without asking
+     * agent again.
+     */
+    public static final long ROUTE_TTL=1000;
+    
+    /**
+     * Max time in milliseconds closed gateway waits for requests in 
+     * progress before disconnecting from the agent.
+     */
+    public static final long DRAIN_TIMEOUT=10000;
+    
+    /**
+     * How often in milliseconds closed gateway checks requests in progress.
+     */
+    private static final int DRAIN_CHECK_INTERVAL=20;
+    
+    /**
+     * Max number of requests in a single batch.
+     */
+    public static final int MAX_BATCH_SIZE=32;
+    
+    /**
+     * Time in seconds after which idle call thread is stopped.
+     */
+    private static final long CALL_THREAD_KEEP_ALIVE=60;
+    
+    /**
+     * Runs requests of batches. Has as many threads as gateway processes
+     * requests at once and as many waiting requests. Request which doesn't
+     * fit is run by the thread which submitted it.
+     */
+    private static final ExecutorService BATCH_EXECUTOR=createCallExecutor("Batch request",
+            GatewayConfig.getInstance().getGatewayConcurrency(),
+            new ArrayBlockingQueue<>(GatewayConfig.getInstance().getGatewayConcurrency()),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    
+    /**
+     * Limits of requests in flight to the services of gateways of this 
+     * process, where: <br>
+     * Key - lowercase action <br>
+     * Value - action limiter
+     */
+    private static final ConcurrentHashMap<String,ConcurrencyLimiter> UPSTREAM_LIMITERS=new ConcurrentHashMap<>();
+    
+    /**
+     * Runs hedged service calls. Every hedged request may run two calls at
+     * once, calls over that are rejected.
+     */
+    private static final ExecutorService HEDGE_EXECUTOR=createCallExecutor("Hedged call",
+            GatewayConfig.getInstance().getGatewayConcurrency()*2,new SynchronousQueue<>(),
+            new ThreadPoolExecutor.AbortPolicy());
+    
     /**
      * Socket with established connection to it's Agent.
      */
@@ -28,17 +128,122 @@ public class APIGateway extends MultithreadService{
      */
     private final AtomicLong currentMessageID = new AtomicLong(0);
     
+    /**
+     * Services resolved for recent actions.
+     */
+    private final RouteCache routeCache=new RouteCache();
+    
+    /**
+     * Selects instance serving each request.
+     */
+    private final PowerOfTwoChoicesBalancer instanceBalancer=new PowerOfTwoChoicesBalancer();
+    
+    /**
+     * Coalesces concurrent identical requests of idempotent actions.
+     */
+    private final SingleFlight<JsonReader> identicalRequests=new SingleFlight<>();
+    
+    /**
+     * Config of gateways.
+     */
+    private final GatewayConfig gatewayConfig=GatewayConfig.getInstance();
+    
+    /**
+     * Ejects failing instances.
+     */
+    private final CircuitBreaker circuitBreaker=new CircuitBreaker(gatewayConfig);
+    
+    /**
+     * Responses to getPosts.
+     */
+    private final PostsCache postsCache=PostsCache.getInstance();
+    
+    /**
+     * Limits rate of requests of each client.
+     */
+    private final RateLimiter rateLimiter=RateLimiter.getInstance();
+    
+    /**
+     * Decides when slow requests are duplicated.
+     */
+    private final HedgingPolicy hedgingPolicy=HedgingPolicy.getInstance();
+    
+    /**
+     * Isolates traffic classes of actions.
+     */
+    private final Bulkhead bulkhead=Bulkhead.getInstance();
+    
+    /**
+     * Address of the client which request is processed by current thread.
+     */
+    private final ThreadLocal<String> clientAddress=new ThreadLocal<>();
+    
+    /**
+     * Number of client requests in progress.
+     */
+    private final AtomicInteger activeRequests=new AtomicInteger();
+    
     public APIGateway() throws IOException {
         this(0);
     }
     
     public APIGateway(int port) throws IOException {
-        super(port);
-        registerConnectionAtAgent();
+        this(new ServerSocket(port),GatewayConfig.getInstance().getAgentHost(),
+                GatewayConfig.getInstance().getAgentPort());
+    }
+    
+    /**
+     * Creates gateway listening on already bound socket.
+     * 
+     * @param serverSocket Socket on which gateway will listen for clients.
+     * @param agentHost Host of the agent to which gateway connects.
+     * @param agentPort Port of the agent to which gateway connects.
+     * 
+     * @throws IOException If connection to the agent failed.
+     */
+    public APIGateway(ServerSocket serverSocket,String agentHost,int agentPort) throws IOException {
+        super(serverSocket);
+        registerConnectionAtAgent(agentHost,agentPort);
+    }
+    
+    /**
+     * @return True if multiple gateways can listen on the same port.
+     */
+    public static boolean isPortSharingSupported(){
+        try(ServerSocket probe=new ServerSocket()){
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }catch(IOException e){
+            return false;
+        }
+    }
+    
+    /**
+     * Opens socket on given port, which can be shared by other gateways if 
+     * {@link #isPortSharingSupported()}. Connections are then distributed 
+     * by the OS between them.
+     * 
+     * @param port On which port to listen.
+     * 
+     * @return Bound socket.
+     * 
+     * @throws IOException If socket couldn't be bound.
+     */
+    public static ServerSocket openSharedSocket(int port) throws IOException
+    {
+        final ServerSocket socket=new ServerSocket();
+        try{
+            if(isPortSharingSupported())
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT,true);
+            socket.bind(new InetSocketAddress(port));
+        }catch(IOException e){
+            socket.close();
+            throw e;
+        }
+        return socket;
     }
     
-    private void registerConnectionAtAgent() throws IOException{
-        agentConnection=new ConnectionThread(new Connection(new Socket("localhost", 10000)),this);
+    private void registerConnectionAtAgent(String agentHost,int agentPort) throws IOException{
+        agentConnection=new ConnectionThread(new Connection(new Socket(agentHost,agentPort)),this);
         agentConnection.start();
         JsonBuilder request=new JsonBuilder("registerConnection");
         request.addField("serviceID",getServiceID());
@@ -96,47 +301,785 @@ public class APIGateway extends MultithreadService{
         return EMPTY_ARRAY;
     }
 
+    @Override
+    public void processConnection(Connection clientConnection) throws IOException{
+        clientAddress.set(clientConnection.getConnectionSocket().getInetAddress().getHostAddress());
+        activeRequests.incrementAndGet();
+        try{
+            super.processConnection(clientConnection);
+        }finally{
+            activeRequests.decrementAndGet();
+            clientAddress.remove();
+        }
+    }
+    
+    /**
+     * @return Number of client requests in progress.
+     */
+    public int getActiveRequests(){
+        return activeRequests.get();
+    }
+
     @Override
     public void processRequest(InputStream request, JsonBuilder response)
             throws IOException, RequestException
     {
         final JsonReader reader=new JsonReader(request);
-        String action=reader.readString("action");
         System.out.println("ApiGateway request: "+reader.getRequestNode().toPrettyString());
-        // Ask API Gateway agent for service host and port
-        final JsonBuilder agentRequest=new JsonBuilder("getServiceInfo");
-        assignMessageID(agentRequest);
-        agentRequest.addField("service", action)
-            .addField("type", "request");
-        JsonReader agentResponse=sendToAgent(agentRequest);
-        // Communicate with service
-        String serviceHost=agentResponse.readString("host");
-        int servicePort=agentResponse.readNumber("port", Integer.class);
+        if(reader.readString("action").equalsIgnoreCase("batch"))
+            processBatch(reader,response);
+        else
+            processAction(reader,response);
+    }
+    
+    /**
+     * Processes batch of requests. Requests are run in parallel, except 
+     * those which depend on an earlier request, which run after it 
+     * succeeded. Results are returned in the order of requests.
+     * 
+     * @param reader Batch request.
+     * @param response Response which client will receive.
+     * 
+     * @throws RequestException If batch was malformed.
+     */
+    private void processBatch(JsonReader reader,JsonBuilder response) throws RequestException
+    {
+        final JsonNode requests=reader.getNode("requests");
+        if(!requests.isArray()||requests.isEmpty()||requests.size()>MAX_BATCH_SIZE)
+            throw new RequestException("Batch has to contain from 1 to "+MAX_BATCH_SIZE+" requests");
+        for(int i=0;i<requests.size();i++)
+            validateBatchRequest(requests.get(i),i);
+        final String client=clientAddress.get();
+        final ArrayList<CompletableFuture<ObjectNode>> results=new ArrayList<>(requests.size());
+        for(int i=0;i<requests.size();i++)
+        {
+            final JsonNode batchRequest=requests.get(i);
+            final JsonNode dependsOn=batchRequest.get("dependsOn");
+            if(dependsOn==null||dependsOn.isNull())
+            {
+                results.add(CompletableFuture.supplyAsync(()->
+                        processBatchRequest(batchRequest,client),BATCH_EXECUTOR));
+            }
+            else
+            {
+                results.add(results.get(dependsOn.asInt()).thenApplyAsync((dependency)->{
+                    if(dependency.path("status").asInt()==200)
+                        return processBatchRequest(batchRequest,client);
+                    return new JsonBuilder().setStatus("Request it depends on failed",424).getJson();
+                },BATCH_EXECUTOR));
+            }
+        }
+        final List<ObjectNode> ordered=results.stream().map(CompletableFuture::join).toList();
+        response.addArray("results",ordered)
+            .setStatus("Batch processed",200);
+    }
+    
+    /**
+     * Checks whether request can be a part of batch.
+     * 
+     * @param batchRequest Request to check.
+     * @param position Position of request in batch.
+     * 
+     * @throws RequestException If request can't be batched.
+     */
+    private void validateBatchRequest(JsonNode batchRequest,int position) throws RequestException
+    {
+        if(!batchRequest.isObject()||!batchRequest.path("action").isTextual())
+            throw new RequestException("Batch request: "+position+" has no action");
+        if(batchRequest.get("action").asText().equalsIgnoreCase("batch"))
+            throw new RequestException("Batches can't be nested");
+        final JsonNode dependsOn=batchRequest.get("dependsOn");
+        if(dependsOn!=null&&!dependsOn.isNull()
+                &&(!dependsOn.canConvertToInt()||dependsOn.asInt()<0||dependsOn.asInt()>=position))
+            throw new RequestException("Batch request: "+position+" can depend only on an earlier request");
+    }
+    
+    /**
+     * Processes single request of batch.
+     * 
+     * @param batchRequest Request to process.
+     * @param client Address of the client which sent batch.
+     * 
+     * @return Response to the request, failed requests included.
+     */
+    private ObjectNode processBatchRequest(JsonNode batchRequest,String client)
+    {
+        final JsonBuilder batchResponse=new JsonBuilder();
+        clientAddress.set(client);
+        try{
+            processAction(new JsonReader(batchRequest),batchResponse);
+        }catch(IOException|RequestException|RuntimeException e){
+            processException(batchResponse,e);
+        }finally{
+            clientAddress.remove();
+        }
+        return batchResponse.getJson();
+    }
+    
+    /**
+     * Processes single client request.
+     * 
+     * @param reader Client request.
+     * @param response Response which client will receive.
+     * 
+     * @throws IOException If any socket error occurred.
+     * @throws RequestException If request was malformed.
+     */
+    private void processAction(JsonReader reader,JsonBuilder response)
+            throws IOException,RequestException
+    {
+        String action=reader.readString("action");
+        // Rejected requests never reach services, so they don't cause scale ups.
+        // Limited per client address, since ownerID names whose data is
+        // requested, not who requests it, and client can change it freely
+        final long retryAfter=rateLimiter.tryAcquire(action,clientAddress.get());
+        if(retryAfter>0)
+        {
+            response.addField("retryAfter",retryAfter)
+                .setStatus("Too many requests",429);
+            return;
+        }
+        final String ownerID=OWNER_ROUTED_ACTIONS.contains(action.toLowerCase())
+                ?reader.readString("ownerID"):null;
+        final String sessionAgent=SESSION_ROUTED_ACTIONS.contains(action.toLowerCase())
+                ?UploadSessionService.getSessionAgent(reader.readString("sessionID")):null;
+        final String routeKey=sessionAgent!=null?action+"@"+sessionAgent
+                :ownerID==null?action:action+"/"+ownerID;
+        final boolean isGetPosts=action.equalsIgnoreCase("getPosts");
+        final String postsOwner=isGetPosts||action.equalsIgnoreCase("addPost")
+                ?reader.getNode("ownerID").asText():null;
+        long postsGeneration=0;
+        if(isGetPosts)
+        {
+            final ObjectNode cachedPosts=postsCache.get(postsOwner);
+            if(cachedPosts!=null)
+            {
+                response.getJson().setAll(cachedPosts);
+                return;
+            }
+            postsGeneration=postsCache.getGeneration(postsOwner);
+        }
+        ServiceInstanceInfo[] cachedInstances=routeCache.get(routeKey);
+        final boolean cachedRoute=cachedInstances!=null;
+        final ServiceInstanceInfo[] instances=cachedRoute
+                ?cachedInstances:resolveRoute(action,ownerID,sessionAgent,routeKey);
+        // All instances of the action accept the same fields
+        final ServiceHostport route=instances[0].toServiceHostport();
         final JsonBuilder serviceRequest=new JsonBuilder();
         // Forward only request required fields and drop unwanted
-        for(String field:agentResponse.readArrayOf("requiredFields"))
+        for(String field:route.getRequestRequiredFields())
         {
             serviceRequest.setNode(field,reader.getNode(field));
         }
-        try(Connection serviceConnection=new Connection(new Socket(serviceHost,servicePort))){
-            JsonReader serviceResponse=serviceConnection.sendRequest(serviceRequest);
-            // Forward additional response fields
-            final int serviceResponseStatus=serviceResponse.readNumber("status",Integer.class);
-            if(serviceResponseStatus==200)
+        for(String field:route.getRequestOptionalFields())
+        {
+            if(reader.hasField(field))
+                serviceRequest.setNode(field,reader.getNode(field));
+        }
+        final Bulkhead.Permit permit;
+        try{
+            permit=bulkhead.acquire(action);
+        }catch(RequestException e){
+            response.setStatus(e);
+            return;
+        }
+        final JsonReader serviceResponse;
+        try(permit){
+            if(gatewayConfig.isIdempotent(action))
+            {
+                // Forwarded request contains action and all its field values
+                serviceResponse=identicalRequests.execute(serviceRequest.toString(),
+                        ()->callLimited(action,ownerID,sessionAgent,routeKey,instances,
+                                cachedRoute,serviceRequest));
+            }
+            else
+                serviceResponse=callLimited(action,ownerID,sessionAgent,routeKey,instances,
+                        cachedRoute,serviceRequest);
+        }
+        // Forward additional response fields
+        final int serviceResponseStatus=serviceResponse.readNumber("status",Integer.class);
+        if(serviceResponseStatus==200)
+        {
+            for(String field:route.getAdditionalResponseFields())
+                response.setNode(field,serviceResponse.getNode(field));
+        }
+        String responseText=serviceResponse.readString("responseText");
+        response.setStatus(responseText,serviceResponseStatus);
+        if(serviceResponseStatus==200&&postsOwner!=null)
+        {
+            if(isGetPosts)
+                postsCache.put(postsOwner,postsGeneration,response.getJson());
+            else
+                postsCache.invalidate(postsOwner);
+        }
+    }
+    
+    /**
+     * Calls service if its action limit of requests in flight wasn't 
+     * reached, otherwise responds at once with status 503. Limit adapts to 
+     * the service latency.
+     * 
+     * @see #callService(String,String,String,String,ServiceInstanceInfo[],boolean,JsonBuilder)
+     */
+    private JsonReader callLimited(String action,String ownerID,String sessionAgent,String routeKey,
+            ServiceInstanceInfo[] instances,boolean cachedRoute,JsonBuilder serviceRequest)
+            throws IOException,RequestException
+    {
+        final ConcurrencyLimiter.Listener listener=UPSTREAM_LIMITERS
+                .computeIfAbsent(action.toLowerCase(),(type)->new GradientLimiter())
+                .tryAcquire();
+        if(listener==null)
+        {
+            return new JsonReader(new JsonBuilder()
+                .setStatus("Service is overloaded",HttpURLConnection.HTTP_UNAVAILABLE).getJson());
+        }
+        final long start=System.nanoTime();
+        try{
+            final JsonReader serviceResponse=callService(action,ownerID,sessionAgent,routeKey,
+                    instances,cachedRoute,serviceRequest);
+            if(serviceResponse.readNumber("status",Integer.class)>=500)
+                listener.onDropped();
+            else
+                listener.onSuccess(System.nanoTime()-start);
+            return serviceResponse;
+        }catch(RequestException e){
+            listener.onIgnore();
+            throw e;
+        }finally{
+            // Does nothing if outcome was already reported
+            listener.onDropped();
+        }
+    }
+    
+    /**
+     * @return Current limits of requests in flight to the services, where: 
+     * <br>
+     * Key - lowercase action <br>
+     * Value - limit and requests in flight
+     */
+    public static HashMap<String,HashMap<String,Integer>> getUpstreamLimits()
+    {
+        final HashMap<String,HashMap<String,Integer>> limits=new HashMap<>();
+        UPSTREAM_LIMITERS.forEach((action,limiter)->{
+            final HashMap<String,Integer> actionLimit=new HashMap<>();
+            actionLimit.put("limit",limiter.getLimit());
+            actionLimit.put("inFlight",limiter.getInFlight());
+            limits.put(action,actionLimit);
+        });
+        return limits;
+    }
+    
+    /**
+     * Sends request to one of given service instances, skipping ejected ones.
+     * If instance refuses connection, request fails over to another one or
+     * cached instances are resolved again once. Request of hedged action is
+     * also sent to another instance if it takes too long.
+     * 
+     * @param action Requested action.
+     * @param ownerID Whose data the request concerns, may be null.
+     * @param sessionAgent Agent holding upload session the request concerns,
+     * may be null.
+     * @param routeKey Key under which instances are cached.
+     * @param instances Instances which may serve the request.
+     * @param cachedRoute Whether instances come from the route cache.
+     * @param serviceRequest What to send.
+     * 
+     * @return Service response.
+     * 
+     * @throws IOException If any socket error occurred.
+     * @throws RequestException If request was malformed.
+     */
+    private JsonReader callService(String action,String ownerID,String sessionAgent,String routeKey,
+            ServiceInstanceInfo[] instances,boolean cachedRoute,JsonBuilder serviceRequest)
+            throws IOException,RequestException
+    {
+        final long hedgeDelay=hedgingPolicy.getHedgeDelay(action);
+        ServiceInstanceInfo[] available=circuitBreaker.filterAvailable(instances);
+        ServiceInstanceInfo instance=instanceBalancer.pick(available);
+        Socket serviceSocket;
+        try{
+            serviceSocket=connect(instance);
+        }catch(IOException e){
+            routeCache.invalidate(routeKey,instances);
+            final ServiceInstanceInfo other=pickOther(available,instance);
+            if(other!=null)
+                instance=other;
+            else
+            {
+                if(!cachedRoute)
+                    throw e;
+                // Cached service may be gone, ask for current one
+                instances=resolveRoute(action,ownerID,sessionAgent,routeKey);
+                instance=instanceBalancer.pick(circuitBreaker.filterAvailable(instances));
+            }
+            serviceSocket=connect(instance);
+        }
+        final ServiceCall call=new ServiceCall(action,routeKey,instances,instance,serviceSocket);
+        if(hedgeDelay<0||instances.length<2)
+            return call.send(serviceRequest);
+        return sendHedged(call,hedgeDelay,serviceRequest);
+    }
+    
+    /**
+     * Creates executor of given number of daemon threads, which are
+     * stopped when idle.
+     * 
+     * @param name Name of the threads.
+     * @param threads Max number of threads.
+     * @param queue Where tasks wait for a thread.
+     * @param rejectionHandler What to do with task which doesn't fit the queue.
+     * 
+     * @return Created executor.
+     */
+    private static ExecutorService createCallExecutor(String name,int threads,
+            BlockingQueue<Runnable> queue,RejectedExecutionHandler rejectionHandler)
+    {
+        final ThreadPoolExecutor executor=new ThreadPoolExecutor(threads,threads,
+                CALL_THREAD_KEEP_ALIVE,TimeUnit.SECONDS,queue,(task)->{
+            final Thread callThread=new Thread(task,name);
+            callThread.setDaemon(true);
+            return callThread;
+        },rejectionHandler);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    /**
+     * Sends request and if it doesn't respond within given delay, sends it
+     * also to another instance. The first successful response is used and
+     * the other call is cancelled.
+     * 
+     * @param primary Call to the selected instance.
+     * @param hedgeDelay Delay in milliseconds before the hedge is sent.
+     * @param serviceRequest What to send.
+     * 
+     * @return Service response.
+     * 
+     * @throws IOException If both calls failed due to socket error.
+     * @throws RequestException If request was malformed.
+     */
+    private JsonReader sendHedged(ServiceCall primary,long hedgeDelay,JsonBuilder serviceRequest)
+            throws IOException,RequestException
+    {
+        final CompletableFuture<JsonReader> primaryResponse;
+        try{
+            primaryResponse=primary.sendAsync(serviceRequest);
+        }catch(RejectedExecutionException e){
+            // Too many calls in flight to hedge any more of them
+            return primary.send(serviceRequest);
+        }
+        try{
+            return primaryResponse.get(hedgeDelay,TimeUnit.MILLISECONDS);
+        }catch(TimeoutException e){
+            // Primary is slow, hedge below
+        }catch(InterruptedException e){
+            primary.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for service");
+        }catch(ExecutionException e){
+            throw unwrap(e.getCause());
+        }
+        final ServiceInstanceInfo hedgeInstance=pickOther(
+                circuitBreaker.filterAvailable(primary.instances),primary.instance);
+        if(hedgeInstance==null||!hedgingPolicy.tryHedge())
+            return await(primaryResponse);
+        final ServiceCall hedge;
+        try{
+            hedge=new ServiceCall(primary.action,primary.routeKey,primary.instances,hedgeInstance,
+                    connect(hedgeInstance));
+        }catch(IOException e){
+            return await(primaryResponse);
+        }
+        final CompletableFuture<JsonReader> hedgeResponse;
+        try{
+            hedgeResponse=hedge.sendAsync(serviceRequest);
+        }catch(RejectedExecutionException e){
+            hedge.cancel();
+            return await(primaryResponse);
+        }
+        final CompletableFuture<JsonReader> firstResponse=new CompletableFuture<>();
+        final AtomicInteger failed=new AtomicInteger();
+        primaryResponse.whenComplete((response,error)->
+                completeFirst(firstResponse,response,error,failed));
+        hedgeResponse.whenComplete((response,error)->
+                completeFirst(firstResponse,response,error,failed));
+        try{
+            final JsonReader response=await(firstResponse);
+            // Primary may have failed before hedge won, so its result is
+            // read only if it completed normally
+            if(primaryResponse.isDone()&&!primaryResponse.isCompletedExceptionally()
+                    &&primaryResponse.getNow(null)==response)
+                hedge.cancel();
+            else
             {
-                for(String field:agentResponse.readArrayOf("additionalFields"))
-                    response.setNode(field,serviceResponse.getNode(field));
+                primary.cancel();
+                hedgingPolicy.hedgeWon();
+            }
+            return response;
+        }catch(IOException|RequestException|RuntimeException e){
+            primary.cancel();
+            hedge.cancel();
+            throw e;
+        }
+    }
+    
+    /**
+     * Completes given future with the first successful response or with
+     * the last error if both calls failed.
+     */
+    private void completeFirst(CompletableFuture<JsonReader> firstResponse,JsonReader response,
+            Throwable error,AtomicInteger failed)
+    {
+        if(error==null)
+            firstResponse.complete(response);
+        else if(failed.incrementAndGet()==2)
+            firstResponse.completeExceptionally(error);
+    }
+    
+    /**
+     * Selects instance reachable under other hostport than given one.
+     * Instances of the same type on one agent share its sidecar hostport,
+     * so retrying them would reach the same agent.
+     * 
+     * @param instances Instances to choose from.
+     * @param used Instance which shouldn't be selected.
+     * 
+     * @return Selected instance or null if there is no instance under
+     * other hostport.
+     */
+    private ServiceInstanceInfo pickOther(ServiceInstanceInfo[] instances,ServiceInstanceInfo used)
+    {
+        final ServiceHostport usedRoute=used.toServiceHostport();
+        final ArrayList<ServiceInstanceInfo> others=new ArrayList<>(instances.length);
+        for(ServiceInstanceInfo instance:instances)
+        {
+            final ServiceHostport route=instance.toServiceHostport();
+            if(route.getPort()!=usedRoute.getPort()||!route.getHost().equals(usedRoute.getHost()))
+                others.add(instance);
+        }
+        if(others.isEmpty())
+            return null;
+        return instanceBalancer.pick(others.toArray(ServiceInstanceInfo[]::new));
+    }
+    
+    /**
+     * Opens connection to the given instance. Refused connection counts as
+     * instance failure.
+     * 
+     * @param instance Where to connect.
+     * 
+     * @return Connected socket.
+     * 
+     * @throws IOException If connection failed.
+     */
+    private Socket connect(ServiceInstanceInfo instance) throws IOException
+    {
+        final ServiceHostport route=instance.toServiceHostport();
+        try{
+            return new Socket(route.getHost(),route.getPort());
+        }catch(IOException e){
+            if(circuitBreaker.recordFailure(instance))
+                reportEjection(instance);
+            throw e;
+        }
+    }
+    
+    /**
+     * Reports ejected instance to the manager, so it doesn't wait for its
+     * periodic health check. Circuit is kept per agent sidecar, so all 
+     * instances of the type run by the same agent are checked.
+     * 
+     * @param instance Which instance was ejected.
+     */
+    private void reportEjection(ServiceInstanceInfo instance)
+    {
+        System.out.println("[Info]: Ejected service instance: "+instance.toServiceHostport());
+        if(instance.getServiceID()==null)
+            return;
+        CompletableFuture.runAsync(()->{
+            final JsonBuilder report=new JsonBuilder("reportEjection");
+            assignMessageID(report);
+            report.addField("type","request")
+                .addField("serviceID",instance.getServiceID())
+                .addField("service",instance.getServiceType());
+            if(instance.getAgentName()!=null)
+                report.addField("ejectedAgent",instance.getAgentName());
+            try{
+                sendToAgent(report);
+            }catch(Exception e){
+                System.out.println("[Error]: Failed to report ejected instance due to: "+e);
             }
-            String responseText=serviceResponse.readString("responseText");
-            response.setStatus(responseText,serviceResponseStatus);
+        });
+    }
+    
+    private JsonReader await(CompletableFuture<JsonReader> response) throws IOException,RequestException
+    {
+        try{
+            return response.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for service");
+        }catch(ExecutionException e){
+            throw unwrap(e.getCause());
+        }
+    }
+    
+    /**
+     * Rethrows call error as thrown by the synchronous call.
+     * 
+     * @param cause Error of the call.
+     * 
+     * @return Never returns normally, declared to allow {@code throw}.
+     * 
+     * @throws IOException If call failed due to socket error.
+     * @throws RequestException If request was malformed.
+     */
+    private IOException unwrap(Throwable cause) throws IOException,RequestException
+    {
+        if(cause instanceof CompletionException&&cause.getCause()!=null)
+            cause=cause.getCause();
+        if(cause instanceof IOException ioError)
+            throw ioError;
+        if(cause instanceof RequestException requestError)
+            throw requestError;
+        if(cause instanceof RuntimeException runtimeError)
+            throw runtimeError;
+        return new IOException(cause);
+    }
+    
+    /**
+     * Asks {@code APIGateway} agent for all instances of service handling 
+     * given action and caches them.
+     * 
+     * @param action Requested action.
+     * @param ownerID Whose data the request concerns, may be null.
+     * @param sessionAgent Agent holding upload session the request concerns,
+     * may be null.
+     * @param routeKey Key under which service will be cached.
+     * 
+     * @return Resolved service instances.
+     * 
+     * @throws IOException If any socket error occurred.
+     * @throws RequestException If request was malformed.
+     */
+    private ServiceInstanceInfo[] resolveRoute(String action,String ownerID,String sessionAgent,
+            String routeKey)
+            throws IOException,RequestException
+    {
+        final JsonBuilder agentRequest=new JsonBuilder("getServiceInfo");
+        assignMessageID(agentRequest);
+        agentRequest.addField("service", action)
+            .addField("type", "request")
+            // Requests served from cache weren't counted by the manager yet
+            .addField("requests", routeCache.takeServedRequests(routeKey))
+            .addField("all", true);
+        if(ownerID!=null)
+            agentRequest.addField("ownerID",ownerID);
+        if(sessionAgent!=null)
+            agentRequest.addField("sessionAgent",sessionAgent);
+        JsonReader agentResponse=sendToAgent(agentRequest);
+        ServiceInstanceInfo[] instances=agentResponse.hasField("instances")
+                ?agentResponse.readArrayOf("instances",ServiceInstanceInfo.class)
+                    .toArray(ServiceInstanceInfo[]::new)
+                :null;
+        if(instances==null||instances.length==0)
+        {
+            // Only the service picked by agent is known
+            instances=new ServiceInstanceInfo[]{new ServiceInstanceInfo(null,action,null,
+                agentResponse.readString("host"),
+                agentResponse.readNumber("port", Integer.class),
+                ServiceStatus.RUNNING.getStatusCode(),
+                agentResponse.readArrayOf("requiredFields").toArray(String[]::new),
+                agentResponse.readArrayOf("additionalFields").toArray(String[]::new),
+                agentResponse.hasField("optionalFields")
+                    ?agentResponse.readArrayOf("optionalFields").toArray(String[]::new)
+                    :EMPTY_ARRAY)};
         }
+        routeCache.put(routeKey,instances);
+        return instances;
     }
 
+    /**
+     * Stops accepting clients and waits up to {@link #DRAIN_TIMEOUT} for 
+     * requests in progress, which still need the agent, before closing 
+     * connection to it.
+     * 
+     * @throws IOException If failed to close socket.
+     */
     @Override
     public void closeService() throws IOException {
-        if(!agentConnection.isAlive())
-            agentConnection.close();
         super.closeService();
+        final long deadline=System.currentTimeMillis()+DRAIN_TIMEOUT;
+        while(activeRequests.get()>0&&System.currentTimeMillis()<deadline)
+            sleepFor(DRAIN_CHECK_INTERVAL);
+        if(activeRequests.get()>0)
+            System.out.println("[Error]: Gateway closed with requests in progress: "+activeRequests.get());
+        if(agentConnection.isAlive())
+            agentConnection.close();
+    }
+    
+    /**
+     * Stores services resolved for actions. Entries expire after 
+     * {@link #ROUTE_TTL}.
+     */
+    private static class RouteCache{
+        /**
+         * Resolved services, where: <br>
+         * Key - action or action and owner ID <br>
+         * Value - cached service instances
+         */
+        private final ConcurrentHashMap<String,CachedRoute> routes=new ConcurrentHashMap<>();
+        
+        /**
+         * Number of requests served from cache since last resolve of the key.
+         */
+        private final ConcurrentHashMap<String,LongAdder> servedRequests=new ConcurrentHashMap<>();
+        
+        /**
+         * @param routeKey Which route to get.
+         * 
+         * @return Cached service instances or null if there are none or they
+         * expired.
+         */
+        public ServiceInstanceInfo[] get(String routeKey)
+        {
+            final CachedRoute cached=routes.get(routeKey);
+            if(cached==null||cached.expiresAt<System.currentTimeMillis())
+                return null;
+            servedRequests.computeIfAbsent(routeKey,(key)->new LongAdder()).increment();
+            return cached.instances;
+        }
+        
+        public void put(String routeKey,ServiceInstanceInfo[] instances){
+            routes.put(routeKey,new CachedRoute(instances,System.currentTimeMillis()+ROUTE_TTL));
+        }
+        
+        /**
+         * Removes given route if it wasn't replaced in the meantime.
+         * 
+         * @param routeKey Which route to remove.
+         * @param instances Instances which failed.
+         */
+        public void invalidate(String routeKey,ServiceInstanceInfo[] instances)
+        {
+            routes.computeIfPresent(routeKey,(key,cached)->cached.instances==instances?null:cached);
+        }
+        
+        /**
+         * @param routeKey Which route counter to reset.
+         * 
+         * @return Number of requests served from cache since last call.
+         */
+        public long takeServedRequests(String routeKey){
+            final LongAdder served=servedRequests.get(routeKey);
+            return served==null?0:served.sumThenReset();
+        }
+    }
+    
+    /**
+     * Single request sent to the single service instance.
+     */
+    private class ServiceCall{
+        public final String action;
+        public final String routeKey;
+        public final ServiceInstanceInfo[] instances;
+        public final ServiceInstanceInfo instance;
+        private final Socket serviceSocket;
+        
+        /**
+         * Whether call was cancelled, because other call responded first.
+         */
+        private volatile boolean cancelled;
+
+        public ServiceCall(String action,String routeKey,ServiceInstanceInfo[] instances,
+                ServiceInstanceInfo instance,Socket serviceSocket)
+        {
+            this.action=action;
+            this.routeKey=routeKey;
+            this.instances=instances;
+            this.instance=instance;
+            this.serviceSocket=serviceSocket;
+        }
+        
+        /**
+         * Sends request and waits for the response.
+         * 
+         * @param serviceRequest What to send.
+         * 
+         * @return Service response.
+         * 
+         * @throws IOException If any socket error occurred.
+         * @throws RequestException If request was malformed.
+         */
+        public JsonReader send(JsonBuilder serviceRequest) throws IOException,RequestException
+        {
+            final long start=System.nanoTime();
+            instanceBalancer.requestStarted(instance);
+            circuitBreaker.requestStarted(instance);
+            try(Connection serviceConnection=new Connection(serviceSocket)){
+                JsonReader serviceResponse=serviceConnection.sendRequest(serviceRequest);
+                final long latency=System.nanoTime()-start;
+                final boolean ejected;
+                if(serviceResponse.readNumber("status",Integer.class)>=500)
+                {
+                    routeCache.invalidate(routeKey,instances);
+                    ejected=circuitBreaker.recordFailure(instance);
+                }
+                else
+                {
+                    hedgingPolicy.recordLatency(action,latency);
+                    ejected=circuitBreaker.recordSuccess(instance,action,latency);
+                }
+                if(ejected)
+                    reportEjection(instance);
+                return serviceResponse;
+            }catch(IOException e){
+                // Cancelled call failed due to closed socket, not the service
+                if(!cancelled)
+                {
+                    routeCache.invalidate(routeKey,instances);
+                    if(circuitBreaker.recordFailure(instance))
+                        reportEjection(instance);
+                }
+                throw e;
+            }finally{
+                instanceBalancer.requestFinished(instance);
+            }
+        }
+        
+        public CompletableFuture<JsonReader> sendAsync(JsonBuilder serviceRequest)
+        {
+            return CompletableFuture.supplyAsync(()->{
+                try{
+                    return send(serviceRequest);
+                }catch(IOException|RequestException e){
+                    throw new CompletionException(e);
+                }
+            },HEDGE_EXECUTOR);
+        }
+        
+        /**
+         * Stops waiting for the response by closing the socket.
+         */
+        public void cancel()
+        {
+            cancelled=true;
+            try{
+                serviceSocket.close();
+            }catch(IOException e){
+                // Already closed
+            }
+        }
+    }
+    
+    private static class CachedRoute{
+        public final ServiceInstanceInfo[] instances;
+        public final long expiresAt;
+
+        public CachedRoute(ServiceInstanceInfo[] instances,long expiresAt){
+            this.instances=instances;
+            this.expiresAt=expiresAt;
+        }
     }
     
     public static void main(String[] args) throws IOException {
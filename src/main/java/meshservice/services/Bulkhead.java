@@ -0,0 +1,266 @@
+package meshservice.services;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import meshservice.communication.RequestException;
+import meshservice.config.GatewayConfig;
+import meshservice.config.GatewayConfig.ClassLimit;
+
+/**
+ * Singleton isolating traffic classes of the gateways of this process. Each
+ * class has its own concurrency limit and queue, so a burst in one class
+ * can't take all the slots. When a shared slot frees up, waiting classes get
+ * it either strictly by weight or proportionally to their weights.
+ *
+ * @author ArtiFixal
+ */
+public class Bulkhead{
+
+    /**
+     * Number of queued requests per class concurrency slot.
+     */
+    public static final int QUEUE_PER_SLOT=4;
+
+    /**
+     * Traffic classes, where: <br>
+     * Key - class name <br>
+     * Value - class state
+     */
+    private final HashMap<String,TrafficClass> classes;
+
+    private final ReentrantLock lock;
+
+    /**
+     * Number of requests processed by all classes.
+     */
+    private int running;
+
+    private final LongAdder rejected;
+
+    private final GatewayConfig config;
+
+    /**
+     * Singleton instance of bulkhead.
+     */
+    private static Bulkhead bulkhead;
+
+    private Bulkhead(GatewayConfig config){
+        this.config=config;
+        classes=new HashMap<>();
+        config.getTrafficClasses().forEach((name,limit)->classes.put(name,new TrafficClass(limit)));
+        lock=new ReentrantLock();
+        rejected=new LongAdder();
+    }
+
+    public static synchronized Bulkhead getInstance()
+    {
+        if(bulkhead==null)
+            bulkhead=new Bulkhead(GatewayConfig.getInstance());
+        return bulkhead;
+    }
+
+    /**
+     * Waits for a slot of the given action class.
+     *
+     * @param action Requested action.
+     *
+     * @return Slot which has to be closed after the request.
+     *
+     * @throws RequestException If class queue is full or slot wasn't
+     * granted in time.
+     */
+    public Permit acquire(String action) throws RequestException
+    {
+        final TrafficClass trafficClass=classes.get(config.getTrafficClass(action));
+        lock.lock();
+        try{
+            if(trafficClass.queue.isEmpty()&&canRun(trafficClass))
+            {
+                start(trafficClass);
+                return new Permit(trafficClass);
+            }
+            if(trafficClass.queue.size()>=trafficClass.limit.maxConcurrent*QUEUE_PER_SLOT)
+                throw reject(trafficClass);
+            final Waiter waiter=new Waiter(lock.newCondition());
+            trafficClass.queue.add(waiter);
+            long remaining=TimeUnit.MILLISECONDS.toNanos(config.getBulkheadQueueTimeout());
+            try{
+                while(!waiter.granted&&remaining>0)
+                    remaining=waiter.grant.awaitNanos(remaining);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            if(!waiter.granted)
+            {
+                trafficClass.queue.remove(waiter);
+                throw reject(trafficClass);
+            }
+            return new Permit(trafficClass);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private RequestException reject(TrafficClass trafficClass)
+    {
+        rejected.increment();
+        trafficClass.rejected++;
+        return new RequestException(HttpURLConnection.HTTP_UNAVAILABLE,
+                "Gateway is busy with "+trafficClass.limit.name+" requests");
+    }
+
+    private boolean canRun(TrafficClass trafficClass){
+        return running<config.getGatewayConcurrency()
+                &&trafficClass.running<trafficClass.limit.maxConcurrent;
+    }
+
+    private void start(TrafficClass trafficClass){
+        running++;
+        trafficClass.running++;
+    }
+
+    private void release(TrafficClass trafficClass)
+    {
+        lock.lock();
+        try{
+            running--;
+            trafficClass.running--;
+            dispatch();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Grants free slots to the waiting requests.
+     */
+    private void dispatch()
+    {
+        while(running<config.getGatewayConcurrency())
+        {
+            final TrafficClass next=selectNext();
+            if(next==null)
+                return;
+            final Waiter waiter=next.queue.poll();
+            start(next);
+            waiter.granted=true;
+            waiter.grant.signal();
+        }
+    }
+
+    /**
+     * Selects class which gets the next free slot. Weighted selection uses
+     * smooth weighted round robin, so classes alternate instead of being
+     * served in bursts.
+     *
+     * @return Selected class or null if no class can run.
+     */
+    private TrafficClass selectNext()
+    {
+        final ArrayList<TrafficClass> waiting=new ArrayList<>();
+        for(TrafficClass trafficClass:classes.values())
+        {
+            if(!trafficClass.queue.isEmpty()&&canRun(trafficClass))
+                waiting.add(trafficClass);
+        }
+        if(waiting.isEmpty())
+            return null;
+        TrafficClass selected=waiting.get(0);
+        if(config.isStrictPriority())
+        {
+            for(TrafficClass trafficClass:waiting)
+            {
+                if(trafficClass.limit.weight>selected.limit.weight)
+                    selected=trafficClass;
+            }
+            return selected;
+        }
+        int totalWeight=0;
+        for(TrafficClass trafficClass:waiting)
+        {
+            trafficClass.currentWeight+=trafficClass.limit.weight;
+            totalWeight+=trafficClass.limit.weight;
+            if(trafficClass.currentWeight>selected.currentWeight)
+                selected=trafficClass;
+        }
+        selected.currentWeight-=totalWeight;
+        return selected;
+    }
+
+    public long getRejected(){
+        return rejected.sum();
+    }
+
+    /**
+     * @return Number of running and queued requests and rejections of each
+     * class.
+     */
+    public HashMap<String,HashMap<String,Long>> getClassStats()
+    {
+        lock.lock();
+        try{
+            final HashMap<String,HashMap<String,Long>> stats=new HashMap<>();
+            classes.forEach((name,trafficClass)->{
+                final HashMap<String,Long> classStats=new HashMap<>();
+                classStats.put("running",(long)trafficClass.running);
+                classStats.put("queued",(long)trafficClass.queue.size());
+                classStats.put("rejected",trafficClass.rejected);
+                stats.put(name,classStats);
+            });
+            return stats;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Slot of a single request.
+     */
+    public class Permit implements AutoCloseable{
+        private final TrafficClass trafficClass;
+        private boolean released;
+
+        private Permit(TrafficClass trafficClass){
+            this.trafficClass=trafficClass;
+        }
+
+        @Override
+        public void close(){
+            if(released)
+                return;
+            released=true;
+            release(trafficClass);
+        }
+    }
+
+    private static class TrafficClass{
+        public final ClassLimit limit;
+        public final ArrayDeque<Waiter> queue=new ArrayDeque<>();
+        public int running;
+        public long rejected;
+
+        /**
+         * Weight accumulated by weighted round robin.
+         */
+        public int currentWeight;
+
+        public TrafficClass(ClassLimit limit){
+            this.limit=limit;
+        }
+    }
+
+    private static class Waiter{
+        public final Condition grant;
+        public boolean granted;
+
+        public Waiter(Condition grant){
+            this.grant=grant;
+        }
+    }
+}
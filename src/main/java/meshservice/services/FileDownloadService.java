@@ -4,12 +4,17 @@ import meshservice.communication.JsonBuilder;
 import meshservice.communication.JsonReader;
 import meshservice.communication.RequestException;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+import meshservice.storage.FileCache;
+import meshservice.storage.FileStore;
 
 /**
  * This class provides services for file operations such as uploading and downloading files.
@@ -21,9 +26,20 @@ public class FileDownloadService extends Service {
     public static final String[] REQUEST_REQUIRED_FIELDS=new String[]{"action","ownerID","filename"};
     
     /**
-     * Root directory where user files are stored.
+     * Client may list accepted encodings, if it accepts gzip compressed 
+     * files are sent without decompression.
      */
-    private File filesRootDirectory;
+    public static final String[] REQUEST_OPTIONAL_FIELDS=new String[]{"acceptEncoding"};
+    
+    /**
+     * Store where user files are saved.
+     */
+    private final FileStore fileStore;
+    
+    /**
+     * Cache of the most recently downloaded files.
+     */
+    private final FileCache fileCache;
     
     /**
      * Default constructor that initializes the FileService with a default port.
@@ -40,7 +56,8 @@ public class FileDownloadService extends Service {
      */
     public FileDownloadService(int port) throws IOException {
         super(port);
-        filesRootDirectory=new File("UserData");
+        fileStore=FileStore.getInstance();
+        fileCache=FileCache.getInstance();
     }
 
     @Override
@@ -48,9 +65,14 @@ public class FileDownloadService extends Service {
         return REQUEST_REQUIRED_FIELDS;
     }
     
+    @Override
+    public String[] getOptionalRequestFields(){
+        return REQUEST_OPTIONAL_FIELDS;
+    }
+    
     @Override
     public String[] getAdditionalResponseFields(){
-        return new String[]{"file", "filename"};
+        return new String[]{"file", "filename", "encoding"};
     }
 
     /**
@@ -65,19 +87,37 @@ public class FileDownloadService extends Service {
     public void processRequest(InputStream request, JsonBuilder response) throws IOException, RequestException {
         final JsonReader reader = new JsonReader(request);
         final String action = reader.readString("action");
-        final File userDirectory=new File(filesRootDirectory+"/"+reader.readString("ownerID"));
-        if(!userDirectory.exists())
+        final String ownerID = reader.readString("ownerID");
+        if(!fileStore.hasFiles(ownerID))
             throw new RequestException("User has no files");
-        final Path path = userDirectory.toPath().resolve(reader.readString("filename"));
-        if(!path.toFile().exists())
+        final String filename = reader.readString("filename");
+        Path path = fileStore.resolve(ownerID, filename);
+        if(path == null)
             throw new RequestException("Given file doesn't exist");
+        final boolean acceptsGzip = acceptsGzip(reader.readStringNullable("acceptEncoding"));
         try {
             switch (action) {
-                // If the action is "getFile", read the file from the specified path and add it to the response.
+                // If the action is "getFile", read the file through the cache and add it to the response.
                 case "getFile" -> {
-                    byte[] file = Files.readAllBytes(path);
-                    response.addField("file", Base64.getEncoder().encodeToString(file));
-                    response.addField("filename", path.getFileName().toString());
+                    ByteBuffer content;
+                    try {
+                        content = fileCache.read(path);
+                    } catch (NoSuchFileException e) {
+                        // File was compressed in the meantime
+                        path = fileStore.resolve(ownerID, filename);
+                        content = fileCache.read(path);
+                    }
+                    String encoding = "identity";
+                    if(FileStore.isCompressed(path)) {
+                        if(acceptsGzip)
+                            encoding = "gzip";
+                        else
+                            content = decompress(content);
+                    }
+                    ByteBuffer file = Base64.getEncoder().encode(content);
+                    response.addField("file", StandardCharsets.ISO_8859_1.decode(file).toString());
+                    response.addField("filename", filename);
+                    response.addField("encoding", encoding);
                     response.setStatus("File downloaded successfully", 200);
                 }
                 // If the action is not supported, throw a RequestException.
@@ -88,4 +128,33 @@ public class FileDownloadService extends Service {
         }
     }
 
+    /**
+     * Checks whether client accepts gzip encoded files.
+     * @param acceptEncoding Comma separated encodings accepted by the client, may be null.
+     * @return True if gzip is accepted, false otherwise.
+     */
+    private boolean acceptsGzip(String acceptEncoding) {
+        if(acceptEncoding == null)
+            return false;
+        for(String encoding : acceptEncoding.split(",")) {
+            if(encoding.trim().equalsIgnoreCase("gzip"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decompresses gzipped file content.
+     * @param compressed Compressed content.
+     * @return Raw content.
+     * @throws IOException if content is not valid gzip data.
+     */
+    private ByteBuffer decompress(ByteBuffer compressed) throws IOException {
+        final byte[] data = new byte[compressed.remaining()];
+        compressed.get(data);
+        try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return ByteBuffer.wrap(in.readAllBytes());
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+package meshservice.services;
+
+import meshservice.communication.JsonBuilder;
+import meshservice.communication.JsonReader;
+import meshservice.communication.RequestException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import meshservice.storage.FileStore;
+
+/**
+ * This class provides listing of the user files. Listing is answered from
+ * the in-memory file index without touching the file system.
+ *
+ * @author ArtiFixal
+ */
+public class FileListService extends Service {
+    public static final String[] REQUEST_REQUIRED_FIELDS=new String[]{"action","ownerID"};
+
+    /**
+     * Store where user files are saved.
+     */
+    private final FileStore fileStore;
+
+    /**
+     * Default constructor that initializes the FileListService with a default port.
+     * @throws IOException if an I/O error occurs when opening the socket.
+     */
+    public FileListService() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Constructor that initializes the FileListService with a specific port.
+     * @param port The port number.
+     * @throws IOException if an I/O error occurs when opening the socket.
+     */
+    public FileListService(int port) throws IOException {
+        super(port);
+        fileStore=FileStore.getInstance();
+    }
+
+    @Override
+    public String[] getRequiredRequestFields(){
+        return REQUEST_REQUIRED_FIELDS;
+    }
+
+    @Override
+    public String[] getAdditionalResponseFields(){
+        return new String[]{"files"};
+    }
+
+    /**
+     * Processes a request to list user files.
+     * @param request The incoming request.
+     * @param response The response to be sent back.
+     * @throws IOException if an I/O error occurs.
+     * @throws RequestException if the request cannot be processed.
+     */
+    @Override
+    public void processRequest(InputStream request, JsonBuilder response) throws IOException, RequestException {
+        final JsonReader reader = new JsonReader(request);
+        final String action = reader.readString("action");
+        final String ownerID = reader.readString("ownerID");
+        if(action.equals("listFiles"))
+            response.addArray("files", fileStore.listFiles(ownerID))
+                    .setStatus("Files found", 200);
+        else
+            throw new RequestException("Unsupported method");
+    }
+}
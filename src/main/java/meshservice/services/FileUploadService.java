@@ -4,12 +4,12 @@ import meshservice.communication.JsonBuilder;
 import meshservice.communication.JsonReader;
 import meshservice.communication.RequestException;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import meshservice.storage.FileStore;
 
 /**
  * This class provides services for file operations such as uploading and downloading files.
@@ -21,9 +21,9 @@ public class FileUploadService extends Service {
     public static final String[] REQUEST_REQUIRED_FIELDS=new String[]{"action","ownerID","file","filename"};
     
     /**
-     * Root directory where user files are stored.
+     * Store where user files are saved.
      */
-    private File filesRootDirectory;
+    private final FileStore fileStore;
     
     /**
      * Default constructor that initializes the FileService with a default port.
@@ -40,7 +40,7 @@ public class FileUploadService extends Service {
      */
     public FileUploadService(int port) throws IOException {
         super(port);
-        filesRootDirectory=new File("UserData");
+        fileStore=FileStore.getInstance();
     }
 
     @Override
@@ -65,16 +65,15 @@ public class FileUploadService extends Service {
     public void processRequest(InputStream request, JsonBuilder response) throws IOException, RequestException {
         final JsonReader reader = new JsonReader(request);
         final String action = reader.readString("action");
-        final File userDirectory=new File(filesRootDirectory+"/"+reader.readString("ownerID"));
-        if(!userDirectory.exists())
-            userDirectory.mkdirs();
-        final Path path = userDirectory.toPath().resolve(reader.readString("filename"));
+        final String ownerID = reader.readString("ownerID");
+        final String filename = reader.readString("filename");
         try {
             switch (action) {
-                // If the action is "uploadFile", write the file to the specified path.
+                // If the action is "uploadFile", decode the file while it is stored.
                 case "uploadFile" -> {
-                    byte[] file = Base64.getDecoder().decode(reader.readString("file"));
-                    Files.write(path, file);
+                    InputStream file = Base64.getDecoder().wrap(new ByteArrayInputStream(
+                            reader.readString("file").getBytes(StandardCharsets.ISO_8859_1)));
+                    fileStore.store(ownerID, filename, file);
                     response.setStatus("File uploaded successfully", 200);
                 }
                 // If the action is not supported, throw a RequestException.
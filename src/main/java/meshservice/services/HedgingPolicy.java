@@ -0,0 +1,181 @@
+package meshservice.services;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import meshservice.config.GatewayConfig;
+
+/**
+ * Singleton deciding when gateway requests are hedged, shared by all
+ * gateways of this process. Request is hedged after the 95th percentile of
+ * recent latencies of its action. Number of hedged requests is limited by
+ * budget which grows with each request.
+ *
+ * @author ArtiFixal
+ */
+public class HedgingPolicy{
+
+    /**
+     * Number of recent latencies kept per action.
+     */
+    public static final int LATENCY_SAMPLES=256;
+
+    /**
+     * Number of latencies needed before action is hedged.
+     */
+    public static final int MIN_LATENCY_SAMPLES=32;
+
+    /**
+     * Cost of a single hedged request in budget units. Each request adds
+     * configured number of hedges per 100 requests units.
+     */
+    private static final long HEDGE_COST=100;
+
+    /**
+     * Max number of hedged requests which budget can save up.
+     */
+    private static final long MAX_SAVED_HEDGES=10;
+
+    /**
+     * Recent latencies, where: <br>
+     * Key - lowercase action <br>
+     * Value - action latencies
+     */
+    private final ConcurrentHashMap<String,LatencyWindow> latencies;
+
+    /**
+     * Units of budget left.
+     */
+    private final AtomicLong budget;
+
+    private final LongAdder hedged;
+    private final LongAdder hedgesWon;
+    private final LongAdder budgetExhausted;
+
+    private final GatewayConfig config;
+
+    /**
+     * Singleton instance of policy.
+     */
+    private static HedgingPolicy policy;
+
+    private HedgingPolicy(GatewayConfig config){
+        this.config=config;
+        latencies=new ConcurrentHashMap<>();
+        budget=new AtomicLong(HEDGE_COST);
+        hedged=new LongAdder();
+        hedgesWon=new LongAdder();
+        budgetExhausted=new LongAdder();
+    }
+
+    public static synchronized HedgingPolicy getInstance()
+    {
+        if(policy==null)
+            policy=new HedgingPolicy(GatewayConfig.getInstance());
+        return policy;
+    }
+
+    /**
+     * Calculates delay after which request of given action should be hedged
+     * and adds request share to the budget.
+     *
+     * @param action Requested action.
+     *
+     * @return Delay in milliseconds or -1 if request shouldn't be hedged.
+     */
+    public long getHedgeDelay(String action)
+    {
+        if(!config.isHedged(action))
+            return -1;
+        final long maxBudget=MAX_SAVED_HEDGES*HEDGE_COST;
+        budget.getAndUpdate((units)->Math.min(units+config.getHedgeBudget(),maxBudget));
+        final LatencyWindow window=latencies.get(action.toLowerCase());
+        if(window==null)
+            return -1;
+        final long p95=window.getP95();
+        if(p95<0)
+            return -1;
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(p95),config.getHedgeMinDelay());
+    }
+
+    /**
+     * Takes single hedge from the budget.
+     *
+     * @return True if hedge may be sent, false if budget is exhausted.
+     */
+    public boolean tryHedge()
+    {
+        final long left=budget.getAndUpdate((units)->units>=HEDGE_COST?units-HEDGE_COST:units);
+        if(left<HEDGE_COST)
+        {
+            budgetExhausted.increment();
+            return false;
+        }
+        hedged.increment();
+        return true;
+    }
+
+    /**
+     * Records hedged request which responded before the original one.
+     */
+    public void hedgeWon(){
+        hedgesWon.increment();
+    }
+
+    /**
+     * Records latency of successful request.
+     *
+     * @param action Requested action.
+     * @param latency Latency in nanoseconds.
+     */
+    public void recordLatency(String action,long latency){
+        latencies.computeIfAbsent(action.toLowerCase(),(key)->new LatencyWindow()).record(latency);
+    }
+
+    public long getHedged(){
+        return hedged.sum();
+    }
+
+    public long getHedgesWon(){
+        return hedgesWon.sum();
+    }
+
+    /**
+     * @return Number of hedges which weren't sent due to exhausted budget.
+     */
+    public long getBudgetExhausted(){
+        return budgetExhausted.sum();
+    }
+
+    /**
+     * Ring of recent latencies of single action. Percentile is recalculated
+     * every {@link #MIN_LATENCY_SAMPLES} records.
+     */
+    private static class LatencyWindow{
+        private final long[] samples=new long[LATENCY_SAMPLES];
+        private long recorded;
+        private volatile long p95=-1;
+
+        public synchronized void record(long latency)
+        {
+            samples[(int)(recorded%LATENCY_SAMPLES)]=latency;
+            recorded++;
+            if(recorded%MIN_LATENCY_SAMPLES==0)
+            {
+                final long[] sorted=Arrays.copyOf(samples,(int)Math.min(recorded,LATENCY_SAMPLES));
+                Arrays.sort(sorted);
+                p95=sorted[(int)(sorted.length*0.95)];
+            }
+        }
+
+        /**
+         * @return 95th percentile in nanoseconds or -1 if there are not
+         * enough samples yet.
+         */
+        public long getP95(){
+            return p95;
+        }
+    }
+}
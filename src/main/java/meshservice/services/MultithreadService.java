@@ -1,6 +1,7 @@
 package meshservice.services;
 
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.net.Socket;
 import meshservice.communication.Connection;
 import meshservice.communication.ConnectionThread;
@@ -20,6 +21,10 @@ public abstract class MultithreadService extends Service{
         super(port);
     }
 
+    public MultithreadService(ServerSocket serverSocket){
+        super(serverSocket);
+    }
+
     @Override
     public void processSocket(Socket clientSocket) throws IOException{
         Connection clientConnection=new Connection(clientSocket);
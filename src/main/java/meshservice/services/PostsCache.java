@@ -0,0 +1,233 @@
+package meshservice.services;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import meshservice.config.GatewayConfig;
+
+/**
+ * Singleton cache of the gateway responses to getPosts, shared by all
+ * gateways of this process. Entries are invalidated by successful addPost
+ * of the same owner and expire after TTL in case a post was added through
+ * another gateway. Cache is bounded by the number of owners, least recently
+ * used entries are evicted first.
+ *
+ * @author ArtiFixal
+ */
+public class PostsCache{
+
+    /**
+     * Cached responses in access order, where: <br>
+     * Key - owner ID <br>
+     * Value - cached response or invalidation marker
+     */
+    private final LinkedHashMap<String,CacheEntry> entries;
+
+    /**
+     * Max number of cached owners.
+     */
+    private final int maxEntries;
+
+    /**
+     * Time in milliseconds after which entry expires.
+     */
+    private final long ttl;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong invalidations;
+    private final AtomicLong expirations;
+
+    /**
+     * Sum of ages of responses served from cache in milliseconds.
+     */
+    private final AtomicLong servedAgeSum;
+
+    /**
+     * Age of the oldest response served from cache in milliseconds.
+     */
+    private final AtomicLong maxServedAge;
+
+    /**
+     * Singleton instance of cache.
+     */
+    private static PostsCache cache;
+
+    private PostsCache(int maxEntries,long ttl){
+        this.maxEntries=maxEntries;
+        this.ttl=ttl;
+        entries=new LinkedHashMap<>(64,0.75f,true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CacheEntry> eldest){
+                return size()>PostsCache.this.maxEntries;
+            }
+        };
+        hits=new AtomicLong();
+        misses=new AtomicLong();
+        invalidations=new AtomicLong();
+        expirations=new AtomicLong();
+        servedAgeSum=new AtomicLong();
+        maxServedAge=new AtomicLong();
+    }
+
+    public static synchronized PostsCache getInstance()
+    {
+        if(cache==null)
+        {
+            final GatewayConfig config=GatewayConfig.getInstance();
+            cache=new PostsCache(config.getPostsCacheSize(),config.getPostsCacheTTL());
+        }
+        return cache;
+    }
+
+    /**
+     * Retrieves cached response of given owner posts.
+     *
+     * @param ownerID Whose posts to get.
+     *
+     * @return Copy of cached response or null if there is none.
+     */
+    public ObjectNode get(String ownerID)
+    {
+        final long now=System.currentTimeMillis();
+        final CacheEntry entry;
+        synchronized(entries){
+            entry=entries.get(ownerID);
+            if(entry!=null&&entry.response!=null&&now-entry.storedAt>ttl)
+            {
+                // Keep generation, so slower response can't overwrite newer one
+                entries.put(ownerID,new CacheEntry(null,entry.generation,now));
+                expirations.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        if(entry==null||entry.response==null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        final long age=now-entry.storedAt;
+        hits.incrementAndGet();
+        servedAgeSum.addAndGet(age);
+        maxServedAge.accumulateAndGet(age,Math::max);
+        return entry.response.deepCopy();
+    }
+
+    /**
+     * Reads current generation of given owner entry. It has to be read
+     * before the posts are requested and passed to the
+     * {@link #put(String,long,ObjectNode)}.
+     *
+     * @param ownerID Whose generation to get.
+     *
+     * @return Current generation.
+     */
+    public long getGeneration(String ownerID)
+    {
+        synchronized(entries){
+            final CacheEntry entry=entries.get(ownerID);
+            return entry==null?0:entry.generation;
+        }
+    }
+
+    /**
+     * Caches given response unless owner posts changed since given
+     * generation was read.
+     *
+     * @param ownerID Whose posts were read.
+     * @param generation Generation read before posts were requested.
+     * @param response Response to cache.
+     */
+    public void put(String ownerID,long generation,ObjectNode response)
+    {
+        synchronized(entries){
+            final CacheEntry entry=entries.get(ownerID);
+            final long current=entry==null?0:entry.generation;
+            if(current!=generation)
+                return;
+            entries.put(ownerID,new CacheEntry(response.deepCopy(),generation,
+                    System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Drops cached response of given owner posts.
+     *
+     * @param ownerID Whose posts changed.
+     */
+    public void invalidate(String ownerID)
+    {
+        synchronized(entries){
+            final CacheEntry entry=entries.get(ownerID);
+            final long generation=entry==null?0:entry.generation;
+            entries.put(ownerID,new CacheEntry(null,generation+1,System.currentTimeMillis()));
+        }
+        invalidations.incrementAndGet();
+    }
+
+    public long getHits(){
+        return hits.get();
+    }
+
+    public long getMisses(){
+        return misses.get();
+    }
+
+    public long getInvalidations(){
+        return invalidations.get();
+    }
+
+    /**
+     * @return Number of entries dropped by TTL instead of invalidation.
+     */
+    public long getExpirations(){
+        return expirations.get();
+    }
+
+    /**
+     * @return Fraction of requests served from cache.
+     */
+    public double getHitRatio(){
+        final long served=getHits();
+        final long total=served+getMisses();
+        return total==0?0:(double)served/total;
+    }
+
+    /**
+     * @return Average age of responses served from cache in milliseconds.
+     */
+    public long getAverageServedAge(){
+        final long served=getHits();
+        return served==0?0:servedAgeSum.get()/served;
+    }
+
+    /**
+     * @return Age of the oldest response served from cache in milliseconds.
+     */
+    public long getMaxServedAge(){
+        return maxServedAge.get();
+    }
+
+    public int getCachedOwners(){
+        synchronized(entries){
+            return entries.size();
+        }
+    }
+
+    private static class CacheEntry{
+        /**
+         * Cached response or null if entry only keeps generation.
+         */
+        public final ObjectNode response;
+        public final long generation;
+        public final long storedAt;
+
+        public CacheEntry(ObjectNode response,long generation,long storedAt){
+            this.response=response;
+            this.generation=generation;
+            this.storedAt=storedAt;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package meshservice.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import meshservice.config.GatewayConfig;
+import meshservice.config.GatewayConfig.RateLimit;
+
+/**
+ * Singleton token bucket rate limiter of client requests, shared by all
+ * gateways of this process. Each client has a separate bucket per action.
+ * Bucket state is a single timestamp updated without locks, buckets which
+ * refilled completely are evicted, because they are equal to new ones.
+ *
+ * @author ArtiFixal
+ */
+public class RateLimiter{
+
+    /**
+     * How often in nanoseconds idle buckets are evicted.
+     */
+    public static final long EVICTION_INTERVAL=TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Buckets of clients, where: <br>
+     * Key - lowercase action and client <br>
+     * Value - client bucket
+     */
+    private final ConcurrentHashMap<String,TokenBucket> buckets;
+
+    /**
+     * When in nanoseconds the next eviction should happen.
+     */
+    private final AtomicLong nextEviction;
+
+    /**
+     * Number of rejected requests.
+     */
+    private final LongAdder rejected;
+
+    private final GatewayConfig config;
+
+    /**
+     * Singleton instance of limiter.
+     */
+    private static RateLimiter limiter;
+
+    private RateLimiter(GatewayConfig config){
+        this.config=config;
+        buckets=new ConcurrentHashMap<>();
+        nextEviction=new AtomicLong(System.nanoTime()+EVICTION_INTERVAL);
+        rejected=new LongAdder();
+    }
+
+    public static synchronized RateLimiter getInstance()
+    {
+        if(limiter==null)
+            limiter=new RateLimiter(GatewayConfig.getInstance());
+        return limiter;
+    }
+
+    /**
+     * Takes token from the client bucket of given action.
+     *
+     * @param action Requested action.
+     * @param client Who sent the request.
+     *
+     * @return 0 if request is allowed, otherwise number of milliseconds
+     * after which client may retry.
+     */
+    public long tryAcquire(String action,String client)
+    {
+        final RateLimit limit=config.getRateLimit(action);
+        if(limit.isUnlimited())
+            return 0;
+        final long now=System.nanoTime();
+        evictIdle(now);
+        final long interval=Math.max(TimeUnit.SECONDS.toNanos(1)/limit.requestsPerSecond,1);
+        // How far ahead of now bucket may be emptied
+        final long tolerance=interval*(limit.burst-1);
+        final TokenBucket bucket=buckets.computeIfAbsent(action.toLowerCase()+"/"+client,
+                (key)->new TokenBucket(now));
+        while(true)
+        {
+            final long refilledAt=bucket.refilledAt.get();
+            final long start=Math.max(refilledAt,now);
+            if(start-now>tolerance)
+            {
+                rejected.increment();
+                return Math.max(TimeUnit.NANOSECONDS.toMillis(start-now-tolerance),1);
+            }
+            if(bucket.refilledAt.compareAndSet(refilledAt,start+interval))
+                return 0;
+        }
+    }
+
+    /**
+     * Removes full buckets if eviction is due. Only one caller performs the
+     * eviction, others continue without waiting.
+     *
+     * @param now Current time in nanoseconds.
+     */
+    private void evictIdle(long now)
+    {
+        final long evictAt=nextEviction.get();
+        if(now-evictAt<0||!nextEviction.compareAndSet(evictAt,now+EVICTION_INTERVAL))
+            return;
+        // Token taken concurrently from evicted bucket is lost, which at
+        // most allows one extra request
+        buckets.forEach((key,bucket)->{
+            if(bucket.refilledAt.get()-now<=0)
+                buckets.remove(key,bucket);
+        });
+    }
+
+    public long getRejected(){
+        return rejected.sum();
+    }
+
+    /**
+     * @return Number of buckets which didn't refill yet.
+     */
+    public int getTrackedBuckets(){
+        return buckets.size();
+    }
+
+    /**
+     * Bucket represented by the time in nanoseconds at which it will be
+     * full again. Taking a token moves that time by the refill interval.
+     */
+    private static final class TokenBucket{
+        public final AtomicLong refilledAt;
+
+        public TokenBucket(long refilledAt){
+            this.refilledAt=new AtomicLong(refilledAt);
+        }
+    }
+}
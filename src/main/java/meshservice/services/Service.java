@@ -7,6 +7,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.sql.SQLException;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import meshservice.communication.Connection;
 import meshservice.communication.RequestException;
 import meshservice.communication.JsonBuilder;
@@ -33,15 +35,42 @@ public abstract class Service extends Thread{
      * Unique service identifier.
      */
     protected UUID serviceID;
+    
+    /**
+     * Number of requests being processed.
+     */
+    private final AtomicInteger inFlight;
+    
+    /**
+     * Number of processed requests.
+     */
+    private final LongAdder processedRequests;
+    
+    /**
+     * Sum of processing times of all processed requests in nanoseconds.
+     */
+    private final LongAdder totalLatency;
 
     public Service() throws IOException{
         this(0);
     }
 
     public Service(int port) throws IOException{
-        serverSocket=new ServerSocket(port);
+        this(new ServerSocket(port));
+    }
+
+    /**
+     * Creates service listening on already bound socket.
+     *
+     * @param serverSocket Socket on which service will listen for clients.
+     */
+    public Service(ServerSocket serverSocket){
+        this.serverSocket=serverSocket;
         isAlive=true;
         serviceID=UUID.randomUUID();
+        inFlight=new AtomicInteger();
+        processedRequests=new LongAdder();
+        totalLatency=new LongAdder();
         start();
     }
 
@@ -63,6 +92,14 @@ public abstract class Service extends Thread{
      */
     public abstract String[] getRequiredRequestFields();
     
+    /**
+     * @return Fields which request may contain and which are forwarded to the
+     * service if client included them.
+     */
+    public String[] getOptionalRequestFields(){
+        return EMPTY_ARRAY;
+    }
+    
     /**
      * @return Fields which in addition to responseText create response.
      */
@@ -84,6 +121,8 @@ public abstract class Service extends Thread{
     
     public void processConnection(Connection clientConnection) throws IOException{
         final JsonBuilder responseToSend=new JsonBuilder();
+        final long start=System.nanoTime();
+        inFlight.incrementAndGet();
         try{
             processRequest(clientConnection.getRequestStream(),responseToSend);
             clientConnection.respond(responseToSend);
@@ -91,6 +130,10 @@ public abstract class Service extends Thread{
             System.out.println(e);
             processException(responseToSend,e);
             e.printStackTrace();
+        }finally{
+            inFlight.decrementAndGet();
+            processedRequests.increment();
+            totalLatency.add(System.nanoTime()-start);
         }
         clientConnection.close();
     }
@@ -141,6 +184,28 @@ public abstract class Service extends Thread{
     public int getPort(){
         return serverSocket.getLocalPort();
     }
+    
+    /**
+     * @return Number of requests being processed.
+     */
+    public int getInFlight(){
+        return inFlight.get();
+    }
+    
+    /**
+     * @return Number of requests processed since service started.
+     */
+    public long getProcessedRequests(){
+        return processedRequests.sum();
+    }
+    
+    /**
+     * @return Sum of processing times of all processed requests in
+     * nanoseconds.
+     */
+    public long getTotalLatency(){
+        return totalLatency.sum();
+    }
 
     /**
      * Closes this service (last request will still be processed).
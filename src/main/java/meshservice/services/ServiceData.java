@@ -24,6 +24,11 @@ public class ServiceData {
      */
     public String[] serviceAdditionalResponseFields;
     
+    /**
+     * Fields which request may contain.
+     */
+    public String[] serviceRequestOptionalFields;
+    
     /**
      * Current status of the service.
      */
@@ -55,6 +60,12 @@ public class ServiceData {
     }
 
     public ServiceData(String serviceType,int port,ServiceStatus status,String[] serviceRequestRequiredFields,String[] serviceAdditionalResponseFields)
+    {
+        this(serviceType,port,status,serviceRequestRequiredFields,
+            serviceAdditionalResponseFields,EMPTY_ARRAY);
+    }
+
+    public ServiceData(String serviceType,int port,ServiceStatus status,String[] serviceRequestRequiredFields,String[] serviceAdditionalResponseFields,String[] serviceRequestOptionalFields)
     {
         this.serviceType=serviceType;
         this.status=status;
@@ -62,6 +73,7 @@ public class ServiceData {
         this.port=port;
         this.serviceRequestRequiredFields=serviceRequestRequiredFields;
         this.serviceAdditionalResponseFields=serviceAdditionalResponseFields;
+        this.serviceRequestOptionalFields=serviceRequestOptionalFields;
     }
 
     public String getServiceType() {
@@ -87,6 +99,10 @@ public class ServiceData {
     public String[] getServiceAdditionalResponseFields(){    
         return serviceAdditionalResponseFields;
     }
+
+    public String[] getServiceRequestOptionalFields(){
+        return serviceRequestOptionalFields;
+    }
     
     public void setStatus(ServiceStatus status) {
         this.status=status;
@@ -11,11 +11,13 @@ import meshservice.services.manager.ServiceNotFoundException;
  */
 public interface ServiceInvoke{
     /**
-     * Invokes new service.
+     * Invokes new service instances.
+     * 
+     * @param count Number of instances to invoke.
      * 
      * @throws RequestException If invoke request was malformed.
      * @throws IOException If socket error occurred.
      * @throws ServiceNotFoundException If service was not found.
      */
-    public void invoke() throws RequestException,IOException,ServiceNotFoundException;
+    public void invoke(int count) throws RequestException,IOException,ServiceNotFoundException;
 }
@@ -10,6 +10,11 @@ import meshservice.services.manager.ServiceNotFoundException;
  * @author ArtiFixal
  */
 public class ServiceTraffic{
+    /**
+     * Max number of instances invoked at once.
+     */
+    public static final int MAX_INVOKE_COUNT=8;
+    
     /**
      * Current request per second.
      */
@@ -55,14 +60,24 @@ public class ServiceTraffic{
     
     public long increaseCurrentRPS()
     {
-        currentRPS++;
+        return increaseCurrentRPS(1);
+    }
+    
+    /**
+     * @param requests Number of requests to add.
+     * 
+     * @return Current request per second.
+     */
+    public long increaseCurrentRPS(long requests)
+    {
+        currentRPS+=requests;
         return currentRPS;
     }
     
     public void secondPassed() throws RequestException,IOException,ServiceNotFoundException
     {
         if(isInvokeRequired())
-            invokeCallback.invoke();
+            invokeCallback.invoke(getInvokeCount());
         previousRPS=currentRPS;
         currentRPS=1;
     }
@@ -71,4 +86,13 @@ public class ServiceTraffic{
     {
         return currentRPS/previousRPS>=invokeRatio;
     }
+    
+    /**
+     * @return Number of instances to invoke, growing with the traffic 
+     * increase, so spike is handled by a single invoke.
+     */
+    public int getInvokeCount()
+    {
+        return (int)Math.min(Math.max(currentRPS/previousRPS,1),MAX_INVOKE_COUNT);
+    }
 }
@@ -0,0 +1,100 @@
+package meshservice.services;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import meshservice.communication.RequestException;
+
+/**
+ * Coalesces concurrent identical calls. The first caller of a given key
+ * performs the call, while callers arriving before it finishes wait for its
+ * result instead of repeating the call.
+ *
+ * @author ArtiFixal
+ * @param <T> Call result type.
+ */
+public class SingleFlight<T>{
+
+    /**
+     * Call which may be coalesced.
+     *
+     * @param <T> Call result type.
+     */
+    public interface Call<T>{
+        public T call() throws IOException,RequestException;
+    }
+
+    /**
+     * Calls in progress, where: <br>
+     * Key - call key <br>
+     * Value - call result
+     */
+    private final ConcurrentHashMap<String,CompletableFuture<T>> inFlight;
+
+    /**
+     * Number of calls served by result of another call.
+     */
+    private final LongAdder coalesced;
+
+    public SingleFlight(){
+        inFlight=new ConcurrentHashMap<>();
+        coalesced=new LongAdder();
+    }
+
+    /**
+     * Performs given call or joins identical call in progress.
+     *
+     * @param key Calls with equal keys are identical.
+     * @param call What to perform.
+     *
+     * @return Call result.
+     *
+     * @throws IOException If call failed due to I/O error.
+     * @throws RequestException If call request was invalid.
+     */
+    public T execute(String key,Call<T> call) throws IOException,RequestException
+    {
+        final CompletableFuture<T> own=new CompletableFuture<>();
+        final CompletableFuture<T> running=inFlight.putIfAbsent(key,own);
+        if(running!=null)
+        {
+            coalesced.increment();
+            return await(running);
+        }
+        try{
+            final T result=call.call();
+            own.complete(result);
+            return result;
+        }catch(IOException|RequestException|RuntimeException e){
+            own.completeExceptionally(e);
+            throw e;
+        }finally{
+            inFlight.remove(key,own);
+        }
+    }
+
+    private T await(CompletableFuture<T> running) throws IOException,RequestException
+    {
+        try{
+            return running.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for coalesced call");
+        }catch(ExecutionException e){
+            final Throwable cause=e.getCause();
+            if(cause instanceof IOException ioError)
+                throw ioError;
+            if(cause instanceof RequestException requestError)
+                throw requestError;
+            if(cause instanceof RuntimeException runtimeError)
+                throw runtimeError;
+            throw new IOException(cause);
+        }
+    }
+
+    public long getCoalesced(){
+        return coalesced.sum();
+    }
+}
@@ -0,0 +1,163 @@
+package meshservice.services;
+
+import meshservice.communication.JsonBuilder;
+import meshservice.communication.JsonReader;
+import meshservice.communication.RequestException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import meshservice.storage.FileStore;
+import meshservice.storage.UploadSession;
+
+/**
+ * This class provides resumable file uploads. A file is uploaded in chunks
+ * within an upload session, which state is persisted so the client can ask
+ * for the committed offset and resume from there. Every session action is a
+ * separate service type, as each one requires different request fields.
+ * Sessions exist only on the agent which opened them, so session ID starts
+ * with name of that agent and gateway routes session actions by it.
+ *
+ * @author ArtiFixal
+ */
+public class UploadSessionService extends Service {
+    public static final String[] OPEN_REQUIRED_FIELDS=new String[]{"action","ownerID","filename"};
+    public static final String[] APPEND_REQUIRED_FIELDS=new String[]{"action","ownerID","sessionID","offset","chunk"};
+    public static final String[] OFFSET_REQUIRED_FIELDS=new String[]{"action","ownerID","sessionID"};
+    public static final String[] COMMIT_REQUIRED_FIELDS=new String[]{"action","ownerID","sessionID"};
+    
+    /**
+     * Separates agent name from the local session ID.
+     */
+    public static final char SESSION_AGENT_SEPARATOR='/';
+
+    /**
+     * Session action handled by this instance.
+     */
+    private final String sessionAction;
+
+    /**
+     * Name of the agent running this instance.
+     */
+    private final String agentName;
+
+    /**
+     * Store where committed files are saved.
+     */
+    private final FileStore fileStore;
+
+    /**
+     * Constructor that initializes the service handling given session action.
+     * @param sessionAction Lowercase name of handled action.
+     * @param port The port number.
+     * @param agentName Name of the agent running this instance.
+     * @throws IOException if an I/O error occurs when opening the socket.
+     * @throws RequestException if given action is not a session action.
+     */
+    public UploadSessionService(String sessionAction, int port, String agentName) throws IOException, RequestException {
+        super(port);
+        this.sessionAction=sessionAction;
+        this.agentName=agentName;
+        fileStore=FileStore.getInstance();
+        // Fail fast on unknown action
+        getRequiredRequestFields();
+    }
+
+    @Override
+    public String[] getRequiredRequestFields(){
+        return switch(sessionAction){
+            case "openupload" -> OPEN_REQUIRED_FIELDS;
+            case "appendupload" -> APPEND_REQUIRED_FIELDS;
+            case "getuploadoffset" -> OFFSET_REQUIRED_FIELDS;
+            case "commitupload" -> COMMIT_REQUIRED_FIELDS;
+            default -> throw new IllegalStateException("Unknown upload session action: "+sessionAction);
+        };
+    }
+
+    @Override
+    public String[] getAdditionalResponseFields(){
+        return switch(sessionAction){
+            case "openupload" -> new String[]{"sessionID","offset"};
+            case "commitupload" -> new String[]{"filename"};
+            default -> new String[]{"offset"};
+        };
+    }
+
+    /**
+     * Reads name of the agent holding given upload session.
+     * @param sessionID Session ID returned by openUpload.
+     * @return Agent name.
+     * @throws RequestException if session ID is malformed.
+     */
+    public static String getSessionAgent(String sessionID) throws RequestException {
+        final int separator=sessionID.lastIndexOf(SESSION_AGENT_SEPARATOR);
+        if(separator<1)
+            throw new RequestException("Malformed upload session ID");
+        return sessionID.substring(0,separator);
+    }
+
+    /**
+     * Finds session of given ID returned by openUpload.
+     * @param ownerID Whose session it is.
+     * @param sessionID Session ID returned by openUpload.
+     * @return Found session.
+     * @throws IOException if failed to load session manifest.
+     * @throws RequestException if there is no such session on this agent.
+     */
+    private UploadSession findSession(String ownerID, String sessionID) throws IOException, RequestException {
+        if(!getSessionAgent(sessionID).equals(agentName))
+            throw new RequestException(404,"Upload session not found");
+        return UploadSession.find(ownerID, sessionID.substring(sessionID.lastIndexOf(SESSION_AGENT_SEPARATOR)+1));
+    }
+
+    /**
+     * Processes upload session requests.
+     * @param request The incoming request.
+     * @param response The response to be sent back.
+     * @throws IOException if an I/O error occurs.
+     * @throws RequestException if the request cannot be processed.
+     */
+    @Override
+    public void processRequest(InputStream request, JsonBuilder response) throws IOException, RequestException {
+        final JsonReader reader = new JsonReader(request);
+        final String action = reader.readString("action");
+        final String ownerID = reader.readString("ownerID");
+        if(!action.toLowerCase().equals(sessionAction))
+            throw new RequestException("Unsupported method");
+        try {
+            switch (action) {
+                case "openUpload" -> {
+                    UploadSession session = UploadSession.open(ownerID, reader.readString("filename"));
+                    response.addField("sessionID", agentName+SESSION_AGENT_SEPARATOR+session.getSessionID());
+                    response.addField("offset", session.getCommittedOffset());
+                    response.setStatus("Upload session opened", 200);
+                }
+                // Chunks have to continue already received data
+                case "appendUpload" -> {
+                    UploadSession session = findSession(ownerID, reader.readString("sessionID"));
+                    long offset = reader.readNumberPositive("offset", Long.class);
+                    byte[] chunk = Base64.getDecoder().decode(reader.readString("chunk"));
+                    response.addField("offset", session.append(offset, chunk));
+                    response.setStatus("Chunk received", 200);
+                }
+                case "getUploadOffset" -> {
+                    UploadSession session = findSession(ownerID, reader.readString("sessionID"));
+                    response.addField("offset", session.getCommittedOffset());
+                    response.setStatus("Upload session found", 200);
+                }
+                case "commitUpload" -> {
+                    UploadSession session = findSession(ownerID, reader.readString("sessionID"));
+                    session.commit(fileStore);
+                    response.addField("filename", session.getFilename());
+                    response.setStatus("File uploaded successfully", 200);
+                }
+                default -> throw new RequestException("Unsupported method");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new RequestException("Malformed chunk: " + e.getMessage());
+        } catch (IOException e) {
+            response.clear();
+            response.setStatus("An error occurred during processing upload session request: " + e.getMessage(), 500);
+        }
+    }
+}
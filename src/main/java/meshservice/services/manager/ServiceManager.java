@@ -1,15 +1,30 @@
 package meshservice.services.manager;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import meshservice.AgentServicesInfo;
+import meshservice.AgentTelemetry;
 import meshservice.ServiceStatus;
 import meshservice.communication.AgentHostport;
 import meshservice.communication.Connection;
@@ -18,8 +33,9 @@ import meshservice.communication.JsonBuilder;
 import meshservice.communication.JsonReader;
 import meshservice.communication.RequestException;
 import meshservice.communication.ServiceHostport;
+import meshservice.communication.ServiceInstanceInfo;
+import meshservice.loadbalancer.LoadAwareBalancer;
 import meshservice.loadbalancer.LoadBalancer;
-import meshservice.loadbalancer.RoundRobinBalancer;
 import meshservice.services.ControlPlaneService;
 import meshservice.services.ServiceData;
 import meshservice.services.ServiceInvoke;
@@ -43,6 +59,31 @@ public class ServiceManager extends ControlPlaneService{
      */
     private static final float SERVICE_INVOKE_RATIO=1.2f;
     
+    /**
+     * To how many other agents uploaded files are copied.
+     */
+    private static final int REPLICATION_FACTOR=2;
+    
+    /**
+     * Number of threads sending replication requests to agents.
+     */
+    private static final int REPLICATION_THREADS=4;
+    
+    /**
+     * Max number of replication requests waiting for a thread.
+     */
+    private static final int MAX_PENDING_REPLICATIONS=1024;
+    
+    /**
+     * Threads sending replication requests to agents.
+     */
+    private static final ExecutorService REPLICATION_EXECUTOR=new ThreadPoolExecutor(REPLICATION_THREADS,
+            REPLICATION_THREADS,0,TimeUnit.MILLISECONDS,new ArrayBlockingQueue<>(MAX_PENDING_REPLICATIONS),(task)->{
+        final Thread replicationThread=new Thread(task,"ReplicationRequest");
+        replicationThread.setDaemon(true);
+        return replicationThread;
+    });
+    
     /**
      * Stores running agents and their services.
      */
@@ -63,6 +104,21 @@ public class ServiceManager extends ControlPlaneService{
      */
     private ActiveConnectionContainer activeConnections;
     
+    /**
+     * Stores on which agents user files are located.
+     */
+    private final FileLocationContainer fileLocations;
+    
+    /**
+     * Streams registry changes to the subscribed agents.
+     */
+    private final RegistryPublisher registryPublisher;
+    
+    /**
+     * Services ejected by gateways which connection is being checked.
+     */
+    private final Set<String> ejectionChecks=ConcurrentHashMap.newKeySet();
+    
     /**
      * Thread managing services lifespan.
      */
@@ -76,8 +132,10 @@ public class ServiceManager extends ControlPlaneService{
         super(port);
         agentContainer=new RunningAgentsContainer();
         activeConnections=new ActiveConnectionContainer();
-        loadBalancer=new RoundRobinBalancer(agentContainer.getRunningAgents());
+        loadBalancer=new LoadAwareBalancer(agentContainer.getRunningAgents());
         serviceTypeTraffic=new HashMap<>();
+        fileLocations=new FileLocationContainer();
+        registryPublisher=new RegistryPublisher();
         timerThread=new TimerThread();
     }
 
@@ -155,7 +213,20 @@ public class ServiceManager extends ControlPlaneService{
             }
             case "askforservice" -> {
                 String serviceType=reader.readString("service").toLowerCase();
-                processServiceAsk(serviceType,response);
+                long servedRequests=reader.hasField("requests")
+                        ?reader.readNumberPositive("requests",Long.class):0;
+                boolean allInstances=reader.hasField("all")&&reader.getNode("all").asBoolean();
+                processServiceAsk(serviceType,reader.readStringNullable("owner"),
+                        reader.readStringNullable("sessionAgent"),agentName,servedRequests,
+                        allInstances,response);
+            }
+            case "getreplicationinfo" -> {
+                String ownerID=reader.readString("ownerID");
+                Set<String> locations=fileLocations.getLocations(ownerID);
+                response.addField("replicas",locations==null?0:locations.size())
+                        .addArray("agents",locations==null?List.of():locations)
+                        .addField("pendingReplications",fileLocations.getPendingReplications(ownerID))
+                        .addField("replicationLag",fileLocations.getReplicationLag(ownerID));
             }
             default ->
                 throw new RequestException("Unknown request action");
@@ -180,11 +251,12 @@ public class ServiceManager extends ControlPlaneService{
         return agentConnection.sendRequest(request);
     }
     
-    private JsonBuilder createServiceStartRequest(String serviceType){
+    private JsonBuilder createServiceStartRequest(String serviceType,int count){
         return new JsonBuilder("run")
             .addField("type","request")
             .addField("port",assignPort())
-            .addField("service",serviceType);
+            .addField("service",serviceType)
+            .addField("count",count);
     }
     
     /**
@@ -200,7 +272,7 @@ public class ServiceManager extends ControlPlaneService{
      */
     protected JsonReader sendServiceStartRequest(String agentName,String serviceType) throws IOException,RequestException
     {
-        final JsonBuilder request=createServiceStartRequest(serviceType);
+        final JsonBuilder request=createServiceStartRequest(serviceType,1);
         AgentServicesInfo agentInfo=agentContainer.getAgentInfo(agentName);
         ConnectionThread agentConnection=getOrConnect(agentName,agentInfo.getHost(),agentInfo.getPort());
         return communicateWithServiceAgent(agentConnection,request);
@@ -219,7 +291,25 @@ public class ServiceManager extends ControlPlaneService{
      */
     protected JsonReader sendServiceStartRequest(AgentHostport agentDestination,String serviceType) throws IOException,RequestException
     {
-        final JsonBuilder request=createServiceStartRequest(serviceType);
+        return sendServiceStartRequest(agentDestination,serviceType,1);
+    }
+    
+    /**
+     * Sends request to given service agent to start given number of
+     * services, which agent initializes in parallel.
+     * 
+     * @param agentDestination Where to start.
+     * @param serviceType What to start.
+     * @param count How many instances to start.
+     * 
+     * @return Agent response.
+     * 
+     * @throws IOException If any socket error occures.
+     * @throws RequestException If request was malformed.
+     */
+    protected JsonReader sendServiceStartRequest(AgentHostport agentDestination,String serviceType,int count) throws IOException,RequestException
+    {
+        final JsonBuilder request=createServiceStartRequest(serviceType,count);
         System.out.println("Manager request sent to ServiceAgent:"+request.getJson().toPrettyString());
         return communicateWithServiceAgent(
                 getOrConnect(agentDestination.getAgentName(),
@@ -279,13 +369,39 @@ public class ServiceManager extends ControlPlaneService{
      */
     private void registerStartedService(String agentName,String serviceType,JsonReader agentResponse) throws RequestException
     {
-        int servicePort=agentResponse.readNumber("port",Integer.class);
-        String serviceUUID=agentResponse.readString("serviceID");
         String[] requestRequiredFields=agentResponse.readArrayOf("requiredFields")
             .toArray(String[]::new);
         String[] additionalFields=agentResponse.readArrayOf("additionalFields")
             .toArray(String[]::new);
-        agentContainer.registerService(agentName,serviceUUID,serviceType,servicePort,requestRequiredFields,additionalFields);
+        String[] optionalFields=readOptionalFields(agentResponse);
+        if(!agentResponse.hasField("services"))
+        {
+            int servicePort=agentResponse.readNumber("port",Integer.class);
+            String serviceUUID=agentResponse.readString("serviceID");
+            agentContainer.registerService(agentName,serviceUUID,serviceType,servicePort,requestRequiredFields,additionalFields,optionalFields);
+            return;
+        }
+        // All instances started by single request
+        for(JsonNode startedService:agentResponse.getNode("services"))
+        {
+            JsonReader serviceInfo=new JsonReader(startedService);
+            agentContainer.registerService(agentName,serviceInfo.readString("serviceID"),serviceType,
+                    serviceInfo.readNumber("port",Integer.class),requestRequiredFields,additionalFields,optionalFields);
+        }
+    }
+    
+    /**
+     * @param agentResponse Response from agent which started service.
+     * 
+     * @return Optional request fields of started service.
+     * 
+     * @throws RequestException If field is malformed.
+     */
+    private String[] readOptionalFields(JsonReader agentResponse) throws RequestException
+    {
+        if(!agentResponse.hasField("optionalFields"))
+            return ServiceData.EMPTY_ARRAY;
+        return agentResponse.readArrayOf("optionalFields").toArray(String[]::new);
     }
 
     /**
@@ -309,43 +425,195 @@ public class ServiceManager extends ControlPlaneService{
             throw new RequestException("Service not found");
         }
     }
-
+    
     /**
-     * Processes API Gateway agent request for service hostport.
+     * Requests best {@code Agent} candidate among given agents to start given
+     * service type.
      * 
-     * @param serviceType What type service to send.
-     * @param response Response to agent.
+     * @param serviceType What to start.
+     * @param agentNames Agents allowed to start the service.
+     * 
+     * @return Agent response.
      * 
+     * @throws IOException If any socket error occures.
      * @throws RequestException If request was malformed.
-     * @throws IOException If any socket error occurred.
      */
-    private void processServiceAsk(String serviceType,JsonBuilder response) throws RequestException,IOException
+    protected JsonReader requestServiceStart(String serviceType,Collection<String> agentNames) throws IOException,RequestException
+    {
+        try{
+            AgentHostport agentDestination=loadBalancer.balanceAgent(serviceType,agentNames);
+            JsonReader agentResponse=sendServiceStartRequest(agentDestination,serviceType);
+            registerStartedService(agentDestination.getAgentName(),serviceType,agentResponse);
+            return agentResponse;
+        }catch(ServiceNotFoundException e){
+            // None of the agents is able to run it
+            return requestServiceStart(serviceType);
+        }
+    }
+
+    /**
+     * Asynchronously requests other agents to copy given file from the agent
+     * it was uploaded to. Agents already storing files of the same owner are
+     * preferred.
+     * 
+     * @param ownerID Whose file to copy.
+     * @param filename Name of the file.
+     * @param checksum Content hash of the file.
+     * @param sourceAgent Where file was uploaded.
+     */
+    private void replicateFile(String ownerID,String filename,String checksum,String sourceAgent)
+    {
+        final AgentServicesInfo sourceInfo=agentContainer.getAgentInfo(sourceAgent);
+        final Set<String> ownerAgents=fileLocations.getLocations(ownerID);
+        final ArrayList<String> targets=new ArrayList<>();
+        agentContainer.getRunningAgents().forEach((agentName,agentInfo)->{
+            if(!agentName.equals(sourceAgent)&&agentInfo.getAvailableServices().contains("getfile"))
+                targets.add(agentName);
+        });
+        targets.sort(Comparator.comparing((agentName)->ownerAgents==null||!ownerAgents.contains(agentName)));
+        for(String target:targets.subList(0,Math.min(REPLICATION_FACTOR,targets.size())))
+        {
+            final JsonBuilder replicateRequest=new JsonBuilder("replicateFile")
+                    .addField("type","request")
+                    .addField("ownerID",ownerID)
+                    .addField("filename",filename)
+                    .addField("checksum",checksum)
+                    .addField("sourceHost",sourceInfo.getHost())
+                    .addField("sourcePort",sourceInfo.getPort());
+            fileLocations.replicationStarted(ownerID,filename,target);
+            try{
+                REPLICATION_EXECUTOR.execute(()->{
+                    try{
+                        JsonReader replicateResponse=communicateWithServiceAgent(getOrConnect(target),replicateRequest);
+                        if(replicateResponse.readNumber("status",Integer.class)!=200)
+                            throw new RequestException(replicateResponse.readString("responseText"));
+                    }catch(Exception e){
+                        fileLocations.replicationFailed(ownerID,filename,target);
+                        System.out.println("[Error]: Failed to request replication at: "+target+" due to: "+e);
+                    }
+                });
+            }catch(RejectedExecutionException e){
+                fileLocations.replicationFailed(ownerID,filename,target);
+                System.out.println("[Error]: Failed to request replication at: "+target+" due to: too many pending replications");
+            }
+        }
+    }
+    
+    /**
+     * Tests connection to the service ejected by gateway right away instead
+     * of waiting for the periodic check, and reconnects it if it failed.
+     * 
+     * @param serviceUUID Which service was ejected.
+     */
+    private void checkEjectedService(String serviceUUID)
+    {
+        try{
+            if(activeConnections.getDataPlaneConnections().containsKey(serviceUUID)
+                    &&!activeConnections.testServiceConnection(serviceUUID))
+                activeConnections.requestAgentToReconectService(serviceUUID);
+        }catch(Exception e){
+            System.out.println("[Error]: Manager failed to check ejected service: "+serviceUUID+" due to: "+e);
+        }finally{
+            ejectionChecks.remove(serviceUUID);
+        }
+    }
+    
+    /**
+     * Selects service of given type run by one of given agents. Agents on
+     * the same host as the asking agent are tried first, then the least read
+     * ones.
+     * 
+     * @param serviceType What type service to select.
+     * @param agentNames Agents storing requested data.
+     * @param askingAgent Agent which asked for service.
+     * 
+     * @return Selected service.
+     * 
+     * @throws ServiceNotFoundException If none of given agents runs service
+     * of given type.
+     */
+    private ServiceHostport balanceReplicas(String serviceType,Collection<String> agentNames,
+            String askingAgent) throws ServiceNotFoundException
+    {
+        for(String agentName:fileLocations.orderReplicas(agentNames,askingAgent))
+        {
+            try{
+                ServiceHostport service=loadBalancer.balanceService(serviceType,List.of(agentName));
+                fileLocations.recordRead(agentName);
+                return service;
+            }catch(ServiceNotFoundException e){
+                // Try next replica
+            }
+        }
+        throw new ServiceNotFoundException(serviceType);
+    }
+
+    /**
+     * Adds requests to the given service type traffic.
+     * 
+     * @param serviceType Which service type was requested.
+     * @param requests Number of requests.
+     */
+    private void recordTraffic(String serviceType,long requests)
     {
         synchronized(loadBalancer){
             if(serviceTypeTraffic.containsKey(serviceType))
-                serviceTypeTraffic.get(serviceType).increaseCurrentRPS();
+                serviceTypeTraffic.get(serviceType).increaseCurrentRPS(requests);
             else
             {
-                ServiceInvoke invokeCallback=()->{
+                ServiceInvoke invokeCallback=(count)->{
                     AgentHostport agentDestination=loadBalancer.balanceAgent(serviceType);
-                    JsonReader agentResponse=sendServiceStartRequest(agentDestination,serviceType);
+                    JsonReader agentResponse=sendServiceStartRequest(agentDestination,serviceType,count);
                     registerStartedService(agentDestination.getAgentName(),serviceType,agentResponse);
                 };
                 serviceTypeTraffic.put(serviceType,new ServiceTraffic(SERVICE_INVOKE_RATIO,invokeCallback));
             }
         }
+    }
+
+    /**
+     * Processes API Gateway agent request for service hostport. If owner of 
+     * the requested data is given, services run by agents storing the owner 
+     * files are preferred. If agent holding upload session is given, service
+     * run by it is selected or started there.
+     * 
+     * @param serviceType What type service to send.
+     * @param ownerID Whose data the request concerns, may be null.
+     * @param sessionAgent Agent holding upload session the request concerns,
+     * may be null.
+     * @param askingAgent Agent which asked for service.
+     * @param servedRequests Number of requests served by gateway from its
+     * route cache since last ask.
+     * @param allInstances Whether to include all running instances in the 
+     * response.
+     * @param response Response to agent.
+     * 
+     * @throws RequestException If request was malformed.
+     * @throws IOException If any socket error occurred.
+     */
+    private void processServiceAsk(String serviceType,String ownerID,String sessionAgent,String askingAgent,long servedRequests,boolean allInstances,JsonBuilder response) throws RequestException,IOException
+    {
+        recordTraffic(serviceType,1+servedRequests);
         ServiceHostport askedFor;
+        final Set<String> ownerAgents=sessionAgent!=null?Set.of(sessionAgent)
+                :ownerID==null?null:fileLocations.getLocations(ownerID);
         try{
-            askedFor=loadBalancer.balanceService(serviceType);
+            if(ownerAgents!=null)
+                askedFor=balanceReplicas(serviceType,ownerAgents,askingAgent);
+            else
+                askedFor=loadBalancer.balanceService(serviceType);
             // renew timer
             System.out.println("[Info]: Reused service: "+serviceType+" at: "+askedFor);
         }catch(ServiceNotFoundException e){
-            JsonReader agentResponse=requestServiceStart(serviceType);
+            JsonReader agentResponse=ownerAgents!=null
+                    ?requestServiceStart(serviceType,ownerAgents)
+                    :requestServiceStart(serviceType);
             String[] requiredFields=agentResponse.readArrayOf("requiredFields")
                     .toArray(String[]::new);
             String[] additionalFields=agentResponse.readArrayOf("additionalFields")
                     .toArray(String[]::new);
             askedFor=new ServiceHostport(requiredFields,additionalFields,
+                readOptionalFields(agentResponse),
                 agentResponse.readString("host"),
                 agentResponse.readNumber("port",Integer.class));
             System.out.printf("[Info]: Started new service: %s at: %s\n",serviceType,askedFor);
@@ -353,7 +621,66 @@ public class ServiceManager extends ControlPlaneService{
         response.addField("host",askedFor.getHost())
                 .addField("port",askedFor.getPort())
                 .addArray("requiredFields",askedFor.getRequestRequiredFields())
-                .addArray("additionalFields",askedFor.getAdditionalResponseFields());
+                .addArray("additionalFields",askedFor.getAdditionalResponseFields())
+                .addArray("optionalFields",askedFor.getRequestOptionalFields());
+        if(allInstances)
+            response.addArray("instances",listRunningInstances(serviceType,ownerAgents));
+    }
+    
+    /**
+     * Lists running instances of given service type with their weights.
+     * 
+     * @param serviceType What type to list.
+     * @param agentNames Agents which instances to list or null to list all.
+     * 
+     * @return Running instances.
+     */
+    private ArrayList<ServiceInstanceInfo> listRunningInstances(String serviceType,Collection<String> agentNames)
+    {
+        final ArrayList<ServiceInstanceInfo> instances=new ArrayList<>();
+        agentContainer.getRunningAgents().forEach((agentName,agent)->{
+            if(agentNames!=null&&!agentNames.contains(agentName))
+                return;
+            final ConcurrentHashMap<String,ServiceData> services=agent.getRunningServices().get(serviceType);
+            if(services==null)
+                return;
+            services.forEach((serviceUUID,data)->{
+                if(data.getStatus()==ServiceStatus.RUNNING)
+                    instances.add(createInstanceInfo(agentName,serviceUUID,data));
+            });
+        });
+        return instances;
+    }
+    
+    /**
+     * Creates registry entry of given service. Gateways reach all instances
+     * of the type run by one agent through its sidecar, so instance weight
+     * is the number of running instances of its type on its agent.
+     * 
+     * @param agentName Agent running the service.
+     * @param serviceUUID Service ID.
+     * @param data Service data.
+     * 
+     * @return Service registry entry.
+     */
+    private ServiceInstanceInfo createInstanceInfo(String agentName,String serviceUUID,ServiceData data)
+    {
+        final AgentServicesInfo agent=agentContainer.getAgentInfo(agentName);
+        final ConcurrentHashMap<String,ServiceData> typeServices=agent.getRunningServices()
+                .get(data.getServiceType());
+        int runningInstances=0;
+        if(typeServices!=null)
+        {
+            for(ServiceData typeService:typeServices.values())
+            {
+                if(typeService.getStatus()==ServiceStatus.RUNNING)
+                    runningInstances++;
+            }
+        }
+        return new ServiceInstanceInfo(serviceUUID,data.getServiceType(),agentName,
+                agent.getHost(),data.getPort(),data.getStatus().getStatusCode(),
+                data.getServiceRequestRequiredFields(),data.getServiceAdditionalResponseFields(),
+                data.getServiceRequestOptionalFields(),Math.max(runningInstances,1));
     }
     
     
@@ -433,6 +760,7 @@ public class ServiceManager extends ControlPlaneService{
                     toSecond+=stop-start;
                     if(toSecond>=1000)
                     {
+                        fileLocations.resetReadCounters();
                         serviceTypeTraffic.forEach((serviceType,trafficInfo)->{
                             try{
                                 trafficInfo.secondPassed();
@@ -514,8 +842,10 @@ public class ServiceManager extends ControlPlaneService{
         public void removeService(String agentName,
             String serviceType,String serviceUUID)
         {
-            runningAgents.get(agentName).getRunningServices()
+            ServiceData removed=runningAgents.get(agentName).getRunningServices()
                 .get(serviceType).remove(serviceUUID);
+            if(removed!=null)
+                registryPublisher.publish("removed",agentName,serviceUUID,removed);
         }
         
         /**
@@ -539,13 +869,14 @@ public class ServiceManager extends ControlPlaneService{
          * @param serviceType New service type.
          * @param servicePort New service port.
          */
-        public void registerService(String agentName,String serviceUUID,String serviceType,int servicePort,String[] requiredRequestFields,String[] additionalFields)
+        public void registerService(String agentName,String serviceUUID,String serviceType,int servicePort,String[] requiredRequestFields,String[] additionalFields,String[] optionalFields)
         {
-            ServiceData newService=new ServiceData(serviceType,servicePort,ServiceStatus.RUNNING,requiredRequestFields,additionalFields);
+            ServiceData newService=new ServiceData(serviceType,servicePort,ServiceStatus.RUNNING,requiredRequestFields,additionalFields,optionalFields);
             runningAgents.get(agentName).addNewService(serviceType,serviceUUID,newService);
             synchronized(loadBalancer){
                 loadBalancer.addNewServiceDestination(agentName,serviceType,newService);
             }
+            registryPublisher.publish("started",agentName,serviceUUID,newService);
             System.out.printf("[Info]: Registered new service: %s (%s) in agent: %s\n",serviceUUID,serviceType,agentName);
         }
         
@@ -565,6 +896,8 @@ public class ServiceManager extends ControlPlaneService{
             {
                 runningAgents.get(agentName).setServiceStatus(serviceType,
                     serviceUUID,newStatus);
+                registryPublisher.publish("statusChanged",agentName,serviceUUID,
+                    runningAgents.get(agentName).getRunningServices().get(serviceType).get(serviceUUID));
                 System.out.printf("[Info]: Changed service: %s (%s) status to: %s\n",
                             serviceUUID,serviceType,newStatus);
             }
@@ -586,6 +919,338 @@ public class ServiceManager extends ControlPlaneService{
         
     }
     
+    /**
+     * Stores on which agents user files are located and state of their 
+     * replication. Locations are tracked per file, while owner data is 
+     * routed only to the agents storing all the owner files.
+     */
+    private class FileLocationContainer{
+        /**
+         * Stores file locations, where: <br>
+         * Key - owner ID <br>
+         * Value - locations of owner files
+         */
+        private final ConcurrentHashMap<String,OwnerFiles> ownerLocations;
+        
+        /**
+         * Stores unfinished replications, where: <br>
+         * Key - owner ID <br>
+         * Value - replication key to start time map
+         */
+        private final ConcurrentHashMap<String,ConcurrentHashMap<String,Long>> pendingReplications;
+        
+        /**
+         * Time in milliseconds the last finished replication of owner file 
+         * took.
+         */
+        private final ConcurrentHashMap<String,Long> replicationLag;
+        
+        /**
+         * Number of reads of owner files routed to the agent in the current
+         * second.
+         */
+        private final ConcurrentHashMap<String,AtomicInteger> agentReads;
+
+        public FileLocationContainer(){
+            ownerLocations=new ConcurrentHashMap<>();
+            pendingReplications=new ConcurrentHashMap<>();
+            replicationLag=new ConcurrentHashMap<>();
+            agentReads=new ConcurrentHashMap<>();
+        }
+        
+        private String replicationKey(String filename,String agentName){
+            return agentName+"/"+filename;
+        }
+        
+        public void replicationStarted(String ownerID,String filename,String agentName)
+        {
+            pendingReplications.computeIfAbsent(ownerID,(owner)->new ConcurrentHashMap<>())
+                    .put(replicationKey(filename,agentName),System.currentTimeMillis());
+        }
+        
+        public void replicationFailed(String ownerID,String filename,String agentName)
+        {
+            ConcurrentHashMap<String,Long> pending=pendingReplications.get(ownerID);
+            if(pending!=null)
+                pending.remove(replicationKey(filename,agentName));
+        }
+        
+        /**
+         * Records finished replication and adds its agent to the file
+         * locations.
+         * 
+         * @param ownerID Whose file was replicated.
+         * @param filename Name of the file.
+         * @param agentName Where file was replicated.
+         */
+        public void replicaStored(String ownerID,String filename,String agentName)
+        {
+            ConcurrentHashMap<String,Long> pending=pendingReplications.get(ownerID);
+            Long start=pending==null?null:pending.remove(replicationKey(filename,agentName));
+            if(start!=null)
+                replicationLag.put(ownerID,System.currentTimeMillis()-start);
+            addLocation(ownerID,filename,agentName);
+        }
+        
+        public int getPendingReplications(String ownerID){
+            ConcurrentHashMap<String,Long> pending=pendingReplications.get(ownerID);
+            return pending==null?0:pending.size();
+        }
+        
+        /**
+         * @param ownerID Whose replication lag to get.
+         * 
+         * @return How long last replication of owner file took in 
+         * milliseconds, or -1 if no replication finished yet.
+         */
+        public long getReplicationLag(String ownerID){
+            return replicationLag.getOrDefault(ownerID,-1L);
+        }
+        
+        public void recordRead(String agentName){
+            agentReads.computeIfAbsent(agentName,(agent)->new AtomicInteger()).incrementAndGet();
+        }
+        
+        public void resetReadCounters(){
+            agentReads.values().forEach((reads)->reads.set(0));
+        }
+        
+        /**
+         * Orders given agents storing replicas from the closest to the asking
+         * agent and the least read to the furthest and most read.
+         * 
+         * @param agentNames What to order.
+         * @param askingAgent Agent for which replicas are ordered.
+         * 
+         * @return Ordered agent names.
+         */
+        public List<String> orderReplicas(Collection<String> agentNames,String askingAgent)
+        {
+            AgentServicesInfo askingInfo=agentContainer.getAgentInfo(askingAgent);
+            String askingHost=askingInfo==null?null:askingInfo.getHost();
+            ArrayList<String> ordered=new ArrayList<>(agentNames);
+            ordered.sort(Comparator.comparing((String agentName)->{
+                    AgentServicesInfo info=agentContainer.getAgentInfo(agentName);
+                    return info==null||!info.getHost().equals(askingHost);
+                })
+                .thenComparing((agentName)->{
+                    AtomicInteger reads=agentReads.get(agentName);
+                    return reads==null?0:reads.get();
+                }));
+            return ordered;
+        }
+        
+        /**
+         * Records that given agent stores given file.
+         * 
+         * @param ownerID Whose file is stored.
+         * @param filename Name of the file.
+         * @param agentName Where file is stored.
+         */
+        public void addLocation(String ownerID,String filename,String agentName)
+        {
+            if(ownerLocations.computeIfAbsent(ownerID,(owner)->new OwnerFiles())
+                    .add(filename,agentName))
+                System.out.printf("[Info]: Agent: %s stores file: %s of: %s\n",agentName,filename,ownerID);
+        }
+        
+        /**
+         * @param ownerID Whose files to look for.
+         * 
+         * @return Names of agents storing all given owner files or null if 
+         * there are none.
+         */
+        public Set<String> getLocations(String ownerID)
+        {
+            OwnerFiles files=ownerLocations.get(ownerID);
+            if(files==null)
+                return null;
+            Set<String> locations=files.getCompleteAgents();
+            return locations.isEmpty()?null:locations;
+        }
+        
+        /**
+         * Removes given agent from all file locations.
+         * 
+         * @param agentName What to remove.
+         */
+        public void removeAgent(String agentName){
+            ownerLocations.values().forEach((files)->files.removeAgent(agentName));
+        }
+    }
+    
+    /**
+     * Locations of single owner files.
+     */
+    private static class OwnerFiles{
+        /**
+         * Where: <br>
+         * Key - filename <br>
+         * Value - names of agents storing the file
+         */
+        private final HashMap<String,Set<String>> fileAgents=new HashMap<>();
+        
+        /**
+         * Number of owner files stored by the agent, where: <br>
+         * Key - agent name <br>
+         * Value - number of stored files
+         */
+        private final HashMap<String,Integer> agentFileCounts=new HashMap<>();
+        
+        /**
+         * @return Whether location wasn't known before.
+         */
+        public synchronized boolean add(String filename,String agentName)
+        {
+            if(!fileAgents.computeIfAbsent(filename,(file)->new HashSet<>()).add(agentName))
+                return false;
+            agentFileCounts.merge(agentName,1,Integer::sum);
+            return true;
+        }
+        
+        /**
+         * @return Agents storing every known file of the owner.
+         */
+        public synchronized Set<String> getCompleteAgents()
+        {
+            final HashSet<String> complete=new HashSet<>();
+            agentFileCounts.forEach((agentName,count)->{
+                if(count==fileAgents.size())
+                    complete.add(agentName);
+            });
+            return complete;
+        }
+        
+        public synchronized void removeAgent(String agentName)
+        {
+            if(agentFileCounts.remove(agentName)!=null)
+                fileAgents.values().forEach((agents)->agents.remove(agentName));
+        }
+    }
+    
+    /**
+     * Streams versioned registry changes to the subscribed agents. Every 
+     * subscriber has its own connection used only for this stream, changes 
+     * are sent by single thread in order of their versions.
+     */
+    private class RegistryPublisher{
+        /**
+         * Timeout after which subscriber is assumed to be dead.
+         */
+        public static final int SUBSCRIBER_TIMEOUT=2000;
+        
+        /**
+         * Connections of subscribed agents, where: <br>
+         * Key - agent name <br>
+         * Value - subscription connection
+         */
+        private final ConcurrentHashMap<String,Connection> subscribers;
+        
+        /**
+         * Thread sending changes to the subscribers.
+         */
+        private final ExecutorService sender;
+        
+        /**
+         * Version of the last registry change.
+         */
+        private long version;
+
+        public RegistryPublisher(){
+            subscribers=new ConcurrentHashMap<>();
+            sender=Executors.newSingleThreadExecutor((task)->{
+                Thread senderThread=new Thread(task,"RegistryPublisher");
+                senderThread.setDaemon(true);
+                return senderThread;
+            });
+            version=0;
+        }
+        
+        /**
+         * Subscribes given agent. Registry snapshot is sent as response to 
+         * the subscription, followed by changes made after it.
+         * 
+         * @param agentName Who subscribes.
+         * @param subscription Connection to which changes will be sent.
+         */
+        public synchronized void subscribe(String agentName,Connection subscription)
+        {
+            sender.execute(()->{
+                final ArrayList<ServiceInstanceInfo> snapshot=new ArrayList<>();
+                final JsonBuilder response=new JsonBuilder();
+                synchronized(this){
+                    agentContainer.getRunningAgents().forEach((name,agent)->
+                        agent.getRunningServices().forEach((serviceType,services)->
+                            services.forEach((serviceUUID,data)->
+                                snapshot.add(createInstanceInfo(name,serviceUUID,data)))));
+                    response.addField("version",version);
+                }
+                response.addArray("services",snapshot)
+                        .setStatus(200);
+                try{
+                    subscription.getResponseStream().write(response.toBytes());
+                    subscription.getResponseStream().flush();
+                    final Connection previous=subscribers.put(agentName,subscription);
+                    if(previous!=null)
+                        previous.close();
+                    System.out.println("[Info]: Agent subscribed to registry: "+agentName);
+                }catch(IOException e){
+                    System.out.println("[Error]: Failed to send registry to: "+agentName+" due to: "+e);
+                }
+            });
+        }
+        
+        public synchronized long getVersion(){
+            return version;
+        }
+        
+        /**
+         * Sends registry change to all subscribers, followed by new weights
+         * of the other instances of the same type run by the agent.
+         * 
+         * @param event What happened, one of: started, statusChanged, removed.
+         * @param agentName Agent running changed service.
+         * @param serviceUUID Changed service.
+         * @param data Changed service data.
+         */
+        public synchronized void publish(String event,String agentName,String serviceUUID,ServiceData data)
+        {
+            send(event,createInstanceInfo(agentName,serviceUUID,data));
+            // Weights depend on the number of running instances
+            final ConcurrentHashMap<String,ServiceData> typeServices=agentContainer.getAgentInfo(agentName)
+                    .getRunningServices().get(data.getServiceType());
+            if(typeServices==null)
+                return;
+            typeServices.forEach((otherUUID,otherData)->{
+                if(!otherUUID.equals(serviceUUID))
+                    send("weightChanged",createInstanceInfo(agentName,otherUUID,otherData));
+            });
+        }
+        
+        private void send(String event,ServiceInstanceInfo instance)
+        {
+            version++;
+            final JsonBuilder delta=new JsonBuilder("registryDelta")
+                    .addField("type","request")
+                    .addField("version",version)
+                    .addField("event",event)
+                    .addField("instance",instance);
+            sender.execute(()->subscribers.forEach((subscriberName,subscription)->{
+                try{
+                    subscription.sendRequest(delta);
+                }catch(Exception e){
+                    System.out.println("[Error]: Registry subscriber: "+subscriberName+" dropped due to: "+e);
+                    subscribers.remove(subscriberName,subscription);
+                    try{
+                        subscription.close();
+                    }catch(IOException ex){
+                        // Already closed
+                    }
+                }
+            }));
+        }
+    }
+    
     private class ConnectionInfo{
         /**
          * Name of agent which owns this service.
@@ -763,12 +1428,20 @@ public class ServiceManager extends ControlPlaneService{
         BufferedInputStream requestStream=new BufferedInputStream(clientSocket.getInputStream());
         BufferedOutputStream responseStream=new BufferedOutputStream(clientSocket.getOutputStream());
         final JsonBuilder response=new JsonBuilder();
+        // Reports sent on their own connection which is closed once answered
+        boolean isReport=false;
         try{
             JsonReader request=new JsonReader(requestStream);
             String action=request.readString("action").toLowerCase();
             String agentName=request.readString("agent");
             String serviceUUID=request.readString("serviceID");
             switch(action){
+                case "subscriberegistry" -> {
+                    // Snapshot is sent by the publisher before any change
+                    clientSocket.setSoTimeout(RegistryPublisher.SUBSCRIBER_TIMEOUT);
+                    registryPublisher.subscribe(agentName,new Connection(clientSocket));
+                    return;
+                }
                 case "registeragent" -> {
                     AgentServicesInfo agent=new AgentServicesInfo(serviceUUID,
                             clientSocket.getInetAddress().getHostName(),
@@ -776,6 +1449,18 @@ public class ServiceManager extends ControlPlaneService{
                             request.readArrayOf("availableServices"));
                     agentContainer.registerAgent(agentName,agent);
                     System.out.println("[Info]: New agent registered: "+agentName);
+                    if(request.hasField("storedFiles"))
+                    {
+                        fileLocations.removeAgent(agentName);
+                        JsonReader storedFiles=new JsonReader(request.getNode("storedFiles"));
+                        Iterator<String> owners=storedFiles.getRequestNode().fieldNames();
+                        while(owners.hasNext())
+                        {
+                            String ownerID=owners.next();
+                            for(String filename:storedFiles.readArrayOf(ownerID))
+                                fileLocations.addLocation(ownerID,filename,agentName);
+                        }
+                    }
                     ConnectionThread agentThread=new ConnectionThread(new Connection(clientSocket),this);
                     activeConnections.addControlPlaneConnection(agentName,agentThread);
                     agentThread.start();
@@ -787,6 +1472,60 @@ public class ServiceManager extends ControlPlaneService{
                     agentContainer.changeServiceStatus(agentName,serviceType,
                             serviceUUID,newStatus);
                 }
+                case "agenttelemetry" -> {
+                    // Sent every second on its own connection, so isn't logged
+                    isReport=true;
+                    AgentServicesInfo agentInfo=agentContainer.getAgentInfo(agentName);
+                    if(agentInfo==null)
+                        throw new RequestException(404,"Unknown agent: "+agentName);
+                    agentInfo.setTelemetry(AgentTelemetry.read(request));
+                }
+                case "reporttraffic" -> {
+                    // Requests served by agent from its registry replica
+                    isReport=true;
+                    JsonReader traffic=new JsonReader(request.getNode("traffic"));
+                    Iterator<String> serviceTypes=traffic.getRequestNode().fieldNames();
+                    while(serviceTypes.hasNext())
+                    {
+                        String serviceType=serviceTypes.next();
+                        recordTraffic(serviceType.toLowerCase(),
+                                traffic.readNumberPositive(serviceType,Long.class));
+                    }
+                    response.addField("registryVersion",registryPublisher.getVersion());
+                }
+                case "instanceejected" -> {
+                    isReport=true;
+                    System.out.println("[Info]: Agent: "+agentName+" reported ejected service: "+serviceUUID);
+                    // Gateways eject whole agent sidecar, so all its instances of the type are checked
+                    List<String> ejectedServices=List.of(serviceUUID);
+                    AgentServicesInfo ejectedAgent=request.hasField("ejectedAgent")
+                            ?agentContainer.getAgentInfo(request.readString("ejectedAgent")):null;
+                    if(ejectedAgent!=null)
+                    {
+                        ConcurrentHashMap<String,ServiceData> services=ejectedAgent.getRunningServices()
+                                .get(request.readString("service").toLowerCase());
+                        if(services!=null&&!services.isEmpty())
+                            ejectedServices=new ArrayList<>(services.keySet());
+                    }
+                    for(String ejectedService:ejectedServices)
+                    {
+                        if(ejectionChecks.add(ejectedService))
+                            CompletableFuture.runAsync(()->checkEjectedService(ejectedService));
+                    }
+                }
+                case "filestored" -> {
+                    isReport=true;
+                    String ownerID=request.readString("ownerID");
+                    String filename=request.readString("filename");
+                    // Targets are picked among agents storing the other owner files
+                    replicateFile(ownerID,filename,request.readString("checksum"),agentName);
+                    fileLocations.addLocation(ownerID,filename,agentName);
+                }
+                case "replicastored" -> {
+                    isReport=true;
+                    String ownerID=request.readString("ownerID");
+                    fileLocations.replicaStored(ownerID,request.readString("filename"),agentName);
+                }
                 case "registerserviceconnection"->{
                     String serviceType=request.readString("service").toLowerCase();
                     ServiceData data=agentContainer.getAgentInfo(agentName)
@@ -805,6 +1544,8 @@ public class ServiceManager extends ControlPlaneService{
         }
         responseStream.write(response.toBytes());
         responseStream.flush();
+        if(isReport)
+            clientSocket.close();
     }
     
     public static void main(String[] args){
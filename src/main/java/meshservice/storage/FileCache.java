@@ -0,0 +1,229 @@
+package meshservice.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton cache of the most recently used file contents. Contents are kept
+ * off-heap in direct buffers and the cache is bounded by the total number of
+ * cached bytes, least recently used files are evicted first.
+ *
+ * @author ArtiFixal
+ */
+public class FileCache{
+
+    /**
+     * Default max number of bytes held by the cache.
+     */
+    public static final long DEFAULT_MAX_BYTES=64L*1024*1024;
+
+    /**
+     * Default max size of a single cached file.
+     */
+    public static final long DEFAULT_MAX_ENTRY_BYTES=4L*1024*1024;
+
+    /**
+     * Max size of a file which fits into single buffer.
+     */
+    private static final long MAX_BUFFER_BYTES=Integer.MAX_VALUE;
+
+    /**
+     * Cached file contents in access order.
+     */
+    private final LinkedHashMap<Path,ByteBuffer> entries;
+
+    /**
+     * Max number of bytes held by the cache.
+     */
+    private volatile long maxBytes;
+
+    /**
+     * Max size of a single cached file.
+     */
+    private volatile long maxEntryBytes;
+
+    /**
+     * Number of currently cached bytes.
+     */
+    private long cachedBytes;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * Singleton instance of cache.
+     */
+    private static FileCache cache;
+
+    private FileCache(long maxBytes,long maxEntryBytes){
+        this.maxBytes=maxBytes;
+        this.maxEntryBytes=Math.min(maxEntryBytes,MAX_BUFFER_BYTES);
+        entries=new LinkedHashMap<>(64,0.75f,true);
+        cachedBytes=0;
+        hits=new AtomicLong();
+        misses=new AtomicLong();
+        evictions=new AtomicLong();
+    }
+
+    public static synchronized FileCache getInstance()
+    {
+        if(cache==null)
+            cache=new FileCache(DEFAULT_MAX_BYTES,DEFAULT_MAX_ENTRY_BYTES);
+        return cache;
+    }
+
+    /**
+     * Sets limits of the cache. Files over new limits are evicted.
+     *
+     * @param maxBytes Max number of bytes held by the cache.
+     * @param maxEntryBytes Max size of a single cached file.
+     */
+    public static synchronized void configure(long maxBytes,long maxEntryBytes)
+    {
+        final FileCache instance=getInstance();
+        synchronized(instance.entries){
+            instance.maxBytes=maxBytes;
+            instance.maxEntryBytes=Math.min(maxEntryBytes,MAX_BUFFER_BYTES);
+            instance.entries.values().removeIf((content)->{
+                if(content.capacity()<=instance.maxEntryBytes)
+                    return false;
+                instance.cachedBytes-=content.capacity();
+                instance.evictions.incrementAndGet();
+                return true;
+            });
+            instance.evictLeastRecent(null);
+        }
+    }
+
+    /**
+     * Retrieves given file content from the cache or reads it from the disk
+     * caching it if it fits.
+     *
+     * @param file File to read.
+     *
+     * @return Read only buffer with file content.
+     *
+     * @throws IOException If failed to read the file or it doesn't fit into
+     * a single buffer.
+     */
+    public ByteBuffer read(Path file) throws IOException
+    {
+        synchronized(entries){
+            final ByteBuffer cached=entries.get(file);
+            if(cached!=null)
+            {
+                hits.incrementAndGet();
+                return cached.asReadOnlyBuffer();
+            }
+        }
+        misses.incrementAndGet();
+        try(FileChannel channel=FileChannel.open(file,StandardOpenOption.READ)){
+            final long size=channel.size();
+            if(size>maxEntryBytes||size>maxBytes)
+            {
+                if(size>MAX_BUFFER_BYTES)
+                    throw new IOException("File is too large to be read at once: "+size+" bytes");
+                final ByteBuffer content=ByteBuffer.allocate((int)size);
+                readFully(channel,content);
+                return content.asReadOnlyBuffer();
+            }
+            final ByteBuffer content=ByteBuffer.allocateDirect((int)size);
+            readFully(channel,content);
+            put(file,content);
+            return content.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Removes given file content from the cache.
+     *
+     * @param file What to remove.
+     */
+    public void invalidate(Path file)
+    {
+        synchronized(entries){
+            final ByteBuffer removed=entries.remove(file);
+            if(removed!=null)
+                cachedBytes-=removed.capacity();
+        }
+    }
+
+    private void put(Path file,ByteBuffer content)
+    {
+        synchronized(entries){
+            final ByteBuffer previous=entries.put(file,content);
+            if(previous!=null)
+                cachedBytes-=previous.capacity();
+            cachedBytes+=content.capacity();
+            evictLeastRecent(file);
+        }
+    }
+
+    /**
+     * Evicts least recently used files until cache fits its limit. Has to be
+     * called while holding lock of the entries.
+     *
+     * @param kept File which shouldn't be evicted or null.
+     */
+    private void evictLeastRecent(Path kept)
+    {
+        final Iterator<Map.Entry<Path,ByteBuffer>> it=entries.entrySet().iterator();
+        while(cachedBytes>maxBytes&&it.hasNext())
+        {
+            final Map.Entry<Path,ByteBuffer> eldest=it.next();
+            if(eldest.getKey().equals(kept))
+                continue;
+            cachedBytes-=eldest.getValue().capacity();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void readFully(FileChannel channel,ByteBuffer destination) throws IOException
+    {
+        while(destination.hasRemaining())
+        {
+            if(channel.read(destination)==-1)
+                throw new IOException("File changed during read");
+        }
+        destination.flip();
+    }
+
+    public long getHits(){
+        return hits.get();
+    }
+
+    public long getMisses(){
+        return misses.get();
+    }
+
+    public long getEvictions(){
+        return evictions.get();
+    }
+
+    public long getCachedBytes(){
+        synchronized(entries){
+            return cachedBytes;
+        }
+    }
+
+    public int getCachedFiles(){
+        synchronized(entries){
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "FileCache[hits="+getHits()+", misses="+getMisses()
+                +", evictions="+getEvictions()+", bytes="+getCachedBytes()+"]";
+    }
+}
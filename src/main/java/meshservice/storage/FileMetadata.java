@@ -0,0 +1,83 @@
+package meshservice.storage;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Class representing metadata of a single stored user file.
+ *
+ * @author ArtiFixal
+ */
+public class FileMetadata{
+    @JsonProperty("filename")
+    private final String filename;
+    @JsonProperty("size")
+    private final long size;
+    @JsonProperty("modified")
+    private final long modified;
+    @JsonProperty("checksum")
+    private final String checksum;
+
+    @JsonCreator
+    public FileMetadata(@JsonProperty("filename") String filename,
+            @JsonProperty("size") long size,
+            @JsonProperty("modified") long modified,
+            @JsonProperty("checksum") String checksum)
+    {
+        this.filename=filename;
+        this.size=size;
+        this.modified=modified;
+        this.checksum=checksum;
+    }
+
+    public String getFilename(){
+        return filename;
+    }
+
+    /**
+     * @return File size in bytes.
+     */
+    public long getSize(){
+        return size;
+    }
+
+    /**
+     * @return Time of the last upload in milliseconds since epoch.
+     */
+    public long getModified(){
+        return modified;
+    }
+
+    /**
+     * @return SHA-256 hash of the file content.
+     */
+    public String getChecksum(){
+        return checksum;
+    }
+
+    /**
+     * @return Metadata in the format used by the owner index file.
+     */
+    public String toIndexEntry(){
+        return checksum+" "+size+" "+modified;
+    }
+
+    /**
+     * Reads metadata from the owner index file entry.
+     *
+     * @param filename Name of the file.
+     * @param entry Index entry.
+     *
+     * @return Read metadata.
+     *
+     * @throws IllegalArgumentException If entry is malformed.
+     */
+    public static FileMetadata fromIndexEntry(String filename,String entry) throws IllegalArgumentException
+    {
+        final String[] values=entry.trim().split(" ");
+        if(values.length!=3)
+            throw new IllegalArgumentException("Malformed index entry of: "+filename);
+        return new FileMetadata(filename,Long.parseLong(values[1]),
+                Long.parseLong(values[2]),values[0]);
+    }
+}
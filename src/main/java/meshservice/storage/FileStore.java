@@ -0,0 +1,675 @@
+package meshservice.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Singleton content-addressed store of user files. File contents are kept
+ * once under their SHA-256 hash, while every owner has an index which maps
+ * file names to the file metadata. Uploading content which is already stored
+ * costs only an index write.
+ * <p>
+ * All owner indexes are loaded into the memory on startup, so existence
+ * checks and listings are answered without touching the file system.
+ * <p>
+ * Newly stored contents which compress well are gzipped in the background,
+ * compressed blob replaces the raw one and is stored with 
+ * {@value #COMPRESSED_SUFFIX} suffix.
+ * <p>
+ * Blobs are reference counted by index entries and removed once no file 
+ * refers to them.
+ *
+ * @author ArtiFixal
+ */
+public class FileStore{
+
+    /**
+     * Directory where user files are stored.
+     */
+    private static final File DEFAULT_ROOT=new File("UserData");
+
+    /**
+     * Name of directory storing file contents under their hashes.
+     */
+    private static final String BLOBS_DIRECTORY=".blobs";
+
+    /**
+     * Name of owner index file.
+     */
+    private static final String INDEX_FILE=".index";
+
+    /**
+     * Hash algorithm used to address file contents.
+     */
+    private static final String HASH_ALGORITHM="SHA-256";
+
+    /**
+     * Suffix of compressed blobs.
+     */
+    public static final String COMPRESSED_SUFFIX=".gz";
+
+    /**
+     * Contents smaller than this number of bytes are never compressed.
+     */
+    private static final long MIN_COMPRESSED_SIZE=1024;
+
+    /**
+     * Number of bytes from the content start used to estimate its 
+     * compressibility.
+     */
+    private static final int COMPRESSIBILITY_SAMPLE_SIZE=64*1024;
+
+    /**
+     * Max compressed to raw size ratio for which content is worth 
+     * compressing.
+     */
+    private static final double MAX_COMPRESSION_RATIO=0.8;
+
+    /**
+     * Root directory of this store.
+     */
+    private final File rootDirectory;
+
+    /**
+     * Directory containing file contents.
+     */
+    private final Path blobsDirectory;
+
+    /**
+     * Owner indexes, where: <br>
+     * Key - owner ID <br>
+     * Value - file name to file metadata map
+     */
+    private final ConcurrentHashMap<String,ConcurrentHashMap<String,FileMetadata>> ownerIndexes;
+
+    /**
+     * Owners which index failed to load. Their files can't be stored, since
+     * saving incomplete index would overwrite the one on the disk.
+     */
+    private final Set<String> failedOwners;
+
+    /**
+     * Number of index entries referring to the content, where: <br>
+     * Key - content hash <br>
+     * Value - number of references
+     * <p>
+     * Blobs are created and removed while holding its lock.
+     */
+    private final HashMap<String,Integer> blobReferences;
+
+    /**
+     * Called with owner ID and file metadata when a file is uploaded.
+     */
+    private final CopyOnWriteArrayList<BiConsumer<String,FileMetadata>> storeListeners;
+
+    /**
+     * Thread compressing newly stored contents.
+     */
+    private final ExecutorService compressionExecutor;
+
+    /**
+     * Singleton instance of store.
+     */
+    private static FileStore store;
+
+    private FileStore(File rootDirectory) throws IOException{
+        this.rootDirectory=rootDirectory;
+        blobsDirectory=rootDirectory.toPath().resolve(BLOBS_DIRECTORY);
+        Files.createDirectories(blobsDirectory);
+        ownerIndexes=new ConcurrentHashMap<>();
+        failedOwners=ConcurrentHashMap.newKeySet();
+        blobReferences=new HashMap<>();
+        storeListeners=new CopyOnWriteArrayList<>();
+        compressionExecutor=Executors.newSingleThreadExecutor((task)->{
+            final Thread compressionThread=new Thread(task,"FileStore-compression");
+            compressionThread.setDaemon(true);
+            return compressionThread;
+        });
+        loadIndexes();
+    }
+
+    public static synchronized FileStore getInstance()
+    {
+        if(store==null)
+        {
+            try{
+                store=new FileStore(DEFAULT_ROOT);
+            }catch(IOException e){
+                throw new RuntimeException("Unable to continue - Failed to "
+                        +"create file store: "+e.getMessage());
+            }
+        }
+        return store;
+    }
+
+    public File getRootDirectory(){
+        return rootDirectory;
+    }
+
+    /**
+     * Stores given content as owner file. Content is hashed while it is
+     * streamed to the disk and if the same content was already stored only
+     * owner index is updated.
+     *
+     * @param ownerID Whose file it is.
+     * @param filename Name of the file.
+     * @param content File content.
+     *
+     * @return Hash of stored content.
+     *
+     * @throws IOException If any I/O error occurred.
+     */
+    public String store(String ownerID,String filename,InputStream content) throws IOException
+    {
+        final FileMetadata metadata=storeContent(ownerID,filename,content,null);
+        storeListeners.forEach((listener)->listener.accept(ownerID,metadata));
+        return metadata.getChecksum();
+    }
+
+    /**
+     * Stores given content as a replica of owner file uploaded to another
+     * store. Unlike {@link #store(String,String,InputStream)} listeners are
+     * not notified.
+     *
+     * @param ownerID Whose file it is.
+     * @param filename Name of the file.
+     * @param checksum Expected content hash.
+     * @param content File content.
+     *
+     * @throws IOException If any I/O error occurred or content doesn't match
+     * expected hash.
+     */
+    public void storeReplica(String ownerID,String filename,String checksum,InputStream content) throws IOException
+    {
+        storeContent(ownerID,filename,content,checksum);
+    }
+
+    /**
+     * Streams given content into the store and indexes it.
+     *
+     * @param ownerID Whose file it is.
+     * @param filename Name of the file.
+     * @param content File content.
+     * @param expectedChecksum Hash content should have or null if unknown.
+     *
+     * @return Stored file metadata.
+     *
+     * @throws IOException If any I/O error occurred.
+     */
+    private FileMetadata storeContent(String ownerID,String filename,InputStream content,
+            String expectedChecksum) throws IOException
+    {
+        if(failedOwners.contains(ownerID))
+            throw new IOException("Files of: "+ownerID+" failed to load, storing is disabled");
+        final MessageDigest digest=createDigest();
+        final Path tmpFile=Files.createTempFile(blobsDirectory,"upload",".tmp");
+        try{
+            final long size;
+            try(DigestInputStream hashingStream=new DigestInputStream(content,digest)){
+                size=Files.copy(hashingStream,tmpFile,StandardCopyOption.REPLACE_EXISTING);
+            }
+            final String hash=HexFormat.of().formatHex(digest.digest());
+            if(expectedChecksum!=null&&!expectedChecksum.equals(hash))
+                throw new IOException("Content of: "+filename+" doesn't match its checksum");
+            final Path blob=getBlobPath(hash);
+            // Referenced before indexing, so the blob isn't removed meanwhile
+            synchronized(blobReferences){
+                if(!Files.exists(blob)&&!Files.exists(getCompressedBlobPath(hash)))
+                {
+                    Files.createDirectories(blob.getParent());
+                    Files.move(tmpFile,blob,StandardCopyOption.ATOMIC_MOVE);
+                    if(size>=MIN_COMPRESSED_SIZE)
+                        compressionExecutor.execute(()->compressBlob(hash));
+                }
+                blobReferences.merge(hash,1,Integer::sum);
+            }
+            final FileMetadata metadata=new FileMetadata(filename,size,
+                    System.currentTimeMillis(),hash);
+            putIndexEntry(ownerID,metadata);
+            return metadata;
+        }finally{
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Compresses given blob if it's content compresses well enough. Raw blob
+     * is removed afterwards.
+     *
+     * @param hash Content hash.
+     */
+    private void compressBlob(String hash)
+    {
+        final Path blob=getBlobPath(hash);
+        try{
+            if(!isCompressible(blob))
+                return;
+            final Path tmpFile=Files.createTempFile(blobsDirectory,"compress",".tmp");
+            try{
+                try(InputStream in=Files.newInputStream(blob);
+                    OutputStream out=new GZIPOutputStream(Files.newOutputStream(tmpFile))){
+                    in.transferTo(out);
+                }
+                // Sample could be more compressible than the rest
+                if(Files.size(tmpFile)>Files.size(blob)*MAX_COMPRESSION_RATIO)
+                    return;
+                synchronized(blobReferences){
+                    // Blob was released while compressing
+                    if(!blobReferences.containsKey(hash))
+                        return;
+                    Files.move(tmpFile,getCompressedBlobPath(hash),StandardCopyOption.ATOMIC_MOVE);
+                    Files.delete(blob);
+                }
+            }finally{
+                Files.deleteIfExists(tmpFile);
+            }
+            FileCache.getInstance().invalidate(blob);
+        }catch(IOException e){
+            System.out.println("[Error]: Failed to compress blob: "+hash+" due to: "+e);
+        }
+    }
+
+    /**
+     * Estimates whether given file is worth compressing by compressing its
+     * beginning.
+     *
+     * @param file What to check.
+     *
+     * @return True if sample compressed well enough, false otherwise.
+     *
+     * @throws IOException If failed to read the file.
+     */
+    private boolean isCompressible(Path file) throws IOException
+    {
+        final byte[] sample=new byte[COMPRESSIBILITY_SAMPLE_SIZE];
+        final int sampleSize;
+        try(InputStream in=Files.newInputStream(file)){
+            sampleSize=in.readNBytes(sample,0,sample.length);
+        }
+        final Deflater deflater=new Deflater(Deflater.BEST_SPEED);
+        try{
+            deflater.setInput(sample,0,sampleSize);
+            deflater.finish();
+            final byte[] output=new byte[8192];
+            long compressedSize=0;
+            while(!deflater.finished())
+                compressedSize+=deflater.deflate(output);
+            return compressedSize<=sampleSize*MAX_COMPRESSION_RATIO;
+        }finally{
+            deflater.end();
+        }
+    }
+
+    /**
+     * Looks for content of a given owner file.
+     *
+     * @param ownerID Whose file to look for.
+     * @param filename Name of the file.
+     *
+     * @return Path to the file content or null if there is no such file. 
+     * Content is gzipped if {@link #isCompressed(Path)} returns true.
+     */
+    public Path resolve(String ownerID,String filename)
+    {
+        final FileMetadata metadata=getMetadata(ownerID,filename);
+        if(metadata==null)
+            return null;
+        final Path compressed=getCompressedBlobPath(metadata.getChecksum());
+        return Files.exists(compressed)?compressed:getBlobPath(metadata.getChecksum());
+    }
+
+    /**
+     * Opens stream of a given owner file content decompressing it if needed.
+     *
+     * @param ownerID Whose file to open.
+     * @param filename Name of the file.
+     *
+     * @return Raw file content or null if there is no such file.
+     *
+     * @throws IOException If failed to open the file.
+     */
+    public InputStream openContent(String ownerID,String filename) throws IOException
+    {
+        Path blob=resolve(ownerID,filename);
+        if(blob==null)
+            return null;
+        InputStream content;
+        try{
+            content=Files.newInputStream(blob);
+        }catch(NoSuchFileException e){
+            // Blob was compressed in the meantime
+            blob=resolve(ownerID,filename);
+            content=Files.newInputStream(blob);
+        }
+        return isCompressed(blob)?new GZIPInputStream(content):content;
+    }
+
+    /**
+     * @param blob Path returned by {@link #resolve(String,String)}.
+     *
+     * @return True if content of given blob is gzipped, false otherwise.
+     */
+    public static boolean isCompressed(Path blob){
+        return blob.getFileName().toString().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * @param ownerID Whose file metadata to get.
+     * @param filename Name of the file.
+     *
+     * @return Metadata of the given file or null if there is no such file.
+     */
+    public FileMetadata getMetadata(String ownerID,String filename)
+    {
+        final ConcurrentHashMap<String,FileMetadata> index=ownerIndexes.get(ownerID);
+        if(index==null)
+            return null;
+        return index.get(filename);
+    }
+
+    /**
+     * @param ownerID Whose file hash to get.
+     * @param filename Name of the file.
+     *
+     * @return Content hash of the given file or null if there is no such file.
+     */
+    public String getHash(String ownerID,String filename){
+        final FileMetadata metadata=getMetadata(ownerID,filename);
+        return metadata==null?null:metadata.getChecksum();
+    }
+
+    /**
+     * @param ownerID Whose files to list.
+     *
+     * @return Metadata of all given owner files.
+     */
+    public List<FileMetadata> listFiles(String ownerID)
+    {
+        final ConcurrentHashMap<String,FileMetadata> index=ownerIndexes.get(ownerID);
+        if(index==null)
+            return Collections.emptyList();
+        return new ArrayList<>(index.values());
+    }
+
+    /**
+     * @return IDs of all owners having any stored files.
+     */
+    public List<String> listOwners()
+    {
+        final ArrayList<String> owners=new ArrayList<>();
+        ownerIndexes.forEach((ownerID,index)->{
+            if(!index.isEmpty())
+                owners.add(ownerID);
+        });
+        return owners;
+    }
+
+    /**
+     * Adds listener called with owner ID and file metadata when a file is
+     * uploaded to this store.
+     *
+     * @param listener What to call.
+     */
+    public void addStoreListener(BiConsumer<String,FileMetadata> listener){
+        storeListeners.add(listener);
+    }
+
+    /**
+     * @param ownerID Whose files to check.
+     *
+     * @return True if given owner stored any files, false otherwise.
+     */
+    public boolean hasFiles(String ownerID){
+        final ConcurrentHashMap<String,FileMetadata> index=ownerIndexes.get(ownerID);
+        return index!=null&&!index.isEmpty();
+    }
+
+    /**
+     * @param hash Content hash.
+     *
+     * @return Path under which content with given hash is stored.
+     */
+    public Path getBlobPath(String hash){
+        return blobsDirectory.resolve(hash.substring(0,2)).resolve(hash);
+    }
+
+    /**
+     * @param hash Content hash.
+     *
+     * @return Path under which compressed content with given hash is stored.
+     */
+    public Path getCompressedBlobPath(String hash){
+        return blobsDirectory.resolve(hash.substring(0,2)).resolve(hash+COMPRESSED_SUFFIX);
+    }
+
+    protected Path getOwnerDirectory(String ownerID){
+        return rootDirectory.toPath().resolve(ownerID);
+    }
+
+    /**
+     * Loads indexes of all owners. Owner directories are walked in parallel.
+     *
+     * @throws IOException If failed to list owner directories.
+     */
+    private void loadIndexes() throws IOException
+    {
+        final long start=System.currentTimeMillis();
+        try(Stream<Path> owners=Files.list(rootDirectory.toPath())){
+            owners.filter((dir)->Files.isDirectory(dir)
+                    &&!dir.getFileName().toString().startsWith("."))
+                .parallel()
+                .forEach((ownerDirectory)->{
+                    final String ownerID=ownerDirectory.getFileName().toString();
+                    try{
+                        ownerIndexes.put(ownerID,loadIndex(ownerID));
+                    }catch(IOException|IllegalArgumentException e){
+                        failedOwners.add(ownerID);
+                        System.out.println("[Error]: Failed to load files of: "+ownerID+" due to: "+e);
+                    }
+                });
+        }
+        // Legacy files were referenced while loading, so all are counted again
+        blobReferences.clear();
+        ownerIndexes.values().forEach((index)->index.values().forEach((metadata)->
+                blobReferences.merge(metadata.getChecksum(),1,Integer::sum)));
+        System.out.printf("[Info]: Loaded files of %d owners in %d ms\n",
+                ownerIndexes.size(),System.currentTimeMillis()-start);
+    }
+
+    /**
+     * Drops one reference to the given content and removes its blob once
+     * no file refers to it. Blobs are kept if any owner index failed to
+     * load, since its references are unknown.
+     *
+     * @param hash Content hash.
+     */
+    private void releaseBlob(String hash)
+    {
+        final Path blob=getBlobPath(hash);
+        final Path compressed=getCompressedBlobPath(hash);
+        synchronized(blobReferences){
+            final Integer references=blobReferences.get(hash);
+            if(references!=null&&references>1)
+            {
+                blobReferences.put(hash,references-1);
+                return;
+            }
+            blobReferences.remove(hash);
+            if(!failedOwners.isEmpty())
+                return;
+            try{
+                Files.deleteIfExists(blob);
+                Files.deleteIfExists(compressed);
+            }catch(IOException e){
+                System.out.println("[Error]: Failed to remove blob: "+hash+" due to: "+e);
+            }
+        }
+        FileCache.getInstance().invalidate(blob);
+        FileCache.getInstance().invalidate(compressed);
+    }
+
+    /**
+     * Loads given owner index. Files stored before contents were addressed
+     * by hash are moved into the store.
+     *
+     * @param ownerID Whose index to load.
+     *
+     * @return Loaded owner index.
+     *
+     * @throws IOException If failed to read owner directory.
+     */
+    private ConcurrentHashMap<String,FileMetadata> loadIndex(String ownerID) throws IOException
+    {
+        final ConcurrentHashMap<String,FileMetadata> index=new ConcurrentHashMap<>();
+        final Path ownerDirectory=getOwnerDirectory(ownerID);
+        final Path indexFile=ownerDirectory.resolve(INDEX_FILE);
+        if(Files.exists(indexFile))
+        {
+            final Properties entries=new Properties();
+            try(Reader r=Files.newBufferedReader(indexFile,StandardCharsets.UTF_8)){
+                entries.load(r);
+            }
+            for(String filename:entries.stringPropertyNames())
+            {
+                final String entry=entries.getProperty(filename);
+                if(entry.indexOf(' ')==-1)
+                {
+                    // Entry containing only content hash
+                    index.put(filename,readMetadata(filename,entry));
+                }
+                else
+                    index.put(filename,FileMetadata.fromIndexEntry(filename,entry));
+            }
+        }
+        final ArrayList<Path> legacyFiles=new ArrayList<>();
+        try(Stream<Path> files=Files.list(ownerDirectory)){
+            files.filter((file)->Files.isRegularFile(file)
+                    &&!file.getFileName().toString().startsWith("."))
+                .forEach(legacyFiles::add);
+        }
+        if(!legacyFiles.isEmpty())
+        {
+            ownerIndexes.put(ownerID,index);
+            for(Path legacyFile:legacyFiles)
+            {
+                try(InputStream content=Files.newInputStream(legacyFile)){
+                    storeContent(ownerID,legacyFile.getFileName().toString(),content,null);
+                }
+                Files.delete(legacyFile);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads metadata of the file which index entry contains only content
+     * hash from its blob. Entry is kept even if blob is missing, so saving
+     * the index doesn't drop it.
+     *
+     * @param filename Name of the file.
+     * @param hash Content hash.
+     *
+     * @return File metadata, with size -1 if blob is missing.
+     *
+     * @throws IOException If failed to read the blob.
+     */
+    private FileMetadata readMetadata(String filename,String hash) throws IOException
+    {
+        final Path blob=getBlobPath(hash);
+        if(Files.exists(blob))
+            return new FileMetadata(filename,Files.size(blob),
+                    Files.getLastModifiedTime(blob).toMillis(),hash);
+        final Path compressed=getCompressedBlobPath(hash);
+        if(!Files.exists(compressed))
+        {
+            System.out.println("[Error]: Content of: "+filename+" is missing");
+            return new FileMetadata(filename,-1,0,hash);
+        }
+        try(SeekableByteChannel channel=Files.newByteChannel(compressed)){
+            // Gzip trailer ends with content size modulo 2^32
+            final ByteBuffer trailer=ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(Math.max(channel.size()-4,0));
+            channel.read(trailer);
+            return new FileMetadata(filename,Integer.toUnsignedLong(trailer.getInt(0)),
+                    Files.getLastModifiedTime(compressed).toMillis(),hash);
+        }
+    }
+
+    /**
+     * Adds given file to the owner index and saves it. Content previously
+     * stored under this name is released.
+     *
+     * @param ownerID Whose index to update.
+     * @param metadata Stored file metadata.
+     *
+     * @throws IOException If failed to save index.
+     */
+    private void putIndexEntry(String ownerID,FileMetadata metadata) throws IOException
+    {
+        final ConcurrentHashMap<String,FileMetadata> index=ownerIndexes
+                .computeIfAbsent(ownerID,(owner)->new ConcurrentHashMap<>());
+        final FileMetadata previous;
+        synchronized(index){
+            if(index.isEmpty())
+                Files.createDirectories(getOwnerDirectory(ownerID));
+            previous=index.put(metadata.getFilename(),metadata);
+            saveIndex(ownerID,index);
+        }
+        // Reference to the same content was already taken by the new entry
+        if(previous!=null)
+            releaseBlob(previous.getChecksum());
+    }
+
+    private void saveIndex(String ownerID,ConcurrentHashMap<String,FileMetadata> index) throws IOException
+    {
+        final Path ownerDirectory=getOwnerDirectory(ownerID);
+        final Properties entries=new Properties();
+        index.forEach((filename,metadata)->entries.setProperty(filename,metadata.toIndexEntry()));
+        final Path tmpIndex=Files.createTempFile(ownerDirectory,INDEX_FILE,".tmp");
+        try(Writer w=Files.newBufferedWriter(tmpIndex,StandardCharsets.UTF_8)){
+            entries.store(w,null);
+        }
+        Files.move(tmpIndex,ownerDirectory.resolve(INDEX_FILE),
+                StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private MessageDigest createDigest()
+    {
+        try{
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(HASH_ALGORITHM+" is not supported",e);
+        }
+    }
+}
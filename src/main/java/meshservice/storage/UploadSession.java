@@ -0,0 +1,342 @@
+package meshservice.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import meshservice.communication.RequestException;
+
+/**
+ * Upload of a single file split into chunks. Received data is persisted
+ * under the owner directory together with a manifest storing committed
+ * offset, so upload can be resumed after dropped connection or restart.
+ * Sessions without any activity for {@link #SESSION_TTL} are removed
+ * together with their data.
+ *
+ * @author ArtiFixal
+ */
+public class UploadSession{
+
+    /**
+     * Name of owner directory storing unfinished uploads.
+     */
+    private static final String UPLOADS_DIRECTORY=".uploads";
+
+    /**
+     * Time in milliseconds since the last received chunk after which session
+     * is abandoned.
+     */
+    public static final long SESSION_TTL=24*60*60*1000;
+
+    /**
+     * How often in milliseconds abandoned sessions are removed.
+     */
+    public static final long SWEEP_INTERVAL=60*60*1000;
+
+    /**
+     * Sessions already loaded by this process.
+     */
+    private static final ConcurrentHashMap<UUID,UploadSession> openSessions=new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService SWEEPER=Executors.newSingleThreadScheduledExecutor((task)->{
+        final Thread sweeperThread=new Thread(task,"UploadSessionSweeper");
+        sweeperThread.setDaemon(true);
+        return sweeperThread;
+    });
+
+    static{
+        SWEEPER.scheduleWithFixedDelay(UploadSession::removeAbandoned,SWEEP_INTERVAL,
+                SWEEP_INTERVAL,TimeUnit.MILLISECONDS);
+    }
+
+    private final UUID sessionID;
+    private final String ownerID;
+    private final String filename;
+
+    /**
+     * Number of bytes durably received.
+     */
+    private long committedOffset;
+
+    /**
+     * File containing received data.
+     */
+    private final Path partFile;
+
+    /**
+     * File containing session manifest.
+     */
+    private final Path manifestFile;
+
+    /**
+     * Whether session was committed or removed.
+     */
+    private boolean closed;
+
+    private UploadSession(UUID sessionID,String ownerID,String filename,long committedOffset){
+        this.sessionID=sessionID;
+        this.ownerID=ownerID;
+        this.filename=filename;
+        this.committedOffset=committedOffset;
+        final Path uploadsDirectory=getUploadsDirectory(ownerID);
+        partFile=uploadsDirectory.resolve(sessionID+".part");
+        manifestFile=uploadsDirectory.resolve(sessionID+".manifest");
+    }
+
+    /**
+     * Opens new upload session.
+     *
+     * @param ownerID Whose file will be uploaded.
+     * @param filename Name of the uploaded file.
+     *
+     * @return Opened session.
+     *
+     * @throws IOException If failed to persist session.
+     */
+    public static UploadSession open(String ownerID,String filename) throws IOException
+    {
+        final UploadSession session=new UploadSession(UUID.randomUUID(),ownerID,filename,0);
+        Files.createDirectories(session.partFile.getParent());
+        Files.createFile(session.partFile);
+        session.saveManifest();
+        openSessions.put(session.sessionID,session);
+        return session;
+    }
+
+    /**
+     * Finds given upload session loading it from the disk if needed.
+     *
+     * @param ownerID Whose session it is.
+     * @param sessionID Which session to find.
+     *
+     * @return Found session.
+     *
+     * @throws IOException If failed to load session manifest.
+     * @throws RequestException If there is no such session.
+     */
+    public static UploadSession find(String ownerID,String sessionID) throws IOException,RequestException
+    {
+        final UUID id;
+        try{
+            id=UUID.fromString(sessionID);
+        }catch(IllegalArgumentException e){
+            throw new RequestException("Malformed upload session ID");
+        }
+        UploadSession session=openSessions.get(id);
+        if(session==null)
+        {
+            synchronized(openSessions){
+                session=openSessions.get(id);
+                if(session==null)
+                {
+                    session=load(ownerID,id);
+                    openSessions.put(id,session);
+                }
+            }
+        }
+        if(!session.ownerID.equals(ownerID))
+            throw new RequestException(404,"Upload session not found");
+        return session;
+    }
+
+    private static UploadSession load(String ownerID,UUID sessionID) throws IOException,RequestException
+    {
+        final Path manifest=getUploadsDirectory(ownerID).resolve(sessionID+".manifest");
+        if(!Files.exists(manifest))
+            throw new RequestException(404,"Upload session not found");
+        final Properties entries=new Properties();
+        try(Reader r=Files.newBufferedReader(manifest,StandardCharsets.UTF_8)){
+            entries.load(r);
+        }
+        return new UploadSession(sessionID,ownerID,entries.getProperty("filename"),
+                Long.parseLong(entries.getProperty("offset")));
+    }
+
+    /**
+     * Removes sessions of all owners whose manifest wasn't updated for
+     * {@link #SESSION_TTL}, as well as data left without manifest.
+     */
+    private static void removeAbandoned()
+    {
+        final FileTime expiredBefore=FileTime.fromMillis(System.currentTimeMillis()-SESSION_TTL);
+        try(Stream<Path> ownerDirectories=Files.list(FileStore.getInstance().getRootDirectory().toPath())){
+            ownerDirectories.map((ownerDirectory)->ownerDirectory.resolve(UPLOADS_DIRECTORY))
+                    .filter(Files::isDirectory)
+                    .forEach((uploadsDirectory)->removeAbandoned(uploadsDirectory,expiredBefore));
+        }catch(IOException|RuntimeException e){
+            System.out.println("[Error]: Failed to remove abandoned upload sessions due to: "+e);
+        }
+    }
+
+    private static void removeAbandoned(Path uploadsDirectory,FileTime expiredBefore)
+    {
+        try(Stream<Path> files=Files.list(uploadsDirectory)){
+            for(Path file:(Iterable<Path>)files::iterator)
+            {
+                if(Files.getLastModifiedTime(file).compareTo(expiredBefore)>=0)
+                    continue;
+                final String name=file.getFileName().toString();
+                if(name.endsWith(".manifest"))
+                {
+                    final UUID sessionID=UUID.fromString(name.substring(0,name.length()-".manifest".length()));
+                    if(remove(sessionID,file,uploadsDirectory.resolve(sessionID+".part"),expiredBefore))
+                        System.out.println("[Info]: Removed abandoned upload session: "+sessionID);
+                }
+                else if(name.endsWith(".part"))
+                {
+                    // Removed together with manifest unless it is missing
+                    final String manifestName=name.substring(0,name.length()-".part".length())+".manifest";
+                    if(!Files.exists(uploadsDirectory.resolve(manifestName)))
+                        Files.deleteIfExists(file);
+                }
+                else
+                    // Manifest left by interrupted save
+                    Files.deleteIfExists(file);
+            }
+        }catch(IOException|IllegalArgumentException e){
+            System.out.println("[Error]: Failed to remove abandoned upload sessions in: "+uploadsDirectory+" due to: "+e);
+        }
+    }
+
+    /**
+     * Removes given session unless it received data since it was found
+     * abandoned. Holds lock of loaded session or of sessions being loaded, so
+     * no chunk is written to the removed session.
+     *
+     * @return Whether session was removed.
+     */
+    private static boolean remove(UUID sessionID,Path manifest,Path part,FileTime expiredBefore)
+            throws IOException
+    {
+        synchronized(openSessions){
+            final UploadSession loaded=openSessions.get(sessionID);
+            if(loaded==null)
+                return delete(manifest,part,expiredBefore);
+            synchronized(loaded){
+                if(!delete(manifest,part,expiredBefore))
+                    return false;
+                loaded.closed=true;
+                openSessions.remove(sessionID);
+                return true;
+            }
+        }
+    }
+
+    private static boolean delete(Path manifest,Path part,FileTime expiredBefore) throws IOException
+    {
+        if(!Files.exists(manifest)||Files.getLastModifiedTime(manifest).compareTo(expiredBefore)>=0)
+            return false;
+        Files.deleteIfExists(manifest);
+        Files.deleteIfExists(part);
+        return true;
+    }
+
+    private static Path getUploadsDirectory(String ownerID){
+        return FileStore.getInstance().getOwnerDirectory(ownerID).resolve(UPLOADS_DIRECTORY);
+    }
+
+    public UUID getSessionID(){
+        return sessionID;
+    }
+
+    public String getFilename(){
+        return filename;
+    }
+
+    public synchronized long getCommittedOffset(){
+        return committedOffset;
+    }
+
+    /**
+     * Writes given chunk at given offset. Chunks already received are
+     * acknowledged without being written again.
+     *
+     * @param offset Position of the chunk in the file.
+     * @param chunk Chunk data.
+     *
+     * @return Committed offset after write.
+     *
+     * @throws IOException If failed to persist chunk.
+     * @throws RequestException If chunk doesn't continue received data.
+     */
+    public synchronized long append(long offset,byte[] chunk) throws IOException,RequestException
+    {
+        ensureOpen();
+        if(offset+chunk.length<=committedOffset)
+            return committedOffset;
+        if(offset!=committedOffset)
+            throw new RequestException(409,"Expected chunk at offset: "+committedOffset);
+        try(FileChannel channel=FileChannel.open(partFile,StandardOpenOption.WRITE)){
+            final ByteBuffer data=ByteBuffer.wrap(chunk);
+            long position=offset;
+            while(data.hasRemaining())
+                position+=channel.write(data,position);
+            channel.force(false);
+        }
+        committedOffset+=chunk.length;
+        saveManifest();
+        return committedOffset;
+    }
+
+    /**
+     * Moves received data into the file store and removes this session.
+     *
+     * @param store Where to store uploaded file.
+     *
+     * @return Hash of stored content.
+     *
+     * @throws IOException If failed to store the file.
+     * @throws RequestException If session was already removed.
+     */
+    public synchronized String commit(FileStore store) throws IOException,RequestException
+    {
+        ensureOpen();
+        final String hash;
+        try(FileChannel channel=FileChannel.open(partFile,StandardOpenOption.WRITE)){
+            // Drop data written after last saved manifest
+            channel.truncate(committedOffset);
+        }
+        try(InputStream content=Files.newInputStream(partFile)){
+            hash=store.store(ownerID,filename,content);
+        }
+        openSessions.remove(sessionID);
+        closed=true;
+        Files.deleteIfExists(manifestFile);
+        Files.deleteIfExists(partFile);
+        return hash;
+    }
+
+    private void ensureOpen() throws RequestException
+    {
+        if(closed)
+            throw new RequestException(404,"Upload session not found");
+    }
+
+    private void saveManifest() throws IOException
+    {
+        final Properties entries=new Properties();
+        entries.setProperty("filename",filename);
+        entries.setProperty("offset",Long.toString(committedOffset));
+        final Path tmpManifest=Files.createTempFile(manifestFile.getParent(),sessionID.toString(),".tmp");
+        try(Writer w=Files.newBufferedWriter(tmpManifest,StandardCharsets.UTF_8)){
+            entries.store(w,null);
+        }
+        Files.move(tmpManifest,manifestFile,StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}